@@ -1,5 +1,6 @@
 package de.einwesen.heimklangwelle;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URI;
@@ -43,12 +44,32 @@ import org.jupnp.transport.spi.StreamServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.einwesen.heimklangwelle.contentdirectory.AlbumArtService;
+import de.einwesen.heimklangwelle.contentdirectory.AlbumArtServlet;
+import de.einwesen.heimklangwelle.contentdirectory.BrowseResultCache;
 import de.einwesen.heimklangwelle.contentdirectory.ContentByIdServlet;
 import de.einwesen.heimklangwelle.contentdirectory.ContentDirectoryServiceImpl;
+import de.einwesen.heimklangwelle.contentdirectory.FilePrefetcher;
+import de.einwesen.heimklangwelle.contentdirectory.FileStreamer;
+import de.einwesen.heimklangwelle.contentdirectory.HotFileCache;
 import de.einwesen.heimklangwelle.contentdirectory.MediaServerConnectionManagerServiceImpl;
+import de.einwesen.heimklangwelle.contentdirectory.PlaylistPrefetchListener;
+import de.einwesen.heimklangwelle.contentdirectory.TranscodeService;
+import de.einwesen.heimklangwelle.contentdirectory.TranscodeServlet;
+import de.einwesen.heimklangwelle.contentdirectory.library.BackgroundTagReader;
+import de.einwesen.heimklangwelle.contentdirectory.library.LibraryRoots;
+import de.einwesen.heimklangwelle.contentdirectory.library.MediaLibraryIndex;
+import de.einwesen.heimklangwelle.contentdirectory.library.ObjectIdTable;
+import de.einwesen.heimklangwelle.contentdirectory.library.SearchIndex;
+import de.einwesen.heimklangwelle.contentdirectory.library.SeekTableCache;
+import de.einwesen.heimklangwelle.contentdirectory.library.TitleCollator;
+import de.einwesen.heimklangwelle.contentdirectory.library.VirtualLibrary;
+import de.einwesen.heimklangwelle.contentdirectory.tags.SeekTableReader;
 import de.einwesen.heimklangwelle.controller.rest.ContentDirectoryEndpointServlet;
 import de.einwesen.heimklangwelle.controller.rest.DevicesEndpointServlet;
 import de.einwesen.heimklangwelle.controller.rest.RendererEndpointServlet;
+import de.einwesen.heimklangwelle.controller.rest.StatsEndpointServlet;
+import de.einwesen.heimklangwelle.controller.rest.StreamingEndpointServlet;
 import de.einwesen.heimklangwelle.renderers.AbstractRendererWrapper;
 import de.einwesen.heimklangwelle.renderers.RendererChangeEventListener;
 import de.einwesen.heimklangwelle.renderers.RendererConnectionManagerServiceImpl;
@@ -99,6 +120,16 @@ public class HeimklangServiceRegistry extends UpnpServiceRegistry {
 	
 	private AbstractRendererWrapper rendererInstance;
 	private String contentServerBase = null; 
+	private LibraryRoots libraryRoots = null;
+	private ObjectIdTable objectIds = null;
+	private BrowseResultCache browseResultCache = null;
+	private BackgroundTagReader tagReader = null;
+	private SearchIndex searchIndex = null;
+	private VirtualLibrary virtualLibrary = null;
+	private AlbumArtService albumArtService = null;
+	private FileStreamer fileStreamer = null;
+	private TranscodeService transcodeService = null;
+	private FilePrefetcher filePrefetcher = null;
 	
     public LocalDevice registerLocalRendererDevice(AbstractRendererWrapper rendererInstance) throws ValidationException, IOException {
         this.rendererInstance = rendererInstance;
@@ -174,6 +205,63 @@ public class HeimklangServiceRegistry extends UpnpServiceRegistry {
 	public LocalDevice registerLocalContentServerDevice() throws ValidationException, IOException {
 		
 		final String sourceDir = System.getProperty("user.dir"); 
+		
+		final boolean retainListings = !Boolean.valueOf(HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_NOLIBRARYINDEX, "false"));
+		final int childCountCacheSize = Integer.parseInt(HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_CHILDCOUNT_CACHE_SIZE, "10000"));
+		final TitleCollator collator = TitleCollator.forLanguageTag(HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_COLLATION_LOCALE, ""));
+		final String configuredRoots = HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_LIBRARY_ROOTS, "");
+		
+		final File dataDir = HeimklangStation.getDataDirectory();
+		this.objectIds = new ObjectIdTable(dataDir != null ? new File(dataDir, "object-ids.tsv") : null);
+		this.browseResultCache = new BrowseResultCache(Long.parseLong(HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_BROWSE_CACHE_SIZE, "8192")));
+		
+		final String transcodeRules = HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_TRANSCODE, "");
+		if (!transcodeRules.isBlank()) {
+			// Needs to be there before anything is listed, files only it can play are listed too
+			this.transcodeService = new TranscodeService(transcodeRules, 
+					HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_TRANSCODE_COMMAND, TranscodeService.DEFAULT_COMMAND),
+					dataDir != null ? new File(dataDir, "transcodes") : null,
+					Long.parseLong(HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_TRANSCODE_CACHE_SIZE, "2048")),
+					Integer.parseInt(HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_TRANSCODE_PROCESSES, "2")));
+		}
+		
+		// Every root gets its own index
+		this.libraryRoots = LibraryRoots.create(configuredRoots, HeimklangServiceRegistry::getLibraryGlobs,
+				filter -> new MediaLibraryIndex(ContentDirectoryServiceImpl::getSupportedMimetype, filter, retainListings, childCountCacheSize, collator), 
+				collator);
+		
+		if (retainListings && dataDir != null && !Boolean.valueOf(HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_NOLIBRARYSNAPSHOT, "false"))) {
+			// Browsing works from the snapshot right away, the scan only needs to look at what changed since
+			this.libraryRoots.useSnapshots(dataDir, this.transcodeService != null ? this.transcodeService.getRules() : "");
+		}
+		
+		if (dataDir != null && !Boolean.valueOf(HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_NOALBUMART, "false"))) {
+			this.albumArtService = new AlbumArtService(new File(dataDir, "thumbnails"), this.libraryRoots::getChildren, 2);
+		}
+		
+		if (retainListings) {
+			// Both share a single reader, the second one gets the tags from the cache
+			this.tagReader = new BackgroundTagReader(this.libraryRoots::getTags);
+
+			// Needs to listen before anything is listed, to see every entry
+			this.searchIndex = new SearchIndex(ContentDirectoryServiceImpl::getUpnpClass, this.tagReader);
+			this.libraryRoots.addChangeListener(this.searchIndex);
+			
+			this.virtualLibrary = new VirtualLibrary(this.libraryRoots::getTags, this.tagReader, collator,
+					Integer.parseInt(HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_RECENTLY_ADDED_SIZE, "200")));
+			this.libraryRoots.addChangeListener(this.virtualLibrary);
+		}
+
+		this.fileStreamer = new FileStreamer(new SeekTableCache(SeekTableReader::read, 64),
+				new HotFileCache(Long.parseLong(HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_HOT_FILE_CACHE_SIZE, "64")),
+						Long.parseLong(HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_HOT_FILE_MAX_SIZE, "1024"))));
+
+		// Only the queue of our own renderer is known
+		final int prefetchTracks = Integer.parseInt(HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_PREFETCH_TRACKS, "2"));
+		if (this.rendererInstance != null && prefetchTracks > 0) {
+			this.filePrefetcher = new FilePrefetcher(Long.parseLong(HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_PREFETCH_RATE, "8")));
+			this.rendererInstance.addListener(new PlaylistPrefetchListener(this.rendererInstance, this.filePrefetcher, prefetchTracks));
+		}
 
 		// 1. Create the ServletHolder (Jetty's wrapper for servlets)
 		ServletHolder staticHolder = new ServletHolder(new ContentByIdServlet());
@@ -188,11 +276,16 @@ public class HeimklangServiceRegistry extends UpnpServiceRegistry {
 		// 3. (Optional) Recommended settings for sub-path serving
 		staticHolder.setInitParameter("pathInfoOnly", "false"); // Ensures correct file lookups
 		staticHolder.setInitParameter("dirAllowed", "false"); // Security: disable directory browsing
+		staticHolder.setAsyncSupported(true); // Streams are written async, see FileStreamer
 
 		// 4. Register it at a specific path
 		servletHandler.setMimeTypes(ContentDirectoryServiceImpl.fileExtensionMimeTypes);
 		servletHandler.setContextPath("/heimklang/welle");
 		servletHandler.addServlet(staticHolder, "/*");
+		servletHandler.addServlet(new ServletHolder(new AlbumArtServlet()), AlbumArtServlet.SERVLET_PATH + "/*");
+		final ServletHolder transcodeHolder = new ServletHolder(new TranscodeServlet());
+		transcodeHolder.setAsyncSupported(true); // Cached transcodes are streamed like files
+		servletHandler.addServlet(transcodeHolder, TranscodeServlet.SERVLET_PATH + "/*");
 
 		// 5. register with server 
 		jettyServer.registerHandler(servletHandler);	
@@ -215,7 +308,7 @@ public class HeimklangServiceRegistry extends UpnpServiceRegistry {
                 new ManufacturerDetails("https://github.com/EinWesen"),
                 new ModelDetails(
                 		ContentDirectoryServiceImpl.class.getName(),
-                		"No transcoding support",
+                		this.transcodeService != null ? "Transcoding support" : "No transcoding support",
                 		"?" // FIXME: commit version Version                        
                 		), newURI(this.contentServerBase)
                 
@@ -240,9 +333,49 @@ public class HeimklangServiceRegistry extends UpnpServiceRegistry {
                 new LocalService[]{cmService, contentService}
         );
         this.upnpService.getRegistry().addDevice(device);
+        
+        if (retainListings) {
+        	startLibraryPrescan(HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_LIBRARY_PRESCAN, ""), configuredRoots.trim().length() > 0);
+        }
+        
         return device;		
 	}
 	
+	/**
+	 * @param directories to scan, if empty configured roots are scanned as a whole 
+	 * @param rootsConfigured false, if the filesystem roots are shared, which are never scanned as a whole
+	 */
+	private void startLibraryPrescan(final String directories, boolean rootsConfigured) {
+		final ArrayList<File> scanDirectories = new ArrayList<>();
+		for (String dir : directories.split(File.pathSeparator)) {
+			if (dir.trim().length() > 0) {
+				scanDirectories.add(new File(dir.trim()));
+			}
+		}
+		
+		final long pollInterval = Long.parseLong(HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_LIBRARY_POLL_INTERVAL, "300"));
+		// Enough to hide the latency of a network mount, few enough to not keep a NAS busy
+		final int scanThreads = Integer.parseInt(HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_LIBRARY_SCAN_THREADS, "4"));
+		if (scanDirectories.size() > 0) {
+			this.libraryRoots.startScan(scanDirectories, pollInterval, scanThreads);
+		} else if (rootsConfigured) {
+			this.libraryRoots.startScan(null, pollInterval, scanThreads);
+		}
+	}
+	
+	/**
+	 * @return includes and excludes of a single root, or the ones for all roots 
+	 */
+	private static String[] getLibraryGlobs(String rootName) {
+		final String suffix = "_" + LibraryRoots.getConfigSuffix(rootName);
+		return new String[] {
+			HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_LIBRARY_INCLUDE + suffix, 
+					HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_LIBRARY_INCLUDE, "")),
+			HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_LIBRARY_EXCLUDE + suffix, 
+					HeimklangStation.getConfigProperty(ContentDirectoryServiceImpl.CONFIG_PROPERTY_LIBRARY_EXCLUDE, ""))
+		};
+	}
+	
 	
 	public void registerLocalController() throws IOException {
 		
@@ -259,6 +392,12 @@ public class HeimklangServiceRegistry extends UpnpServiceRegistry {
         // Content directory browsing
 		servletHandler.addServlet(new ServletHolder(new ContentDirectoryEndpointServlet()), "/rest/contentdirectory/*");
 
+        // Streaming metrics of the content server
+		servletHandler.addServlet(new ServletHolder(new StreamingEndpointServlet()), "/rest/streaming/*");
+
+        // Internal counters of the content server
+		servletHandler.addServlet(new ServletHolder(new StatsEndpointServlet()), "/rest/stats/*");
+
 		// Web content
 		ServletHolder staticHolder = new ServletHolder(new DefaultServlet());
 
@@ -296,6 +435,23 @@ public class HeimklangServiceRegistry extends UpnpServiceRegistry {
 		super.startup();
 	}
 	
+	@Override
+	public void shutdown() {
+		if (this.libraryRoots != null) {
+			this.libraryRoots.shutdown();
+		}
+		if (this.objectIds != null) {
+			this.objectIds.close();
+		}
+		if (this.filePrefetcher != null) {
+			this.filePrefetcher.shutdown();
+		}
+		if (this.tagReader != null) {
+			this.tagReader.shutdown();
+		}
+		super.shutdown();
+	}
+	
 	public static HeimklangServiceRegistry getInstance() {
     	return instance;
     }
@@ -304,6 +460,76 @@ public class HeimklangServiceRegistry extends UpnpServiceRegistry {
 		return instance.contentServerBase;
 	}
 	
+	/**
+	 * @return the shared roots, or null if no content server was registered
+	 */
+	public static LibraryRoots getLibraryRoots() {
+		return instance.libraryRoots;
+	}
+	
+	/**
+	 * @return the ids of all objects handed out, or null if no content server was registered
+	 */
+	public static ObjectIdTable getObjectIdTable() {
+		return instance.objectIds;
+	}
+	
+	/**
+	 * @return the cache, or null if no content server was registered
+	 */
+	public static BrowseResultCache getBrowseResultCache() {
+		return instance.browseResultCache;
+	}
+	
+	/**
+	 * @return the reader of tags for search and groups, or null if there is none
+	 */
+	public static BackgroundTagReader getTagReader() {
+		return instance.tagReader;
+	}
+	
+	/**
+	 * @return the index, or null if search is not available
+	 */
+	public static SearchIndex getSearchIndex() {
+		return instance.searchIndex;
+	}
+	
+	/**
+	 * @return the artist, album and genre views, or null if they are not available
+	 */
+	public static VirtualLibrary getVirtualLibrary() {
+		return instance.virtualLibrary;
+	}
+	
+	/**
+	 * @return the thumbnails, or null if they are not available
+	 */
+	public static AlbumArtService getAlbumArtService() {
+		return instance.albumArtService;
+	}
+	
+	/**
+	 * @return the streamer for media files, or null if no content server was registered
+	 */
+	public static FileStreamer getFileStreamer() {
+		return instance.fileStreamer;
+	}
+
+	/**
+	 * @return the prefetcher for the queue of the local renderer, or null if there is none
+	 */
+	public static FilePrefetcher getFilePrefetcher() {
+		return instance.filePrefetcher;
+	}
+	
+	/**
+	 * @return the transcoder, or null if transcoding is not configured
+	 */
+	public static TranscodeService getTranscodeService() {
+		return instance.transcodeService;
+	}
+	
 	private static String getLocalHostname() {
         String hostname = System.getenv("HOSTNAME");
         
@@ -1,5 +1,6 @@
 package de.einwesen.heimklangwelle;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Locale;
 
@@ -15,6 +16,7 @@ public class HeimklangStation {
 	public static final String CONFIG_PROPERTY_NORENDERER = "HEIMKLANG_CONFIG_NORENDERER";
 	public static final String CONFIG_PROPERTY_NOSERVER = "HEIMKLANG_CONFIG_NOSERVER";
 	public static final String CONFIG_PROPERTY_NOCONTROLLER = "HEIMKLANG_CONFIG_NOCONTROLLER";
+	public static final String CONFIG_PROPERTY_DATA_DIR = "HEIMKLANG_CONFIG_DATA_DIR";
 
 	private final static Logger LOGGER = LoggerFactory.getLogger(HeimklangStation.class);
 	
@@ -89,6 +91,18 @@ public class HeimklangStation {
     	return defaultValue;    	
     }
 	
+	/**
+	 * @return the directory to keep state in across restarts, or null if it can not be created
+	 */
+	public static File getDataDirectory() {
+		final File dataDir = new File(getConfigProperty(CONFIG_PROPERTY_DATA_DIR, System.getProperty("user.home") + File.separator + ".heimklangwelle"));
+		if (!dataDir.isDirectory() && !dataDir.mkdirs()) {
+			LOGGER.warn("Could not create data directory '" + dataDir.getAbsolutePath() + "'");
+			return null;
+		}
+		return dataDir;
+	}
+	
 	public static boolean isOnWindows() {
 		return System.getProperty("os.name").toLowerCase(Locale.ROOT).contains("win");
 	}
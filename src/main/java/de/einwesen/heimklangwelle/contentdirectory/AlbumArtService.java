@@ -0,0 +1,336 @@
+package de.einwesen.heimklangwelle.contentdirectory;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.einwesen.heimklangwelle.contentdirectory.library.LibraryEntry;
+import de.einwesen.heimklangwelle.contentdirectory.tags.CoverArtReader;
+
+/**
+ * Thumbnails of cover art for upnp:albumArtURI, scaled to the DLNA JPEG_TN / PNG_TN profiles.
+ *
+ * The art of a track is its embedded picture, or else the image of its folder (folder.jpg, cover.png, ...).
+ * Thumbnails are kept on disk, named by the hash of the original image. An album with the same
+ * picture in every track is scaled once, after that the file is just served.
+ */
+public class AlbumArtService {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AlbumArtService.class);
+
+	// Max. width and height of JPEG_TN and PNG_TN
+	public static final int THUMBNAIL_SIZE = 160;
+
+	public enum Profile {
+		JPEG_TN("jpg", "image/jpeg", "jpeg"),
+		PNG_TN("png", "image/png", "png");
+
+		private final String extension;
+		private final String mimeType;
+		private final String format;
+
+		private Profile(String extension, String mimeType, String format) {
+			this.extension = extension;
+			this.mimeType = mimeType;
+			this.format = format;
+		}
+
+		public String getExtension() {
+			return extension;
+		}
+
+		public String getMimeType() {
+			return mimeType;
+		}
+
+		/**
+		 * @return the profile, or null if there is none for the extension
+		 */
+		public static Profile ofExtension(String extension) {
+			for (Profile profile : values()) {
+				if (profile.extension.equalsIgnoreCase(extension)) {
+					return profile;
+				}
+			}
+			return null;
+		}
+	}
+
+	// Names of folder images without extension, the first one found wins
+	private static final List<String> FOLDER_IMAGE_NAMES = List.of("folder", "cover", "front", "albumart", "album");
+
+	// A cover is a few MB at most, anything bigger is not decoded
+	private static final long MAX_IMAGE_SIZE = 16 * 1024 * 1024;
+
+	// Marks a track without a usable embedded picture
+	private static final String NO_PICTURE = "";
+
+	private final File cacheDirectory;
+	private final Function<File, List<LibraryEntry>> childrenOf;
+	private final Semaphore scaling;
+
+	// "path|size|lastModified|profile" of the original -> hash of the image
+	private final Map<String, String> hashesBySource = new ConcurrentHashMap<>();
+
+	private final AtomicLong generated = new AtomicLong();
+	private final AtomicLong served = new AtomicLong();
+	private final AtomicLong missing = new AtomicLong();
+
+	/**
+	 * @param cacheDirectory where thumbnails are stored
+	 * @param childrenOf returns the visible children of a directory
+	 * @param maxScaling max. number of images decoded at the same time, a decoded image may take a lot of memory
+	 */
+	public AlbumArtService(File cacheDirectory, Function<File, List<LibraryEntry>> childrenOf, int maxScaling) {
+		this.cacheDirectory = cacheDirectory;
+		this.childrenOf = childrenOf;
+		this.scaling = new Semaphore(Math.max(1, maxScaling));
+
+		if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+			LOGGER.warn("Could not create '" + cacheDirectory.getAbsolutePath() + "'");
+		}
+	}
+
+	/**
+	 * @return the image to use for a folder, or null if there is none
+	 */
+	public static LibraryEntry findFolderImage(List<LibraryEntry> children) {
+		LibraryEntry found = null;
+		int foundRank = FOLDER_IMAGE_NAMES.size();
+
+		for (LibraryEntry child : children) {
+			if (!child.isDirectory() && ("image/jpeg".equals(child.getMimeType()) || "image/png".equals(child.getMimeType()))) {
+				final String name = child.getName().toLowerCase(Locale.ROOT);
+				final int rank = FOLDER_IMAGE_NAMES.indexOf(name.substring(0, name.lastIndexOf('.')));
+				if (rank > -1 && rank < foundRank) {
+					found = child;
+					foundRank = rank;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @param file a track, or a folder
+	 * @return the thumbnail, generated if needed, or null if there is no art
+	 */
+	public File getThumbnail(File file, Profile profile) throws IOException {
+		File directory = file;
+
+		if (!file.isDirectory()) {
+			final String key = getKey(file, profile);
+			final String hash = this.hashesBySource.get(key);
+
+			if (!NO_PICTURE.equals(hash)) {
+				final File cached = hash != null ? getCached(hash, profile) : null;
+				if (cached != null) {
+					return cached;
+				}
+
+				final byte[] picture = CoverArtReader.read(file);
+				final File thumbnail = picture != null ? store(key, picture, profile) : null;
+				if (thumbnail != null) {
+					return thumbnail;
+				}
+				this.hashesBySource.put(key, NO_PICTURE);
+			}
+
+			directory = file.getParentFile();
+		}
+
+		final LibraryEntry image = directory != null ? findFolderImage(this.childrenOf.apply(directory)) : null;
+		if (image == null || image.getSize() > MAX_IMAGE_SIZE) {
+			this.missing.incrementAndGet();
+			return null;
+		}
+
+		final String key = getKey(image.getFile(), profile);
+		final String hash = this.hashesBySource.get(key);
+		final File cached = hash != null ? getCached(hash, profile) : null;
+		if (cached != null) {
+			return cached;
+		}
+
+		final File thumbnail = store(key, Files.readAllBytes(image.getFile().toPath()), profile);
+		if (thumbnail == null) {
+			this.missing.incrementAndGet();
+		}
+		return thumbnail;
+	}
+
+	private File getCached(String hash, Profile profile) {
+		final File thumbnail = getThumbnailFile(hash, profile);
+		if (thumbnail.isFile()) {
+			this.served.incrementAndGet();
+			return thumbnail;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the thumbnail of the image, or null if the image could not be decoded
+	 */
+	private File store(String key, byte[] image, Profile profile) throws IOException {
+		final String hash = sha1(image);
+		final File cached = getCached(hash, profile);
+		if (cached != null) {
+			this.hashesBySource.put(key, hash);
+			return cached;
+		}
+
+		final BufferedImage thumbnail;
+		try {
+			this.scaling.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting to scale");
+		}
+		try {
+			final BufferedImage original = ImageIO.read(new ByteArrayInputStream(image));
+			if (original == null) {
+				LOGGER.debug("No reader for the image of '%s'".formatted(key));
+				return null;
+			}
+			thumbnail = scale(original, THUMBNAIL_SIZE, profile == Profile.PNG_TN);
+		} finally {
+			this.scaling.release();
+		}
+
+		final File target = getThumbnailFile(hash, profile);
+		final Path tmp = Files.createTempFile(this.cacheDirectory.toPath(), hash, ".tmp");
+		try {
+			write(thumbnail, profile, tmp.toFile());
+			Files.move(tmp, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+
+		this.hashesBySource.put(key, hash);
+		this.generated.incrementAndGet();
+		LOGGER.debug("Generated %s for '%s'".formatted(target.getName(), key));
+		return target;
+	}
+
+	/**
+	 * Scales down to fit into a square of the given size, in steps of halving the size, so that bilinear filtering does not skip pixels.
+	 * Images that are small enough already are only converted.
+	 */
+	static BufferedImage scale(BufferedImage original, int maxSize, boolean alpha) {
+		final double factor = Math.min(1.0, Math.min((double) maxSize / original.getWidth(), (double) maxSize / original.getHeight()));
+		final int targetWidth = Math.max(1, (int) Math.round(original.getWidth() * factor));
+		final int targetHeight = Math.max(1, (int) Math.round(original.getHeight() * factor));
+
+		BufferedImage current = original;
+		int width = original.getWidth();
+		int height = original.getHeight();
+		do {
+			width = Math.max(targetWidth, width / 2);
+			height = Math.max(targetHeight, height / 2);
+
+			final BufferedImage next = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+			final Graphics2D g = next.createGraphics();
+			try {
+				if (!alpha) {
+					// Transparent parts would turn black otherwise
+					g.setColor(Color.WHITE);
+					g.fillRect(0, 0, width, height);
+				}
+				g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+				g.drawImage(current, 0, 0, width, height, null);
+			} finally {
+				g.dispose();
+			}
+			current = next;
+		} while (width != targetWidth || height != targetHeight);
+
+		return current;
+	}
+
+	private static void write(BufferedImage image, Profile profile, File file) throws IOException {
+		final ImageWriter writer = ImageIO.getImageWritersByFormatName(profile.format).next();
+		try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+			writer.setOutput(out);
+			final ImageWriteParam param = writer.getDefaultWriteParam();
+			if (profile == Profile.JPEG_TN) {
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionQuality(0.85f);
+			}
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+	}
+
+	private File getThumbnailFile(String hash, Profile profile) {
+		return new File(this.cacheDirectory, hash + "-" + profile.name().toLowerCase(Locale.ROOT) + "." + profile.extension);
+	}
+
+	private static String getKey(File file, Profile profile) {
+		return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified() + "|" + profile;
+	}
+
+	private static String sha1(byte[] data) {
+		try {
+			final StringBuilder hex = new StringBuilder(40);
+			for (byte b : MessageDigest.getInstance("SHA-1").digest(data)) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is always available", e);
+		}
+	}
+
+	/**
+	 * @return number of thumbnails scaled
+	 */
+	public long getGenerated() {
+		return generated.get();
+	}
+
+	/**
+	 * @return number of thumbnails found on disk
+	 */
+	public long getServed() {
+		return served.get();
+	}
+
+	/**
+	 * @return number of requests for something without art
+	 */
+	public long getMissing() {
+		return missing.get();
+	}
+
+	public int getSources() {
+		return hashesBySource.size();
+	}
+
+}
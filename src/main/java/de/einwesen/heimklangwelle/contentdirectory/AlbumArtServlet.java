@@ -0,0 +1,92 @@
+package de.einwesen.heimklangwelle.contentdirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.einwesen.heimklangwelle.HeimklangServiceRegistry;
+import de.einwesen.heimklangwelle.contentdirectory.library.LibraryRoots;
+
+/**
+ * Serves the thumbnails of {@link AlbumArtService} as "/art/&lt;object id&gt;-&lt;version&gt;.jpg" (or .png).
+ *
+ * The version changes with the original image, so the url of a thumbnail never points to something else,
+ * and clients may keep it as long as they like.
+ */
+public class AlbumArtServlet extends HttpServlet {
+
+	public static final String SERVLET_PATH = "/art";
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AlbumArtServlet.class);
+
+	private static final long serialVersionUID = 2236370912734560122L;
+
+	/**
+	 * @return the url of the thumbnail of an object
+	 * @param version anything that changes with the original image, e.g. its modification time
+	 */
+	public static String getUrl(String objectId, long version, AlbumArtService.Profile profile) {
+		return HeimklangServiceRegistry.getContentServerBase() + SERVLET_PATH + "/" + objectId + "-" + Long.toString(version, 36) + "." + profile.getExtension();
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		final AlbumArtService albumArt = HeimklangServiceRegistry.getAlbumArtService();
+		final String pathInfo = req.getPathInfo();
+
+		// "/<id>-<version>.<ext>"
+		final int versionStart = pathInfo != null ? pathInfo.lastIndexOf('-') : -1;
+		final int extensionStart = pathInfo != null ? pathInfo.lastIndexOf('.') : -1;
+		if (albumArt == null || versionStart < 1 || extensionStart < versionStart) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		final AlbumArtService.Profile profile = AlbumArtService.Profile.ofExtension(pathInfo.substring(extensionStart + 1));
+		final File file = ContentDirectoryServiceImpl.decodeItemId(pathInfo.substring(1, versionStart));
+		final LibraryRoots roots = HeimklangServiceRegistry.getLibraryRoots();
+		if (profile == null || file == null || (roots != null && roots.getRoot(file) == null)) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		final File thumbnail;
+		try {
+			thumbnail = albumArt.getThumbnail(file, profile);
+		} catch (IOException | RuntimeException e) {
+			LOGGER.warn("Could not create thumbnail of '" + file.getAbsolutePath() + "': " + e.toString());
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			return;
+		}
+
+		if (thumbnail == null) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		// Named by the hash of the original
+		final String etag = "\"" + thumbnail.getName().substring(0, thumbnail.getName().indexOf('-')) + "\"";
+		resp.setHeader("Cache-Control", "public, max-age=31536000, immutable");
+		resp.setHeader("ETag", etag);
+
+		if (etag.equals(req.getHeader("If-None-Match"))) {
+			resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		resp.setContentType(profile.getMimeType());
+		resp.setContentLengthLong(thumbnail.length());
+		resp.setHeader("contentFeatures.dlna.org", "DLNA.ORG_PN=" + profile.name() + ";DLNA.ORG_OP=00;DLNA.ORG_FLAGS=00D00000000000000000000000000000");
+		resp.setHeader("transferMode.dlna.org", "Interactive");
+		Files.copy(thumbnail.toPath(), resp.getOutputStream());
+	}
+
+}
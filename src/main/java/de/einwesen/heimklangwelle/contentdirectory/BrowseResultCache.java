@@ -0,0 +1,88 @@
+package de.einwesen.heimklangwelle.contentdirectory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jupnp.support.model.BrowseResult;
+
+/**
+ * LRU cache for generated browse results, bounded by the size of the DIDL-Lite xml.
+ *
+ * Entries are never invalidated. The update id of the container is part of the key,
+ * so after a change the old entries are just not asked for anymore, and fall out eventually.
+ */
+public class BrowseResultCache {
+
+	private final long maxChars;
+	private final LinkedHashMap<String, BrowseResult> results = new LinkedHashMap<>(16, 0.75f, true);
+	private long chars = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxKiloBytes approximate size of all results together, 0 disables the cache
+	 */
+	public BrowseResultCache(long maxKiloBytes) {
+		// chars are 2 bytes
+		this.maxChars = maxKiloBytes * 512;
+	}
+
+	public boolean isEnabled() {
+		return this.maxChars > 0;
+	}
+
+	/**
+	 * @return the cached result, or null
+	 */
+	public synchronized BrowseResult get(String key) {
+		final BrowseResult result = this.results.get(key);
+		if (result != null) {
+			this.hits.incrementAndGet();
+		} else {
+			this.misses.incrementAndGet();
+		}
+		return result;
+	}
+
+	public synchronized void put(String key, BrowseResult result) {
+		final long length = result.getResult().length();
+		if (length > this.maxChars / 4) {
+			return; // would push out too much at once
+		}
+
+		final BrowseResult previous = this.results.put(key, result);
+		this.chars += length - (previous != null ? previous.getResult().length() : 0);
+
+		final Iterator<Map.Entry<String, BrowseResult>> eldest = this.results.entrySet().iterator();
+		while (this.chars > this.maxChars && eldest.hasNext()) {
+			this.chars -= eldest.next().getValue().getResult().length();
+			eldest.remove();
+			this.evictions.incrementAndGet();
+		}
+	}
+
+	public synchronized int size() {
+		return this.results.size();
+	}
+
+	public synchronized long getChars() {
+		return this.chars;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+}
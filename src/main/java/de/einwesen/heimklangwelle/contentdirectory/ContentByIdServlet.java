@@ -9,21 +9,46 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.eclipse.jetty.servlet.DefaultServlet;
 import org.eclipse.jetty.util.resource.Resource;
+import org.jupnp.support.model.ProtocolInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.einwesen.heimklangwelle.HeimklangServiceRegistry;
+import de.einwesen.heimklangwelle.contentdirectory.library.LibraryEntry;
+import de.einwesen.heimklangwelle.contentdirectory.library.LibraryRoots;
+
+/**
+ * Serves the media files by their object id, "/&lt;id&gt;.&lt;ext&gt;".
+ * 
+ * Files are streamed by {@link FileStreamer}, only the welcome page is left to the {@link DefaultServlet}. 
+ */
 public class ContentByIdServlet extends DefaultServlet {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(ContentByIdServlet.class);
 
 	private static final long serialVersionUID = -8426298330997491306L;
 
+	/**
+	 * @return the file, or null if the id is unknown or the file is not within a library root
+	 */
 	private static File decodeItemIdPath(String pathInContext) {
 		//pathInContext includes a leading /
 		final String[] fileparts = pathInContext.substring(1).split("\\.", 2);
 		
 		if (fileparts.length == 2) {
-			return  ContentDirectoryServiceImpl.decodeItemId(fileparts[0]);				
+			// Only ids handed out by the content directory resolve to a file
+			final File file = ContentDirectoryServiceImpl.decodeItemId(fileparts[0]);
+			if (file == null) {
+				return null;
+			}
+			
+			// The id may be left from an earlier configuration
+			final LibraryRoots roots = HeimklangServiceRegistry.getLibraryRoots();
+			if (roots != null && roots.getRoot(file) == null) {
+				LOGGER.debug("Refusing to serve '" + file.getAbsolutePath() + "', it is not shared");
+				return null;
+			}
+			return file;
 		} else {
 			throw new IllegalArgumentException("Format of path does not match expectations");
 		}
@@ -32,7 +57,7 @@ public class ContentByIdServlet extends DefaultServlet {
 	@Override
 	public Resource getResource(String pathInContext) {
 				
-		if (pathInContext.equals("/") || pathInContext.equalsIgnoreCase("index.html")) {
+		if (isWelcomePage(pathInContext)) {
 			return super.getResource(pathInContext);
 		} else {
 			File fileToServe = null;
@@ -52,20 +77,78 @@ public class ContentByIdServlet extends DefaultServlet {
 		
 	}
 
+	private static boolean isWelcomePage(String pathInContext) {
+		return pathInContext == null || pathInContext.equals("/") || pathInContext.equalsIgnoreCase("index.html");
+	}
+	
+	/**
+	 * Looks up what is needed to answer a GET or HEAD. From the index if the directory is held there,
+	 * otherwise with a single stat of the file.
+	 * 
+	 * @return the entry, or null if there is no such file
+	 */
+	private static LibraryEntry getEntry(String pathInContext) {
+		File fileToServe = null;
+		try {
+			fileToServe = decodeItemIdPath(pathInContext);
+		} catch (Throwable t) {
+			LOGGER.warn("Could not decode item '" + pathInContext + "'", t);
+		}
+		if (fileToServe == null) {
+			return null;
+		}
+		
+		final LibraryRoots roots = HeimklangServiceRegistry.getLibraryRoots();
+		final LibraryEntry entry = roots != null && fileToServe.getParentFile() != null && roots.isIndexed(fileToServe.getParentFile()) 
+				? roots.getEntry(fileToServe)
+				: LibraryEntry.of(fileToServe, ContentDirectoryServiceImpl.getMimeTypeResolver()::getMimeType);
+		
+		return entry != null && !entry.isDirectory() ? entry : null;
+	}
+	
+	/**
+	 * @return the DLNA flags, the same as in the protocol info of the resource
+	 */
+	private static String getContentFeatures(LibraryEntry entry) {
+		// The tags were read when the item was browsed
+		final LibraryRoots roots = HeimklangServiceRegistry.getLibraryRoots();
+		final ProtocolInfo protocolInfo = ContentDirectoryServiceImpl.getProtocolInfo(entry, roots != null ? roots.getTags(entry) : null);
+		return protocolInfo != null ? protocolInfo.getAdditionalInfo() : null;
+	}
+	
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		final String pathInContext = request.getPathInfo();
+		final FileStreamer streamer = HeimklangServiceRegistry.getFileStreamer();
+		
+		if (isWelcomePage(pathInContext) || streamer == null) {
+			super.doGet(request, response);
+			return;
+		}
+		
+		final LibraryEntry entry = getEntry(pathInContext);
+		if (entry == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		
+		streamer.send(request, response, entry, getContentFeatures(entry), false);
+	}
+
 	@Override
 	protected void doHead(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-
-		String pathInContext = request.getPathInfo();
+		final String pathInContext = request.getPathInfo();
+		final FileStreamer streamer = HeimklangServiceRegistry.getFileStreamer();
+		
+		if (isWelcomePage(pathInContext) || streamer == null) {
+			super.doHead(request, response);
+			return;
+		}
 		
 		try {
-			response.addHeader("Cache-control", "no-cache");
-			
-			File fileToServe = decodeItemIdPath(pathInContext);
-					
-			if (fileToServe != null) {				
-				response.setContentLengthLong(fileToServe.length());
-				response.addHeader("Content-Type", ContentDirectoryServiceImpl.fileExtensionMimeTypes.getMimeByExtension(fileToServe.getName()));
-				response.setStatus(HttpServletResponse.SC_OK);
+			final LibraryEntry entry = getEntry(pathInContext);
+			if (entry != null) {
+				streamer.send(request, response, entry, getContentFeatures(entry), true);
 			} else {
 				response.setStatus(HttpServletResponse.SC_NOT_FOUND);
 			}
@@ -74,7 +157,6 @@ public class ContentByIdServlet extends DefaultServlet {
 			LOGGER.warn("Could not serve item '" + pathInContext + "'", t);
 			try { 
 				response.reset(); 
-				response.addHeader("Cache-control", "no-cache");
 			} catch (Throwable ignore) { 
 				// Ignore
 			}
@@ -82,7 +164,6 @@ public class ContentByIdServlet extends DefaultServlet {
 		}
 			
 		response.flushBuffer();
-		
 	}
 	
 }
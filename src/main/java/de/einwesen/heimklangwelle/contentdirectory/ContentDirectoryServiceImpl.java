@@ -1,30 +1,38 @@
 package de.einwesen.heimklangwelle.contentdirectory;
 
 import java.io.File;
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.net.URI;
 import java.util.ArrayList;
-import java.util.Base64;
-import java.util.Base64.Decoder;
-import java.util.Base64.Encoder;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import org.eclipse.jetty.http.MimeTypes;
+import org.jupnp.binding.annotations.UpnpStateVariable;
 import org.jupnp.support.contentdirectory.AbstractContentDirectoryService;
 import org.jupnp.support.contentdirectory.ContentDirectoryErrorCode;
 import org.jupnp.support.contentdirectory.ContentDirectoryException;
-import org.jupnp.support.contentdirectory.DIDLParser;
 import org.jupnp.support.model.BrowseFlag;
 import org.jupnp.support.model.BrowseResult;
-import org.jupnp.support.model.DIDLContent;
+import org.jupnp.support.model.DIDLAttribute;
 import org.jupnp.support.model.DIDLObject;
+import org.jupnp.support.model.PersonWithRole;
+import org.jupnp.support.model.Protocol;
 import org.jupnp.support.model.ProtocolInfo;
 import org.jupnp.support.model.Res;
 import org.jupnp.support.model.SortCriterion;
+import org.jupnp.support.model.container.Container;
+import org.jupnp.support.model.container.MusicAlbum;
+import org.jupnp.support.model.container.MusicArtist;
+import org.jupnp.support.model.container.MusicGenre;
 import org.jupnp.support.model.container.StorageFolder;
 import org.jupnp.support.model.container.StorageSystem;
 import org.jupnp.support.model.container.StorageVolume;
@@ -36,21 +44,47 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.einwesen.heimklangwelle.HeimklangServiceRegistry;
+import de.einwesen.heimklangwelle.contentdirectory.library.LibraryEntry;
+import de.einwesen.heimklangwelle.contentdirectory.library.LibraryRoot;
+import de.einwesen.heimklangwelle.contentdirectory.library.LibraryRoots;
+import de.einwesen.heimklangwelle.contentdirectory.library.ObjectIdTable;
+import de.einwesen.heimklangwelle.contentdirectory.library.SearchCriteria;
+import de.einwesen.heimklangwelle.contentdirectory.library.SearchIndex;
+import de.einwesen.heimklangwelle.contentdirectory.library.SortOrder;
+import de.einwesen.heimklangwelle.contentdirectory.library.VirtualLibrary;
+import de.einwesen.heimklangwelle.contentdirectory.tags.MediaTags;
+import de.einwesen.heimklangwelle.contentdirectory.tags.SeekTableReader;
+import de.einwesen.heimklangwelle.upnpsupport.AbstractConnectionManagerService;
 
 //UPNP annotations are inherited from parent
 public class ContentDirectoryServiceImpl extends AbstractContentDirectoryService {
 	
 	private static final Logger LOGGER = LoggerFactory.getLogger(ContentDirectoryServiceImpl.class);
 		
-	private static final Map<String, ProtocolInfo> supportedMimetypeProtocols = new HashMap<>();
-	{
-		for (ProtocolInfo info : MediaServerConnectionManagerServiceImpl.SUPPORTED_PROTOCOLS) {
-			supportedMimetypeProtocols.put(info.getContentFormat(), info);
-		}		
-	}
+	public static final String CONFIG_PROPERTY_NOLIBRARYINDEX = "HEIMKLANG_CONFIG_NOLIBRARYINDEX";
+	public static final String CONFIG_PROPERTY_NOLIBRARYSNAPSHOT = "HEIMKLANG_CONFIG_NOLIBRARYSNAPSHOT";
+	public static final String CONFIG_PROPERTY_LIBRARY_ROOTS = "HEIMKLANG_CONFIG_LIBRARY_ROOTS";
+	public static final String CONFIG_PROPERTY_LIBRARY_INCLUDE = "HEIMKLANG_CONFIG_LIBRARY_INCLUDE";
+	public static final String CONFIG_PROPERTY_LIBRARY_EXCLUDE = "HEIMKLANG_CONFIG_LIBRARY_EXCLUDE";
+	public static final String CONFIG_PROPERTY_LIBRARY_PRESCAN = "HEIMKLANG_CONFIG_LIBRARY_PRESCAN";
+	public static final String CONFIG_PROPERTY_LIBRARY_POLL_INTERVAL = "HEIMKLANG_CONFIG_LIBRARY_POLL_INTERVAL";
+	public static final String CONFIG_PROPERTY_LIBRARY_SCAN_THREADS = "HEIMKLANG_CONFIG_LIBRARY_SCAN_THREADS";
+	public static final String CONFIG_PROPERTY_CHILDCOUNT_CACHE_SIZE = "HEIMKLANG_CONFIG_CHILDCOUNT_CACHE_SIZE";
+	public static final String CONFIG_PROPERTY_COLLATION_LOCALE = "HEIMKLANG_CONFIG_COLLATION_LOCALE";
+	public static final String CONFIG_PROPERTY_RECENTLY_ADDED_SIZE = "HEIMKLANG_CONFIG_RECENTLY_ADDED_SIZE";
+	public static final String CONFIG_PROPERTY_BROWSE_CACHE_SIZE = "HEIMKLANG_CONFIG_BROWSE_CACHE_SIZE";
+	public static final String CONFIG_PROPERTY_NOALBUMART = "HEIMKLANG_CONFIG_NOALBUMART";
+	public static final String CONFIG_PROPERTY_TRANSCODE = "HEIMKLANG_CONFIG_TRANSCODE";
+	public static final String CONFIG_PROPERTY_TRANSCODE_COMMAND = "HEIMKLANG_CONFIG_TRANSCODE_COMMAND";
+	public static final String CONFIG_PROPERTY_TRANSCODE_PROCESSES = "HEIMKLANG_CONFIG_TRANSCODE_PROCESSES";
+	public static final String CONFIG_PROPERTY_TRANSCODE_CACHE_SIZE = "HEIMKLANG_CONFIG_TRANSCODE_CACHE_SIZE";
+	public static final String CONFIG_PROPERTY_HOT_FILE_CACHE_SIZE = "HEIMKLANG_CONFIG_HOT_FILE_CACHE_SIZE";
+	public static final String CONFIG_PROPERTY_HOT_FILE_MAX_SIZE = "HEIMKLANG_CONFIG_HOT_FILE_MAX_SIZE";
+	public static final String CONFIG_PROPERTY_PREFETCH_TRACKS = "HEIMKLANG_CONFIG_PREFETCH_TRACKS";
+	public static final String CONFIG_PROPERTY_PREFETCH_RATE = "HEIMKLANG_CONFIG_PREFETCH_RATE";
 	
 	public static MimeTypes fileExtensionMimeTypes = new MimeTypes();
-	{
+	static {
 		fileExtensionMimeTypes.addMimeMapping("mp3", "audio/mpeg");
 		fileExtensionMimeTypes.addMimeMapping("flac", "audio/flac");
 		fileExtensionMimeTypes.addMimeMapping("ogg", "audio/ogg");
@@ -64,19 +98,236 @@ public class ContentDirectoryServiceImpl extends AbstractContentDirectoryService
 		fileExtensionMimeTypes.addMimeMapping("png", "image/png");
 		fileExtensionMimeTypes.addMimeMapping("jpg", "image/jpeg");
 		fileExtensionMimeTypes.addMimeMapping("gif", "image/gif");
+		// Only listed, if transcoding is configured for them
+		fileExtensionMimeTypes.addMimeMapping("wav", "audio/wav");
+		fileExtensionMimeTypes.addMimeMapping("aiff", "audio/aiff");
+		fileExtensionMimeTypes.addMimeMapping("ape", "audio/x-ape");
+		fileExtensionMimeTypes.addMimeMapping("wv", "audio/x-wavpack");
+		fileExtensionMimeTypes.addMimeMapping("opus", "audio/opus");
+		fileExtensionMimeTypes.addMimeMapping("wma", "audio/x-ms-wma");
+		fileExtensionMimeTypes.addMimeMapping("dsf", "audio/x-dsf");
 	}	
 	
-	private static final Encoder BASE64ENCODER = Base64.getUrlEncoder().withoutPadding();
-	private static final Decoder BASE64DECODER = Base64.getUrlDecoder();
+	private static final MimeTypeResolver MIMETYPE_RESOLVER = new MimeTypeResolver(fileExtensionMimeTypes, MediaServerConnectionManagerServiceImpl.SUPPORTED_PROTOCOLS);
+	
+	// Object ids are numbers otherwise, so virtual containers can not be mistaken for files
+	private static final String VIRTUAL_ID_PREFIX = "~";
+	
+	// Spec says at most every 2 seconds
+	private static final long CONTAINER_UPDATE_EVENT_MILLIS = 2000;
+	
+	// The list of changed containers is not meant to describe a whole scan
+	private static final int MAX_CONTAINER_UPDATES_PER_EVENT = 100;
+	
+	@UpnpStateVariable(name = "ContainerUpdateIDs", sendEvents = true, datatype = "string", defaultValue = "")
+	private volatile String containerUpdateIDs = "";
+	
+	private final LibraryRoots libraryRoots;
+	private final SearchIndex searchIndex;
+	private final VirtualLibrary virtualLibrary;
+	private final BrowseResultCache browseCache;
+	private final AlbumArtService albumArt;
+	private final TranscodeService transcoder;
+	
+	// Bumped on every change, the update id of the root and the virtual containers
+	private final AtomicLong libraryUpdateId = new AtomicLong();
+	private final Map<String, Long> containerUpdateIds = new ConcurrentHashMap<>();
+	private final LinkedHashMap<String, Long> pendingContainerUpdates = new LinkedHashMap<>();
+	
+	public ContentDirectoryServiceImpl() {
+		super(HeimklangServiceRegistry.getSearchIndex() != null ? SearchIndex.SEARCH_CAPABILITIES : Collections.emptyList(), SortOrder.SORT_CAPABILITIES);
+		this.libraryRoots = HeimklangServiceRegistry.getLibraryRoots();
+		this.searchIndex = HeimklangServiceRegistry.getSearchIndex();
+		this.virtualLibrary = HeimklangServiceRegistry.getVirtualLibrary();
+		this.browseCache = HeimklangServiceRegistry.getBrowseResultCache();
+		this.albumArt = HeimklangServiceRegistry.getAlbumArtService();
+		this.transcoder = HeimklangServiceRegistry.getTranscodeService();
+		
+		this.libraryRoots.addChangeListener(this::containerChanged);
+		if (this.virtualLibrary != null) {
+			this.virtualLibrary.addChangeListener(this::viewsChanged);
+		}
+		
+		final ScheduledExecutorService eventScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			final Thread t = new Thread(r, "ContainerUpdateEvents");
+			t.setDaemon(true);
+			return t;
+		});
+		eventScheduler.scheduleWithFixedDelay(this::sendContainerUpdates, CONTAINER_UPDATE_EVENT_MILLIS, CONTAINER_UPDATE_EVENT_MILLIS, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * A change of a directory changes its own listing, and the child count shown in the listing of its parent.
+	 * Containers no client has seen yet have no id, and nothing to tell about.
+	 */
+	private void containerChanged(File directory, List<LibraryEntry> added, List<LibraryEntry> removed) {
+		final long updateId = this.libraryUpdateId.incrementAndGet();
+		
+		final ArrayList<String> changed = new ArrayList<>(2);
+		final String directoryId = findItemId(directory);
+		if (directoryId != null) {
+			changed.add(directoryId);
+		}
+		if (directory.getAbsoluteFile().getParentFile() != null && this.libraryRoots.getRootAt(directory) == null) {
+			final String parentId = findItemId(directory.getAbsoluteFile().getParentFile());
+			if (parentId != null) {
+				changed.add(parentId);
+			}
+		}
+		
+		for (String objectId : changed) {
+			this.containerUpdateIds.put(objectId, updateId);
+		}
+		
+		synchronized (this.pendingContainerUpdates) {
+			for (String objectId : changed) {
+				// Keeps the most recent changes last
+				this.pendingContainerUpdates.remove(objectId);
+				this.pendingContainerUpdates.put(objectId, updateId);
+			}
+		}
+	}
+	
+	/**
+	 * Groups change once the tags of a file were read, well after the change of its directory. 
+	 * All virtual containers share the library update id, so it is bumped again.
+	 */
+	private void viewsChanged(Set<VirtualLibrary.View> views) {
+		final long updateId = this.libraryUpdateId.incrementAndGet();
+		synchronized (this.pendingContainerUpdates) {
+			for (VirtualLibrary.View view : views) {
+				final String objectId = VIRTUAL_ID_PREFIX + view.name().toLowerCase();
+				this.pendingContainerUpdates.remove(objectId);
+				this.pendingContainerUpdates.put(objectId, updateId);
+			}
+		}
+	}
+	
+	private void sendContainerUpdates() {
+		final StringBuilder value = new StringBuilder();
+		synchronized (this.pendingContainerUpdates) {
+			if (this.pendingContainerUpdates.isEmpty()) {
+				return;
+			}
+			
+			int skip = this.pendingContainerUpdates.size() - MAX_CONTAINER_UPDATES_PER_EVENT;
+			for (Map.Entry<String, Long> update : this.pendingContainerUpdates.entrySet()) {
+				if (skip-- > 0) {
+					continue;
+				}
+				value.append(value.length() > 0 ? "," : "").append(update.getKey()).append(',').append(update.getValue());
+			}
+			this.pendingContainerUpdates.clear();
+		}
+		
+		try {
+			final String oldValue = this.containerUpdateIDs;
+			this.containerUpdateIDs = value.toString();
+			getPropertyChangeSupport().firePropertyChange("ContainerUpdateIDs", oldValue, this.containerUpdateIDs);
+			changeSystemUpdateID();
+		} catch (Throwable t) {
+			LOGGER.debug("Could not send container updates", t);
+		}
+	}
+	
+	/**
+	 * @return the update id the content of the object depends on, or -1 if it can not be cached
+	 */
+	private long getCacheUpdateId(String objectID) {
+		if (objectID.startsWith(VIRTUAL_ID_PREFIX)) {
+			return this.libraryUpdateId.get();
+		}
+		
+		if ("0".equals(objectID)) {
+			// The child counts of the roots are only up to date, if all roots are watched
+			for (LibraryRoot root : this.libraryRoots.getRoots()) {
+				if (!isWatched(root) || !root.getIndex().isCurrent(root.getDirectory())) {
+					return -1;
+				}
+			}
+			return this.libraryUpdateId.get();
+		}
+		
+		final File file = decodeItemId(objectID);
+		final LibraryRoot root = file != null ? this.libraryRoots.getRoot(file) : null;
+		if (root == null || !isWatched(root)) {
+			return -1;
+		}
+		
+		// Network mounts send no events, a change would only be noticed by the next poll. 
+		// A stale listing is not served from the cache, listing it again bumps the update id.
+		final File parent = file.getAbsoluteFile().getParentFile();
+		final boolean isRoot = this.libraryRoots.getRootAt(file) != null;
+		if (root.getIndex().contains(file)) {
+			if (!root.getIndex().isCurrent(file)) {
+				return -1;
+			}
+		} else {
+			// An item, or a directory not listed yet, whose child count could change unnoticed
+			if (isRoot || parent == null || !root.getIndex().isCurrent(parent)) {
+				return -1;
+			}
+			final LibraryEntry entry = root.getIndex().getEntry(file);
+			if (entry == null || entry.isDirectory()) {
+				return -1;
+			}
+		}
+		
+		// An item only changes with the listing of its parent, a container with its own. 
+		// The parent of a root is not shared, and never gets an id.
+		final String parentId = isRoot || parent == null ? null : findItemId(parent);
+		return Math.max(getContainerUpdateId(objectID), parentId != null ? getContainerUpdateId(parentId) : 0);
+	}
+	
+	private static boolean isWatched(LibraryRoot root) {
+		return root.getWatcher() != null && root.getIndex().isRetainingListings();
+	}
+	
+	private long getContainerUpdateId(String objectID) {
+		if (objectID.startsWith(VIRTUAL_ID_PREFIX) || "0".equals(objectID)) {
+			return this.libraryUpdateId.get();
+		}
+		return this.containerUpdateIds.getOrDefault(objectID, 0L);
+	}
 
 	@Override
 	public BrowseResult browse(String objectID, BrowseFlag browseFlag, String metadataFieldFilter, long firstResult, long maxResults,
 			SortCriterion[] orderby) throws ContentDirectoryException {
+		
+		final long cacheUpdateId = this.browseCache.isEnabled() ? getCacheUpdateId(objectID) : -1;
+		final String cacheKey = cacheUpdateId > -1
+				? String.join("\n", objectID, String.valueOf(browseFlag), metadataFieldFilter, String.valueOf(firstResult), String.valueOf(maxResults), 
+						toSortCriteria(orderby), String.valueOf(cacheUpdateId))
+				: null;
+		
+		if (cacheKey != null) {
+			final BrowseResult cached = this.browseCache.get(cacheKey);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		
+		final BrowseResult generated = browseUncached(objectID, browseFlag, metadataFieldFilter, firstResult, maxResults, orderby);
+		final BrowseResult result = new BrowseResult(generated.getResult(), generated.getCountLong(), generated.getTotalMatchesLong(), getContainerUpdateId(objectID));
+		
+		if (cacheKey != null) {
+			this.browseCache.put(cacheKey, result);
+		}
+		return result;
+	}
+	
+	private BrowseResult browseUncached(String objectID, BrowseFlag browseFlag, String metadataFieldFilter, long firstResult, long maxResults,
+			SortCriterion[] orderby) throws ContentDirectoryException {
 
 		try {
-			ArrayList<DIDLObject> didlObjects = new ArrayList<>();
+			final ArrayList<DIDLObject> didlObjects = new ArrayList<>();
+			long totalMatches = 0;
 			LOGGER.trace("%s \"%s\" (%s) %d - %d".formatted(browseFlag, objectID, metadataFieldFilter, firstResult, maxResults));			
 			
+			if (objectID.startsWith(VIRTUAL_ID_PREFIX)) {
+				return browseVirtual(objectID, browseFlag, firstResult, maxResults, orderby);
+			}
+			
 			// root container
 			if ("0".equals(objectID)) {
 				
@@ -87,22 +338,38 @@ public class ContentDirectoryServiceImpl extends AbstractContentDirectoryService
 						rootContainer.setParentID("-1"); // no parent
 						rootContainer.setTitle(cleanTitle("SystemRoots"));
 						rootContainer.setRestricted(true);
-						rootContainer.setSearchable(false);
-						rootContainer.setChildCount(File.listRoots().length);
+						rootContainer.setSearchable(this.searchIndex != null);
+						rootContainer.setChildCount(this.libraryRoots.getRoots().size() + (this.virtualLibrary != null ? VirtualLibrary.View.values().length : 0));
 						didlObjects.add(rootContainer);
+						totalMatches = 1;
 						break;
 					case DIRECT_CHILDREN: // Return children						
+						final List<Supplier<DIDLObject>> rootChildren = new ArrayList<>();
 						
-						for (File drive : File.listRoots()) {
-							StorageVolume  driveContainer = new StorageVolume();						
-							driveContainer.setId(encodeItemId(drive));
-							driveContainer.setParentID("0");
-							driveContainer.setTitle(cleanTitle(drive.getAbsolutePath()));
-							driveContainer.setRestricted(true);
-							driveContainer.setSearchable(false);
-							driveContainer.setChildCount(getChildCount(drive));
-							didlObjects.add(driveContainer);        		
-						}											
+						if (this.virtualLibrary != null) {
+							for (VirtualLibrary.View view : VirtualLibrary.View.values()) {
+								rootChildren.add(() -> newViewContainer(view));
+							}
+						}
+						
+						// Already sorted by name
+						for (LibraryRoot root : this.libraryRoots.getRoots()) {
+							rootChildren.add(() -> {
+								StorageVolume  driveContainer = new StorageVolume();						
+								driveContainer.setId(encodeItemId(root.getDirectory()));
+								driveContainer.setParentID("0");
+								driveContainer.setTitle(cleanTitle(root.getName()));
+								driveContainer.setRestricted(true);
+								driveContainer.setSearchable(this.searchIndex != null);
+								driveContainer.setChildCount(getChildCount(root.getDirectory()));
+								return driveContainer;
+							});
+						}
+						
+						for (Supplier<DIDLObject> child : getPage(rootChildren, firstResult, maxResults)) {
+							didlObjects.add(child.get());
+						}
+						totalMatches = rootChildren.size();
 						break;
 				default:
 					throw new IllegalArgumentException("browseFlag = " + browseFlag);
@@ -111,28 +378,29 @@ public class ContentDirectoryServiceImpl extends AbstractContentDirectoryService
 			} else {
 				
 				final File requestedObject = decodeItemId(objectID);
-				LOGGER.trace("Decoded:" + requestedObject.getAbsolutePath());
+				LOGGER.trace("Decoded:" + requestedObject);
+				
+				final LibraryEntry requestedEntry = getEntry(requestedObject);
 				
-				if (requestedObject.exists() && requestedObject.canRead()) {
+				if (requestedEntry != null) {
 					
 					switch (browseFlag) {
 						case METADATA:					
-							didlObjects.add(getTypedDIDLObject(requestedObject));
+							didlObjects.add(getTypedDIDLObject(requestedEntry));
+							totalMatches = 1;
 							break;
 						case DIRECT_CHILDREN:
-							if (requestedObject.isDirectory()) { 
-								final File[] children = requestedObject.listFiles();
-								if (children != null) {
-									for (File child : children) {
-										if (!child.isHidden()) {
-											final DIDLObject typedDIDLObject = getTypedDIDLObject(child);
-											if (typedDIDLObject != null) {
-												didlObjects.add(typedDIDLObject);										
-											}
-											
-										}
-									}																	
+							if (requestedEntry.isDirectory()) {
+								// The sorted order is kept by the index, everything else is just built for the requested page
+								final List<LibraryEntry> children = getSortedChildren(requestedEntry.getFile(), getSortOrder(orderby));
+								
+								for (LibraryEntry child : getPage(children, firstResult, maxResults)) {
+									final DIDLObject typedDIDLObject = getTypedDIDLObject(child);
+									if (typedDIDLObject != null) {
+										didlObjects.add(typedDIDLObject);
+									}
 								}
+								totalMatches = children.size();
 							} else {
 								throw new ContentDirectoryException(ContentDirectoryErrorCode.CANNOT_PROCESS, "Object is not an container"); 
 							}
@@ -147,108 +415,403 @@ public class ContentDirectoryServiceImpl extends AbstractContentDirectoryService
 				
 			}
 
+			return toBrowseResult(didlObjects, totalMatches);
+		
+		} catch (ContentDirectoryException c) {
+			throw c;
+		} catch (Throwable t) {
+			LOGGER.debug("Unexpected error", t);
+			throw new ContentDirectoryException(ContentDirectoryErrorCode.CANNOT_PROCESS.getCode(),t.toString());			
+		}
+		
+	}
+	
+	@Override
+	public BrowseResult search(String containerId, String searchCriteria, String filterString, long firstResult, long maxResults,
+			SortCriterion[] orderBy) throws ContentDirectoryException {
+		
+		if (this.searchIndex == null) {
+			throw new ContentDirectoryException(ContentDirectoryErrorCode.CANNOT_PROCESS, "Search requires the library index");
+		}
+		
+		try {
+			LOGGER.trace("SEARCH \"%s\" in \"%s\" %d - %d".formatted(searchCriteria, containerId, firstResult, maxResults));
 			
-			final DIDLContent didl = new DIDLContent();
-			if (didlObjects.size() > 0) {
+			final SearchCriteria criteria;
+			try {
+				criteria = SearchCriteria.parse(searchCriteria);
+			} catch (IllegalArgumentException e) {
+				throw new ContentDirectoryException(ContentDirectoryErrorCode.UNSUPPORTED_SEARCH_CRITERIA, e.getMessage());
+			}
 			
-				if (firstResult < didlObjects.size()) {
-					
-					if (didlObjects.size() > 1) {
-						// We sort for convinience, but also need predictable order for paging
-						
-						//TODO: Needs to take locale into account 
-						didlObjects.sort(new Comparator<DIDLObject>() {
-							@Override
-							public int compare(DIDLObject o1, DIDLObject o2) {
-								return o1.getTitle().toLowerCase().compareTo(o2.getTitle().toLowerCase());
-							}				
-						});
-					}
-					
-					final int maxEntry = Long.valueOf(Math.max(Math.min(firstResult + maxResults, didlObjects.size()),1)).intValue();
-					for (DIDLObject dObj : didlObjects.subList(Long.valueOf(firstResult).intValue(), maxEntry)) {
-						didl.addObject(dObj);					
+			File scope = null;
+			if (!"0".equals(containerId)) {
+				final LibraryEntry container = getEntry(decodeItemId(containerId));
+				if (container == null || !container.isDirectory()) {
+					throw new ContentDirectoryException(ContentDirectoryErrorCode.NO_SUCH_CONTAINER, containerId);
+				}
+				scope = container.getFile();
+			}
+			
+			// Only the matches are sorted, which are usually few compared to the library
+			final List<LibraryEntry> matches = getSortOrder(orderBy).sort(this.searchIndex.search(criteria, scope), this.libraryRoots.getCollator(), this.libraryRoots::getTags);
+			
+			final ArrayList<DIDLObject> didlObjects = new ArrayList<>();
+			if (firstResult < matches.size()) {
+				for (LibraryEntry match : getPage(matches, firstResult, maxResults)) {
+					final DIDLObject typedDIDLObject = getTypedDIDLObject(match);
+					if (typedDIDLObject != null) {
+						didlObjects.add(typedDIDLObject);
 					}
-					
-					
-				} else {
-					throw new IllegalArgumentException("firstresult > childCount ("+didlObjects.size()+")");
 				}
 			}
 			
-			final String xml = new DIDLParser().generate(didl);
-			return new org.jupnp.support.model.BrowseResult(xml, didl.getCount(), didlObjects.size());
-		
+			return toBrowseResult(didlObjects, matches.size());
+			
 		} catch (ContentDirectoryException c) {
 			throw c;
 		} catch (Throwable t) {
 			LOGGER.debug("Unexpected error", t);
 			throw new ContentDirectoryException(ContentDirectoryErrorCode.CANNOT_PROCESS.getCode(),t.toString());			
 		}
-		
 	}
 	
-	private static int getChildCount(File parent) {
-		int count = 0;
-
-		final File[] children = parent.listFiles();
-		if (children != null) {
-			for (File child : children) {
-				if (child.canRead() && !child.isHidden()) {
-					if (child.isDirectory()) {
-						count += 1;
+	/**
+	 * Browses the artist, album, genre and recently added containers. Nothing of this touches the filesystem. 
+	 */
+	private BrowseResult browseVirtual(String objectID, BrowseFlag browseFlag, long firstResult, long maxResults, SortCriterion[] orderby) throws Exception {
+		// e.g. "~artists" or "~artists~<key>"
+		final String[] parts = objectID.substring(VIRTUAL_ID_PREFIX.length()).split(VIRTUAL_ID_PREFIX, 2);
+		final VirtualLibrary.View view = this.virtualLibrary != null ? getView(parts[0]) : null;
+		
+		if (view == null) {
+			throw new ContentDirectoryException(ContentDirectoryErrorCode.NO_SUCH_OBJECT, objectID);
+		}
+		
+		final ArrayList<DIDLObject> didlObjects = new ArrayList<>();
+		final long totalMatches;
+		
+		if (parts.length == 1) {
+			switch (browseFlag) {
+				case METADATA:
+					didlObjects.add(newViewContainer(view));
+					totalMatches = 1;
+					break;
+				case DIRECT_CHILDREN:
+					if (view == VirtualLibrary.View.RECENT) {
+						final SortOrder order = getSortOrder(orderby, view.getDefaultOrder());
+						final List<LibraryEntry> recent = order.equals(view.getDefaultOrder()) ? this.virtualLibrary.getRecent() 
+								: order.sort(this.virtualLibrary.getRecent(), this.libraryRoots.getCollator(), this.libraryRoots::getTags);
+						addVirtualMembers(didlObjects, objectID, getPage(recent, firstResult, maxResults));
+						totalMatches = recent.size();
 					} else {
-						final String mimeTypeStr = getMimetype(child);
-						if (mimeTypeStr != null && supportedMimetypeProtocols.get(mimeTypeStr) != null) {
-							count += 1; 
+						final List<VirtualLibrary.Group> groups = this.virtualLibrary.getGroups(view);
+						for (VirtualLibrary.Group group : getPage(groups, firstResult, maxResults)) {
+							didlObjects.add(newGroupContainer(group));
 						}
+						totalMatches = groups.size();
 					}
-				}
-			}			
+					break;
+				default:
+					throw new IllegalArgumentException("browseFlag = " + browseFlag);
+			}
+		} else {
+			final String groupKey = decodeVirtualId(VIRTUAL_ID_PREFIX + parts[0] + VIRTUAL_ID_PREFIX, parts[1]);
+			final VirtualLibrary.Group group = groupKey != null ? this.virtualLibrary.getGroup(view, groupKey) : null;
+			if (group == null) {
+				throw new ContentDirectoryException(ContentDirectoryErrorCode.NO_SUCH_OBJECT, objectID);
+			}
+			
+			switch (browseFlag) {
+				case METADATA:
+					didlObjects.add(newGroupContainer(group));
+					totalMatches = 1;
+					break;
+				case DIRECT_CHILDREN:
+					final List<LibraryEntry> members = group.getMembers(getSortOrder(orderby, view.getDefaultOrder()));
+					addVirtualMembers(didlObjects, objectID, getPage(members, firstResult, maxResults));
+					totalMatches = members.size();
+					break;
+				default:
+					throw new IllegalArgumentException("browseFlag = " + browseFlag);
+			}
 		}
 		
-		return count;		
+		return toBrowseResult(didlObjects, totalMatches);
+	}
+	
+	private void addVirtualMembers(List<DIDLObject> didlObjects, String containerId, List<LibraryEntry> members) {
+		for (LibraryEntry member : members) {
+			final DIDLObject typedDIDLObject = getTypedDIDLObject(member);
+			if (typedDIDLObject != null) {
+				typedDIDLObject.setParentID(containerId);
+				didlObjects.add(typedDIDLObject);
+			}
+		}
+	}
+	
+	private static VirtualLibrary.View getView(String name) {
+		for (VirtualLibrary.View view : VirtualLibrary.View.values()) {
+			if (view.name().equalsIgnoreCase(name)) {
+				return view;
+			}
+		}
+		return null;
+	}
+	
+	private Container newViewContainer(VirtualLibrary.View view) {
+		final Container container = new Container();
+		container.setClazz(new DIDLObject.Class("object.container"));
+		container.setId(VIRTUAL_ID_PREFIX + view.name().toLowerCase());
+		container.setParentID("0");
+		container.setTitle(view.getTitle());
+		container.setRestricted(true);
+		container.setSearchable(false);
+		container.setChildCount(this.virtualLibrary.getSize(view));
+		return container;
+	}
+	
+	private Container newGroupContainer(VirtualLibrary.Group group) {
+		final Container container;
+		switch (group.getView()) {
+			case ARTISTS:
+				container = new MusicArtist();
+				break;
+			case ALBUMS:
+				container = new MusicAlbum();
+				break;
+			default:
+				container = new MusicGenre();
+				break;
+		}
+		
+		final String parentId = VIRTUAL_ID_PREFIX + group.getView().name().toLowerCase();
+		container.setId(parentId + VIRTUAL_ID_PREFIX + getObjectIds().getId(parentId + VIRTUAL_ID_PREFIX + group.getKey()));
+		container.setParentID(parentId);
+		container.setTitle(cleanTitle(group.getName()));
+		container.setRestricted(true);
+		container.setSearchable(false);
+		container.setChildCount(group.getSize());
+		
+		if (group.getView() == VirtualLibrary.View.ALBUMS) {
+			// The members are sorted by track already, the first one is as good as any
+			final List<LibraryEntry> members = group.getMembers(group.getView().getDefaultOrder());
+			if (!members.isEmpty()) {
+				addAlbumArt(container, members.get(0), this.libraryRoots.getTags(members.get(0)));
+			}
+		}
+		return container;
+	}
+	
+	private static BrowseResult toBrowseResult(List<DIDLObject> didlObjects, long totalMatches) throws Exception {
+		final DIDLWriter writer = new DIDLWriter();
+		for (DIDLObject dObj : didlObjects) {
+			writer.write(dObj);
+		}
+		
+		final int count = writer.getCount();
+		return new BrowseResult(writer.end(), count, totalMatches);
+	}
+	
+	/**
+	 * @return the entry, or null if the file is not within a root
+	 */
+	private LibraryEntry getEntry(File fileObject) {
+		return fileObject != null ? this.libraryRoots.getEntry(fileObject) : null;
+	}
+	
+	private List<LibraryEntry> getSortedChildren(File directory, SortOrder order) {
+		final LibraryRoot root = this.libraryRoots.getRoot(directory);
+		return root != null ? root.getIndex().getSortedChildren(directory, order) : Collections.emptyList();
+	}
+	
+	private static SortOrder getSortOrder(SortCriterion[] orderby) throws ContentDirectoryException {
+		return getSortOrder(orderby, SortOrder.BY_TITLE);
+	}
+	
+	private static SortOrder getSortOrder(SortCriterion[] orderby, SortOrder defaultOrder) throws ContentDirectoryException {
+		if (orderby == null || orderby.length == 0) {
+			return defaultOrder;
+		}
+		try {
+			return SortOrder.parse(toSortCriteria(orderby));
+		} catch (IllegalArgumentException e) {
+			throw new ContentDirectoryException(ContentDirectoryErrorCode.UNSUPPORTED_SORT_CRITERIA, e.getMessage());
+		}
+	}
+	
+	/**
+	 * @return e.g. "+dc:title,-dc:date", or "" if there are none
+	 */
+	private static String toSortCriteria(SortCriterion[] orderby) {
+		final StringBuilder criteria = new StringBuilder();
+		if (orderby != null) {
+			for (SortCriterion criterion : orderby) {
+				criteria.append(criteria.length() > 0 ? "," : "").append(criterion.isAscending() ? "+" : "-").append(criterion.getPropertyName());
+			}
+		}
+		return criteria.toString();
+	}
+	
+	private int getChildCount(File directory) {
+		final LibraryRoot root = this.libraryRoots.getRoot(directory);
+		return root != null ? root.getIndex().getChildCount(directory) : 0;
 	}	
 
-	private static DIDLObject getTypedDIDLObject(File fileObject) {
-		if (fileObject.isDirectory()) {
-			final StorageFolder folder =  new StorageFolder();
-			folder.setSearchable(false);
-			folder.setChildCount(getChildCount(fileObject));
-			if (folder.getChildCount().intValue()>0) {
-				return updateTypedObject(folder, fileObject, null);				
-			} else {
-				return null;
-			}
+	/**
+	 * @return the items within [firstResult, firstResult+maxResults) of an already sorted list
+	 * @param maxResults 0 means all
+	 */
+	private static <T> List<T> getPage(List<T> sorted, long firstResult, long maxResults) {
+		if (sorted.isEmpty()) {
+			return Collections.emptyList();
 		}
 		
-		final String mimeTypeStr = getMimetype(fileObject);
+		if (firstResult >= sorted.size()) {
+			throw new IllegalArgumentException("firstresult > childCount ("+sorted.size()+")");
+		}
 		
-		if (mimeTypeStr == null) return null;
+		final int fromIndex = (int) firstResult;
+		final int toIndex = maxResults > 0 ? (int) Math.min(firstResult + maxResults, sorted.size()) : sorted.size();
+		return sorted.subList(fromIndex, toIndex);
+	}
+
+	private DIDLObject getTypedDIDLObject(LibraryEntry entry) {
+		final DIDLObject dObj = newTypedObject(entry);
 		
+		if (dObj == null) return null;
 		
-		final ProtocolInfo protocolinfo = supportedMimetypeProtocols.get(mimeTypeStr);
+		if (dObj instanceof StorageFolder folder) {
+			folder.setSearchable(this.searchIndex != null);
+			folder.setChildCount(getChildCount(entry.getFile()));
+			updateTypedObject(folder, entry, null);
+			addAlbumArt(folder, entry, null);
+			
+			// A root is listed by its name, directly below "0"
+			final LibraryRoot root = this.libraryRoots.getRootAt(entry.getFile());
+			if (root != null) {
+				folder.setParentID("0");
+				folder.setTitle(cleanTitle(root.getName()));
+			}
+			return folder;
+		}
+		
+		// Only read for the requested page, or already cached 
+		final MediaTags tags = dObj instanceof MusicTrack || dObj instanceof VideoItem ? this.libraryRoots.getTags(entry) : null;
 		
-		if (protocolinfo == null) return null;		
+		final ProtocolInfo protocolinfo = getProtocolInfo(entry, tags);
+		final List<TranscodeService.Target> transcodes = this.transcoder != null ? this.transcoder.getTargets(entry.getMimeType()) : List.of();
+		
+		if (protocolinfo == null && transcodes.isEmpty()) return null;		
 
+		updateTypedObject(dObj, entry, protocolinfo);
+		
+		// After the original, renderers take the first one they can play
+		for (TranscodeService.Target target : transcodes) {
+			final ProtocolInfo transcodedInfo = new ProtocolInfo(Protocol.HTTP_GET, "*", target.getMimeType(), TranscodeServlet.CONTENT_FEATURES);
+			dObj.addResource(new Res(transcodedInfo, null, TranscodeServlet.getUrl(dObj.getId(), target)));
+		}
+		
+		if (tags != null) {
+			addTags(dObj, tags);
+			if (dObj instanceof MusicTrack) {
+				addAlbumArt(dObj, entry, tags);
+			}
+		}
+		
+		return dObj;
+	}
+	
+	/**
+	 * Adds upnp:albumArtURI, if the track has an embedded picture, or its folder has an image.
+	 * A folder is only looked into, if its listing is at hand, browsing should not list every subfolder.
+	 * 
+	 * @param tags of the track, or null for a folder
+	 */
+	private void addAlbumArt(DIDLObject dObj, LibraryEntry entry, MediaTags tags) {
+		if (this.albumArt == null) {
+			return;
+		}
+		
+		long version = -1;
+		if (tags != null && tags.hasCoverArt()) {
+			version = entry.getLastModified();
+		} else {
+			final File directory = entry.isDirectory() ? entry.getFile() : entry.getFile().getParentFile();
+			if (directory != null && this.libraryRoots.isIndexed(directory)) {
+				final LibraryEntry image = AlbumArtService.findFolderImage(this.libraryRoots.getChildren(directory));
+				version = image != null ? image.getLastModified() : -1;
+			}
+		}
+		
+		if (version > -1) {
+			final List<DIDLObject.Property<DIDLAttribute>> attributes = new ArrayList<>();
+			attributes.add(new DIDLObject.Property.DLNA.PROFILE_ID(new DIDLAttribute(DIDLObject.Property.DLNA.NAMESPACE.URI, "dlna", AlbumArtService.Profile.JPEG_TN.name())));
+			final String url = AlbumArtServlet.getUrl(encodeItemId(entry.getFile()), version, AlbumArtService.Profile.JPEG_TN);
+			dObj.addProperty(new DIDLObject.Property.UPNP.ALBUM_ART_URI(URI.create(url), attributes));
+		}
+	}
+	
+	private static void addTags(DIDLObject dObj, MediaTags tags) {
+		if (tags.getDurationString() != null) {
+			dObj.getFirstResource().setDuration(tags.getDurationString());
+		}
+		
+		if (dObj instanceof MusicTrack track) {
+			if (tags.getArtist() != null) {
+				track.setArtists(new PersonWithRole[] { new PersonWithRole(tags.getArtist()) });
+				track.setCreator(tags.getArtist());
+			}
+			if (tags.getAlbum() != null) {
+				track.setAlbum(tags.getAlbum());
+			}
+			if (tags.getTrackNumber() > 0) {
+				track.setOriginalTrackNumber(tags.getTrackNumber());
+			}
+			if (tags.getGenre() != null) {
+				track.setGenres(new String[] { tags.getGenre() });
+			}
+		}
+	}
+	
+	/**
+	 * @return an empty object of the matching type, or null if the entry can not be represented 
+	 */
+	private static DIDLObject newTypedObject(LibraryEntry entry) {
+		if (entry.isDirectory()) {
+			return new StorageFolder();
+		}
+		
+		final String mimeTypeStr = entry.getMimeType();
+		
+		if (mimeTypeStr == null) return null;
+		
 		if (mimeTypeStr.startsWith("audio/")) {
-			if (fileObject.getName().toLowerCase().endsWith("m3u") || fileObject.getName().toLowerCase().endsWith("m3u8")) {				
-				return updateTypedObject(new AudioItem(), fileObject, protocolinfo);
+			if (entry.getName().toLowerCase().endsWith("m3u") || entry.getName().toLowerCase().endsWith("m3u8")) {				
+				return new AudioItem();
 			} else {
-				return updateTypedObject(new MusicTrack(), fileObject, protocolinfo);
+				return new MusicTrack();
 			}
 		} else if (mimeTypeStr.startsWith("video/")) {
-			return updateTypedObject(new VideoItem(), fileObject, protocolinfo);
+			return new VideoItem();
 		} else if (mimeTypeStr.startsWith("image/")) {
-			return updateTypedObject(new ImageItem(), fileObject, protocolinfo);
+			return new ImageItem();
 		} 
 		
 		return null;
-		
+	}
+	
+	/**
+	 * @return the upnp:class the entry is listed with, or null if it is not listed at all
+	 */
+	public static String getUpnpClass(LibraryEntry entry) {
+		final DIDLObject dObj = newTypedObject(entry);
+		return dObj != null ? dObj.getClazz().getValue() : null;
 	}
 		
 	
-	private static <D extends DIDLObject> D updateTypedObject(D dObj, File filedObject, ProtocolInfo protocolinfo) {
+	private static <D extends DIDLObject> D updateTypedObject(D dObj, LibraryEntry entry, ProtocolInfo protocolinfo) {
+		final File filedObject = entry.getFile();
 		dObj.setId(encodeItemId(filedObject));
 		if (filedObject.getParentFile() != null) {
 			dObj.setParentID(encodeItemId(filedObject.getParentFile())); 			
@@ -262,56 +825,88 @@ public class ContentDirectoryServiceImpl extends AbstractContentDirectoryService
 		if (protocolinfo != null) {			
 			// We add the file extension to help jetty infer the mimetype mostly 
 			final String streamUrl = HeimklangServiceRegistry.getContentServerBase() + "/" + dObj.getId() + "."+ getFileExtension(filedObject);
-			dObj.addResource(new Res(protocolinfo, filedObject.length(), streamUrl));
+			dObj.addResource(new Res(protocolinfo, entry.getSize(), streamUrl));
 		}
 		return dObj;
 	}
 	
-
-	
-	private static String getMimetype(File child) {
-		String mimeTypeStr = null;
-		try {
-			mimeTypeStr = Files.probeContentType(Path.of(child.getAbsolutePath()));
-		} catch (IOException e) {
-			LOGGER.warn("\"" + child.getAbsolutePath() + "\" : " + e.toString() );
+	/**
+	 * @return the mimetype, or null if the file is not of a supported type
+	 */
+	public static String getSupportedMimetype(File child) {
+		final String supported = MIMETYPE_RESOLVER.getSupportedMimeType(child);
+		if (supported != null) {
+			return supported;
 		}
 		
-		if (mimeTypeStr == null) {
-			final String ext = getFileExtension(child);
-			if (ext != null) {
-				mimeTypeStr = fileExtensionMimeTypes.getMimeByExtension(mimeTypeStr);
-			}
-		}
+		final TranscodeService transcoder = HeimklangServiceRegistry.getTranscodeService();
+		final String mimeType = transcoder != null ? MIMETYPE_RESOLVER.getMimeType(child) : null;
+		return mimeType != null && transcoder.isTranscodable(mimeType) ? mimeType : null;
+	}
+
+	/**
+	 * @param tags of the file, or null if there are none
+	 * @return the protocol info of the file, time seek included only if it has a seek table. Null if the mimetype is not supported.
+	 */
+	public static ProtocolInfo getProtocolInfo(LibraryEntry entry, MediaTags tags) {
+		final ProtocolInfo protocolInfo = MIMETYPE_RESOLVER.getProtocolInfo(entry.getMimeType());
+		final FileStreamer streamer = HeimklangServiceRegistry.getFileStreamer();
 		
-		if (mimeTypeStr != null) {
-			mimeTypeStr = mimeTypeStr.toLowerCase();
+		// FileStreamer answers a time seek without a table with 406
+		if (protocolInfo != null && tags != null && tags.isTimeSeekable() && SeekTableReader.isSupported(entry.getMimeType()) 
+				&& streamer != null && streamer.getSeekTables() != null) {
+			return AbstractConnectionManagerService.newTimeSeekServerProtocolInfo(entry.getMimeType());
 		}
-		
-		return mimeTypeStr;
+		return protocolInfo;
+	}
+	
+	public static MimeTypeResolver getMimeTypeResolver() {
+		return MIMETYPE_RESOLVER;
 	}
 	
 	public static String getFileExtension(File child) {
-	    final String fileName = child.getName();
-	    final int lastIndex = fileName.lastIndexOf('.');
-	    if (lastIndex > 0 && lastIndex < fileName.length() - 1) { // dot not at start or end
-	        return fileName.substring(lastIndex + 1).toLowerCase(); // optionally lowercase
-	    } else {
-	    	return null;	    	
-	    }
+		return MimeTypeResolver.getExtension(child.getName());
 	}
 		
+	private static ObjectIdTable getObjectIds() {
+		return HeimklangServiceRegistry.getObjectIdTable();
+	}
+	
 	private static String encodeItemId(File fileObject) {		
-		// I used just teh absolute path before, and it worked semantically, but some device reject obcect with ids that contain : or \ it seems
-		return BASE64ENCODER.encodeToString(fileObject.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+		// Paths (even base64 encoded) made every response huge, and some devices reject ids that contain : or \ it seems
+		return String.valueOf(getObjectIds().getId(fileObject.getAbsolutePath()));
+	}
+	
+	/**
+	 * @return the id of the file, or null if it was never handed out. Other than {@link #encodeItemId(File)}, never assigns one.
+	 */
+	private static String findItemId(File fileObject) {
+		final int id = getObjectIds().findId(fileObject.getAbsolutePath());
+		return id > 0 ? String.valueOf(id) : null;
 	}
 	
+	/**
+	 * @return the file, or null if the id was never handed out for a file
+	 */
 	public static File decodeItemId(String objectId) {
-		return new File(new String(BASE64DECODER.decode(objectId), StandardCharsets.UTF_8));
+		final String key = decodeVirtualId("", objectId);
+		return key != null && new File(key).isAbsolute() ? new File(key) : null;
+	}
+	
+	/**
+	 * @return the key of the id without the prefix, or null if it is unknown or has another prefix
+	 */
+	private static String decodeVirtualId(String prefix, String id) {
+		try {
+			final String key = getObjectIds().getKey(Integer.parseInt(id));
+			return key != null && key.startsWith(prefix) ? key.substring(prefix.length()) : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
 	}
 	
 	private static String cleanTitle(String s) {
 		// At least some unnamed vendor devices has problems when this character is in a title
 		return s.replace("\\", "");
 	}
-}
+}
\ No newline at end of file
@@ -0,0 +1,359 @@
+package de.einwesen.heimklangwelle.contentdirectory;
+
+import java.util.List;
+
+import org.jupnp.support.model.DIDLAttribute;
+import org.jupnp.support.model.DIDLObject;
+import org.jupnp.support.model.DIDLObject.Property;
+import org.jupnp.support.model.PersonWithRole;
+import org.jupnp.support.model.Res;
+import org.jupnp.support.model.container.Container;
+import org.jupnp.support.model.item.Item;
+
+/**
+ * Writes DIDL-Lite straight into a {@link StringBuilder}, which is what {@link org.jupnp.support.contentdirectory.DIDLParser#generate}
+ * does by building a DOM document first and serializing that with a transformer. For a page of a thousand items,
+ * that is megabytes of garbage for a result of a few hundred kilobytes.
+ *
+ * The output is meant to be read by {@link org.jupnp.support.contentdirectory.DIDLParser#parse}, and contains the same
+ * elements and attributes. It is not byte for byte the same (e.g. attribute order).
+ *
+ * Builders are reused per thread, as long as they did not grow too big. So there must only be one writer at a time per thread.
+ */
+public class DIDLWriter {
+
+	public static final String NAMESPACE_DIDL = "urn:schemas-upnp-org:metadata-1-0/DIDL-Lite/";
+	public static final String NAMESPACE_DC = "http://purl.org/dc/elements/1.1/";
+	public static final String NAMESPACE_UPNP = "urn:schemas-upnp-org:metadata-1-0/upnp/";
+	public static final String NAMESPACE_DLNA = "urn:schemas-dlna-org:metadata-1-0/";
+	public static final String NAMESPACE_SEC = "http://www.sec.co.kr/";
+
+	private static final String HEADER = "<DIDL-Lite xmlns=\"" + NAMESPACE_DIDL + "\" xmlns:dc=\"" + NAMESPACE_DC
+			+ "\" xmlns:upnp=\"" + NAMESPACE_UPNP + "\" xmlns:dlna=\"" + NAMESPACE_DLNA + "\" xmlns:sec=\"" + NAMESPACE_SEC + "\">";
+	private static final String FOOTER = "</DIDL-Lite>";
+
+	// A builder that grew bigger than this, is not kept for the next one
+	private static final int MAX_REUSED_CAPACITY = 1024 * 1024;
+
+	private static final ThreadLocal<StringBuilder> BUILDERS = ThreadLocal.withInitial(() -> new StringBuilder(16 * 1024));
+
+	private final StringBuilder sb;
+	private int count = 0;
+
+	/**
+	 * Starts a new document
+	 */
+	public DIDLWriter() {
+		this.sb = BUILDERS.get();
+		this.sb.setLength(0);
+		this.sb.append(HEADER);
+	}
+
+	/**
+	 * @return number of top level objects written so far
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	public DIDLWriter write(DIDLObject dObj) {
+		if (dObj instanceof Container container) {
+			openContainer(container);
+			closeContainer();
+		} else if (dObj instanceof Item item) {
+			writeItem(item);
+			this.count += 1;
+		}
+		return this;
+	}
+
+	/**
+	 * Writes the start of the container element, items may follow until {@link #closeContainer()}.
+	 * Items and containers added to the container itself are not written.
+	 */
+	public DIDLWriter openContainer(Container container) {
+		this.sb.append("<container");
+		attribute("id", requireNonNull(container.getId(), "id", container));
+		attribute("parentID", requireNonNull(container.getParentID(), "parentID", container));
+		if (container.getChildCount() != null) {
+			attribute("childCount", container.getChildCount().toString());
+		}
+		attribute("restricted", container.isRestricted() ? "1" : "0");
+		attribute("searchable", container.isSearchable() ? "1" : "0");
+		this.sb.append('>');
+
+		writeCommon(container);
+
+		for (DIDLObject.Class searchClass : container.getSearchClasses()) {
+			writeClass("upnp:searchClass", searchClass, true);
+		}
+		for (DIDLObject.Class createClass : container.getCreateClasses()) {
+			writeClass("upnp:createClass", createClass, true);
+		}
+
+		writeProperties(container);
+		writeResources(container);
+		this.count += 1;
+		return this;
+	}
+
+	public DIDLWriter closeContainer() {
+		this.sb.append("</container>");
+		return this;
+	}
+
+	/**
+	 * Writes an item nested within an open container, which does not count as a top level object
+	 */
+	public DIDLWriter writeNestedItem(Item item) {
+		writeItem(item);
+		return this;
+	}
+
+	/**
+	 * Appends the content of another DIDL-Lite document as is, if it only uses the namespaces declared by this one.
+	 *
+	 * @return false, if the document uses other namespaces or can not be split, and needs to be parsed instead
+	 */
+	public boolean appendContentOf(String didl) {
+		final int rootStart = didl.indexOf("<DIDL-Lite");
+		final int rootEnd = rootStart > -1 ? didl.indexOf('>', rootStart) : -1;
+		final int footerStart = didl.lastIndexOf(FOOTER);
+
+		if (rootEnd < 0 || footerStart < rootEnd || didl.charAt(rootEnd - 1) == '/') {
+			return false;
+		}
+
+		if (!hasKnownNamespaces(didl.substring(rootStart, rootEnd))) {
+			return false;
+		}
+
+		this.sb.append(didl, rootEnd + 1, footerStart);
+		return true;
+	}
+
+	private static boolean hasKnownNamespaces(String rootTag) {
+		int position = rootTag.indexOf("xmlns");
+		while (position > -1) {
+			final int equals = rootTag.indexOf('=', position);
+			if (equals < 0 || equals + 1 >= rootTag.length()) {
+				return false;
+			}
+
+			final char quote = rootTag.charAt(equals + 1);
+			final int valueEnd = rootTag.indexOf(quote, equals + 2);
+			if (valueEnd < 0) {
+				return false;
+			}
+
+			final String prefix = rootTag.substring(position, equals).trim();
+			if (!HEADER.contains(prefix + "=\"" + rootTag.substring(equals + 2, valueEnd) + "\"")) {
+				return false;
+			}
+			position = rootTag.indexOf("xmlns", valueEnd);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the finished document
+	 */
+	public String end() {
+		this.sb.append(FOOTER);
+		final String didl = this.sb.toString();
+
+		if (this.sb.capacity() > MAX_REUSED_CAPACITY) {
+			BUILDERS.remove();
+		} else {
+			this.sb.setLength(0);
+		}
+		return didl;
+	}
+
+	private void writeItem(Item item) {
+		this.sb.append("<item");
+		attribute("id", requireNonNull(item.getId(), "id", item));
+		attribute("parentID", requireNonNull(item.getParentID(), "parentID", item));
+		if (item.getRefID() != null) {
+			attribute("refID", item.getRefID());
+		}
+		attribute("restricted", item.isRestricted() ? "1" : "0");
+		this.sb.append('>');
+
+		writeCommon(item);
+		writeProperties(item);
+		writeResources(item);
+
+		this.sb.append("</item>");
+	}
+
+	private void writeCommon(DIDLObject dObj) {
+		element("dc:title", dObj.getTitle() != null ? dObj.getTitle() : "Unknown Title");
+		if (dObj.getCreator() != null) {
+			element("dc:creator", dObj.getCreator());
+		}
+		if (dObj.getWriteStatus() != null) {
+			element("upnp:writeStatus", dObj.getWriteStatus().toString());
+		}
+		writeClass("upnp:class", dObj.getClazz(), false);
+	}
+
+	private void writeClass(String name, DIDLObject.Class clazz, boolean includeDerived) {
+		if (clazz == null || clazz.getValue() == null) {
+			return;
+		}
+		this.sb.append('<').append(name);
+		if (clazz.getFriendlyName() != null && clazz.getFriendlyName().length() > 0) {
+			attribute("name", clazz.getFriendlyName());
+		}
+		if (includeDerived) {
+			attribute("includeDerived", Boolean.toString(clazz.isIncludeDerived()));
+		}
+		this.sb.append('>');
+		text(clazz.getValue());
+		this.sb.append("</").append(name).append('>');
+	}
+
+	@SuppressWarnings("rawtypes")
+	private void writeProperties(DIDLObject dObj) {
+		for (Property property : dObj.getProperties()) {
+			final String prefix = getPrefix(property);
+			if (prefix == null || property.getValue() == null) {
+				continue;
+			}
+
+			final String name = prefix + ":" + property.getDescriptorName();
+			this.sb.append('<').append(name);
+
+			String text = property.getValue().toString();
+			if (property.getValue() instanceof PersonWithRole person) {
+				text = person.getName();
+				if (person.getRole() != null) {
+					attribute("role", person.getRole());
+				}
+			}
+
+			for (Object attribute : (List) property.getAttributes()) {
+				final Property<?> attributeProperty = (Property<?>) attribute;
+				if (attributeProperty.getValue() instanceof DIDLAttribute didlAttribute) {
+					attribute(didlAttribute.getPrefix() + ":" + attributeProperty.getDescriptorName(), didlAttribute.getValue());
+				}
+			}
+
+			this.sb.append('>');
+			text(text);
+			this.sb.append("</").append(name).append('>');
+		}
+	}
+
+	private static String getPrefix(Property<?> property) {
+		if (property instanceof DIDLObject.Property.UPNP.NAMESPACE) {
+			return "upnp";
+		}
+		if (property instanceof DIDLObject.Property.DC.NAMESPACE) {
+			return "dc";
+		}
+		if (property instanceof DIDLObject.Property.DLNA.NAMESPACE) {
+			return "dlna";
+		}
+		if (property instanceof DIDLObject.Property.SEC.NAMESPACE) {
+			return "sec";
+		}
+		return null;
+	}
+
+	private void writeResources(DIDLObject dObj) {
+		for (Res res : dObj.getResources()) {
+			if (res == null) {
+				continue;
+			}
+
+			this.sb.append("<res");
+			if (res.getImportUri() != null) {
+				attribute("importUri", res.getImportUri().toString());
+			}
+			attribute("protocolInfo", requireNonNull(res.getProtocolInfo(), "protocolInfo", dObj).toString());
+			optionalAttribute("size", res.getSize());
+			optionalAttribute("duration", res.getDuration());
+			optionalAttribute("bitrate", res.getBitrate());
+			optionalAttribute("sampleFrequency", res.getSampleFrequency());
+			optionalAttribute("bitsPerSample", res.getBitsPerSample());
+			optionalAttribute("nrAudioChannels", res.getNrAudioChannels());
+			optionalAttribute("colorDepth", res.getColorDepth());
+			optionalAttribute("protection", res.getProtection());
+			optionalAttribute("resolution", res.getResolution());
+			this.sb.append('>');
+			if (res.getValue() != null) {
+				text(res.getValue());
+			}
+			this.sb.append("</res>");
+		}
+	}
+
+	private void element(String name, String value) {
+		this.sb.append('<').append(name).append('>');
+		text(value);
+		this.sb.append("</").append(name).append('>');
+	}
+
+	private void optionalAttribute(String name, Object value) {
+		if (value != null) {
+			attribute(name, value.toString());
+		}
+	}
+
+	private void attribute(String name, String value) {
+		this.sb.append(' ').append(name).append("=\"");
+		escape(value, true);
+		this.sb.append('"');
+	}
+
+	private void text(String value) {
+		escape(value, false);
+	}
+
+	private void escape(String value, boolean inAttribute) {
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			switch (c) {
+				case '&':
+					this.sb.append("&amp;");
+					break;
+				case '<':
+					this.sb.append("&lt;");
+					break;
+				case '>':
+					this.sb.append("&gt;");
+					break;
+				case '"':
+					this.sb.append(inAttribute ? "&quot;" : "\"");
+					break;
+				case '\r':
+					this.sb.append("&#13;");
+					break;
+				case '\t':
+				case '\n':
+					if (inAttribute) {
+						this.sb.append("&#").append((int) c).append(';');
+					} else {
+						this.sb.append(c);
+					}
+					break;
+				default:
+					// Not allowed in XML 1.0 at all, the DOM serializer would fail on it
+					if (c >= 0x20 && c != 0xFFFE && c != 0xFFFF) {
+						this.sb.append(c);
+					}
+					break;
+			}
+		}
+	}
+
+	private static <T> T requireNonNull(T value, String name, DIDLObject dObj) {
+		if (value == null) {
+			throw new NullPointerException("Missing " + name + " on " + dObj.getClass().getSimpleName() + " '" + dObj.getTitle() + "'");
+		}
+		return value;
+	}
+
+}
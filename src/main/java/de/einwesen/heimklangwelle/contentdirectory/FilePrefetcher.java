@@ -0,0 +1,190 @@
+package de.einwesen.heimklangwelle.contentdirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the files that will be played next once, so they are in the page cache when the renderer asks for them,
+ * and a disk that spun down is awake by then.
+ *
+ * One file after the other, slowly enough to leave the disk to the track playing now.
+ * A new list cancels whatever was being read for the last one.
+ */
+public class FilePrefetcher {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FilePrefetcher.class);
+
+	// Enough for a track in hi-res flac, more is just pushing other things out of the page cache
+	private static final long MAX_BYTES_PER_FILE = 128 * 1024 * 1024;
+
+	private static final int CHUNK_SIZE = 1024 * 1024;
+
+	// Files read recently, not read again as long as they are unchanged
+	private static final int MAX_WARMED = 64;
+
+	private final long bytesPerSecond;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		final Thread t = new Thread(r, "FilePrefetcher");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	});
+
+	// Increased with every list, a running prefetch stops as soon as it sees another value
+	private final AtomicInteger generation = new AtomicInteger();
+	private List<File> files = List.of();
+
+	// Only used by the thread of the executor
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+	private final LinkedHashMap<String, Long> warmed = new LinkedHashMap<>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > MAX_WARMED;
+		}
+	};
+
+	private final AtomicLong warmedFiles = new AtomicLong();
+	private final AtomicLong skippedFiles = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong cancelled = new AtomicLong();
+
+	/**
+	 * @param maxMegaBytesPerSecond how fast files are read at most
+	 */
+	public FilePrefetcher(long maxMegaBytesPerSecond) {
+		this.bytesPerSecond = Math.max(1, maxMegaBytesPerSecond) * 1024 * 1024;
+	}
+
+	/**
+	 * Reads the files in the background, in order. Nothing happens if the list is the same as last time.
+	 */
+	public synchronized void prefetch(List<File> files) {
+		if (files.equals(this.files)) {
+			return;
+		}
+		this.files = List.copyOf(files);
+
+		final int current = this.generation.incrementAndGet();
+		if (!this.files.isEmpty()) {
+			final List<File> toRead = this.files;
+			this.executor.execute(() -> warm(toRead, current));
+		}
+	}
+
+	public void shutdown() {
+		this.generation.incrementAndGet();
+		this.executor.shutdownNow();
+	}
+
+	private boolean isCancelled(int generation) {
+		return generation != this.generation.get() || Thread.currentThread().isInterrupted();
+	}
+
+	private void warm(List<File> files, int generation) {
+		for (File file : files) {
+			if (isCancelled(generation)) {
+				this.cancelled.incrementAndGet();
+				return;
+			}
+			try {
+				if (!warm(file, generation)) {
+					this.cancelled.incrementAndGet();
+					return;
+				}
+			} catch (IOException e) {
+				LOGGER.debug("Could not prefetch '%s': %s".formatted(file.getName(), e.toString()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return false if cancelled before the file was read
+	 */
+	private boolean warm(File file, int generation) throws IOException, InterruptedException {
+		final String key = file.getAbsolutePath();
+		final long lastModified = file.lastModified();
+		final Long warmedModified = this.warmed.get(key);
+		if (warmedModified != null && warmedModified == lastModified) {
+			this.skippedFiles.incrementAndGet();
+			return true;
+		}
+
+		final long start = System.nanoTime();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			// There is no posix_fadvise in java, reading is what gets it into the page cache
+			final long length = Math.min(channel.size(), MAX_BYTES_PER_FILE);
+			long position = 0;
+			while (position < length) {
+				if (isCancelled(generation)) {
+					return false;
+				}
+
+				this.buffer.clear();
+				this.buffer.limit((int) Math.min(CHUNK_SIZE, length - position));
+				final int read = channel.read(this.buffer, position);
+				if (read < 0) {
+					break;
+				}
+				position += read;
+				this.bytesRead.addAndGet(read);
+
+				// Not faster than the rate, on average
+				final long aheadNanos = start + position * TimeUnit.SECONDS.toNanos(1) / this.bytesPerSecond - System.nanoTime();
+				if (aheadNanos > 0) {
+					TimeUnit.NANOSECONDS.sleep(aheadNanos);
+				}
+			}
+		}
+
+		this.warmed.put(key, lastModified);
+		this.warmedFiles.incrementAndGet();
+		LOGGER.debug("Prefetched '%s' in %d ms".formatted(file.getName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+		return true;
+	}
+
+	public long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	public long getWarmedFiles() {
+		return warmedFiles.get();
+	}
+
+	/**
+	 * @return number of files not read, because they were read before
+	 */
+	public long getSkippedFiles() {
+		return skippedFiles.get();
+	}
+
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * @return number of prefetches stopped, because the list changed
+	 */
+	public long getCancelled() {
+		return cancelled.get();
+	}
+
+}
@@ -0,0 +1,746 @@
+package de.einwesen.heimklangwelle.contentdirectory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.HttpOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.einwesen.heimklangwelle.contentdirectory.HotFileCache.HotFile;
+import de.einwesen.heimklangwelle.contentdirectory.library.LibraryEntry;
+import de.einwesen.heimklangwelle.contentdirectory.library.SeekTableCache;
+import de.einwesen.heimklangwelle.contentdirectory.tags.SeekTable;
+
+/**
+ * Sends files, or the byte ranges asked for, without copying them through heap buffers.
+ *
+ * Each request opens its own channel, and reads by absolute position only. Any number of
+ * renderers can stream from the same file at the same time. The file is read chunk by chunk into a
+ * direct buffer, which is handed to Jetty as it is and reused for the next chunk once it was written.
+ * Nothing is mapped, so no file stays locked (Windows) until a mapping happens to be collected.
+ * Small files asked for often are sent from the {@link HotFileCache} instead, without opening them at all.
+ *
+ * Where the servlet allows it, the body is written async, chunk by chunk as the client takes it,
+ * so slow renderers do not each hold a thread of the pool for the length of a track.
+ */
+public class FileStreamer {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FileStreamer.class);
+
+	// Read at once, each transfer has one buffer of that size while it runs
+	private static final int CHUNK_SIZE = 256 * 1024;
+
+	// Buffers of finished transfers kept for the next ones
+	private static final int MAX_POOLED_BUFFERS = 16;
+
+	// More ranges than that are not worth the multipart overhead, the whole file is sent instead
+	private static final int MAX_RANGES = 16;
+
+	// How long renderers may reuse what they have without asking again
+	private static final int MAX_AGE_SECONDS = 3600;
+
+	public static final String TIME_SEEK_HEADER = "TimeSeekRange.dlna.org";
+
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong streams = new AtomicLong();
+	private final AtomicLong rangeRequests = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong aborted = new AtomicLong();
+	private final AtomicLong heads = new AtomicLong();
+	private final AtomicLong notModified = new AtomicLong();
+	private final AtomicLong timeSeeks = new AtomicLong();
+
+	private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooledBuffers = new AtomicInteger();
+
+	private final SeekTableCache seekTables;
+	private final HotFileCache hotFiles;
+	private final StreamingMetrics metrics = new StreamingMetrics();
+
+	/**
+	 * @param seekTables for TimeSeekRange.dlna.org requests, or null if they are not supported
+	 * @param hotFiles for small files, or null to always read from disk
+	 */
+	public FileStreamer(SeekTableCache seekTables, HotFileCache hotFiles) {
+		this.seekTables = seekTables;
+		this.hotFiles = hotFiles != null && hotFiles.isEnabled() ? hotFiles : null;
+	}
+
+	/**
+	 * An inclusive range of bytes
+	 */
+	public static class ByteRange {
+		private final long first;
+		private final long last;
+
+		public ByteRange(long first, long last) {
+			this.first = first;
+			this.last = last;
+		}
+
+		public long getFirst() {
+			return first;
+		}
+
+		public long getLast() {
+			return last;
+		}
+
+		public long getLength() {
+			return last - first + 1;
+		}
+
+		public String toContentRange(long size) {
+			return "bytes " + first + "-" + last + "/" + size;
+		}
+	}
+
+	/**
+	 * Parses a "Range" header as of RFC 7233, overlapping and adjacent ranges are merged.
+	 *
+	 * @return the satisfiable ranges, empty if none is, or null if the header is missing, malformed or not about bytes
+	 */
+	public static List<ByteRange> parseRanges(String header, long size) {
+		if (header == null || !header.regionMatches(true, 0, "bytes=", 0, 6)) {
+			return null;
+		}
+
+		final ArrayList<ByteRange> ranges = new ArrayList<>();
+		for (String spec : header.substring(6).split(",")) {
+			spec = spec.trim();
+			final int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return null;
+			}
+
+			final long first;
+			final long last;
+			try {
+				if (dash == 0) {
+					// "-500" are the last 500 bytes
+					final long suffix = Long.parseLong(spec.substring(1));
+					first = Math.max(0, size - suffix);
+					last = size - 1;
+				} else {
+					first = Long.parseLong(spec.substring(0, dash));
+					if (dash == spec.length() - 1) {
+						last = size - 1;
+					} else {
+						final long requestedLast = Long.parseLong(spec.substring(dash + 1));
+						if (requestedLast < first) {
+							return null;
+						}
+						last = Math.min(size - 1, requestedLast);
+					}
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+
+			if (first < size && first <= last) {
+				ranges.add(new ByteRange(first, last));
+			}
+		}
+
+		if (ranges.size() > 1) {
+			ranges.sort((a, b) -> Long.compare(a.first, b.first));
+			final ArrayList<ByteRange> merged = new ArrayList<>();
+			ByteRange current = ranges.get(0);
+			for (int i = 1; i < ranges.size(); i++) {
+				final ByteRange next = ranges.get(i);
+				if (next.first <= current.last + 1) {
+					current = new ByteRange(current.first, Math.max(current.last, next.last));
+				} else {
+					merged.add(current);
+					current = next;
+				}
+			}
+			merged.add(current);
+			return merged;
+		}
+		return ranges;
+	}
+
+	/**
+	 * Answers a GET or HEAD with the whole file, a single range (206), several ranges (206, multipart/byteranges),
+	 * 304 if the client has the file already, or 416 if none of the ranges is within the file.
+	 * 
+	 * A HEAD is answered from the entry alone, the file is not opened.
+	 * If the request may go async, the body is written whenever the client can take more, and this returns at once.
+	 *
+	 * @param contentFeatures the value of contentFeatures.dlna.org, or null
+	 */
+	public void send(HttpServletRequest request, HttpServletResponse response, LibraryEntry entry, String contentFeatures, boolean headOnly) throws IOException {
+		final long startNanos = System.nanoTime();
+		final File file = entry.getFile();
+		final String mimeType = entry.getMimeType() != null ? entry.getMimeType() : "application/octet-stream";
+
+		final HotFile hotFile = !headOnly && this.hotFiles != null ? this.hotFiles.get(file) : null;
+		final FileChannel channel = headOnly || hotFile != null ? null : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		// Once the body is written async, the transfer closes the channel
+		boolean handedOver = false;
+		try {
+			long size = entry.getSize();
+			long lastModified = entry.getLastModified();
+
+			// The entry may be older than the file, if it was rewritten without touching the directory
+			if (hotFile != null) {
+				size = hotFile.getSize();
+				lastModified = hotFile.getLastModified();
+			} else if (channel != null && channel.size() != size) {
+				size = channel.size();
+				lastModified = file.lastModified();
+			}
+
+			final String etag = getETag(size, lastModified);
+			response.setHeader("ETag", etag);
+			response.setDateHeader("Last-Modified", lastModified);
+			response.setHeader("Accept-Ranges", "bytes");
+			// Revalidated with the ETag, but not on every play
+			response.setHeader("Cache-Control", "max-age=" + MAX_AGE_SECONDS);
+			response.setHeader("transferMode.dlna.org", mimeType.startsWith("image/") ? "Interactive" : "Streaming");
+			if (contentFeatures != null) {
+				response.setHeader("contentFeatures.dlna.org", contentFeatures);
+			}
+
+			if (isNotModified(request, etag, lastModified)) {
+				this.notModified.incrementAndGet();
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+
+			List<ByteRange> ranges = isRangeValid(request.getHeader("If-Range"), etag, lastModified) ? parseRanges(request.getHeader("Range"), size) : null;
+			if (ranges != null && ranges.size() > MAX_RANGES) {
+				LOGGER.debug("Ignoring %d ranges of '%s'".formatted(ranges.size(), file.getName()));
+				ranges = null;
+			}
+
+			if (ranges != null && ranges.isEmpty()) {
+				response.setHeader("Content-Range", "bytes */" + size);
+				response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return;
+			}
+
+			// Byte ranges win, if a renderer sends both
+			ByteRange timeRange = null;
+			final String timeSeek = ranges == null ? request.getHeader(TIME_SEEK_HEADER) : null;
+			if (timeSeek != null) {
+				final SeekTable table = this.seekTables != null ? this.seekTables.get(entry) : null;
+				if (table == null) {
+					response.sendError(HttpServletResponse.SC_NOT_ACCEPTABLE);
+					return;
+				}
+
+				final long[] npt = parseNpt(timeSeek);
+				if (npt == null) {
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+					return;
+				}
+
+				final long duration = table.getDurationMillis();
+				final long first = table.getOffset(npt[0]);
+				final boolean open = npt[1] < 0 || npt[1] >= duration;
+				final long last = open ? size - 1 : Math.min(size - 1, table.getOffset(npt[1]) - 1);
+				if (npt[0] > duration || first >= size || last < first) {
+					response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+					return;
+				}
+
+				timeRange = new ByteRange(first, last);
+				response.setHeader(TIME_SEEK_HEADER, "npt=%s-%s/%s bytes=%d-%d/%d".formatted(formatNpt(table.getSeekTime(npt[0])),
+						formatNpt(open ? duration : npt[1]), formatNpt(duration), first, last, size));
+			}
+
+			final List<BodyPart> body;
+			if (timeRange != null) {
+				// DLNA wants a 200 for time seeks, the bytes are told by TimeSeekRange.dlna.org
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.setContentType(mimeType);
+				response.setContentLengthLong(timeRange.getLength());
+				body = List.of(new BodyPart(timeRange));
+
+			} else if (ranges == null) {
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.setContentType(mimeType);
+				response.setContentLengthLong(size);
+				body = List.of(new BodyPart(new ByteRange(0, size - 1)));
+
+			} else if (ranges.size() == 1) {
+				final ByteRange range = ranges.get(0);
+				response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				response.setContentType(mimeType);
+				response.setContentLengthLong(range.getLength());
+				response.setHeader("Content-Range", range.toContentRange(size));
+				body = List.of(new BodyPart(range));
+
+			} else {
+				body = prepareMultipart(response, size, ranges, mimeType);
+			}
+
+			if (headOnly) {
+				this.heads.incrementAndGet();
+				return;
+			}
+
+			this.streams.incrementAndGet();
+			if (timeRange != null) {
+				this.timeSeeks.incrementAndGet();
+			} else if (ranges != null) {
+				this.rangeRequests.incrementAndGet();
+			}
+
+			final StreamingMetrics.Stream stream = this.metrics.start(request.getRemoteAddr(), getObjectId(request), file.getName(), timeRange != null || ranges != null, startNanos);
+			final Transfer transfer = new Transfer(file.getName(), channel, hotFile, body, stream);
+			final ServletOutputStream out = response.getOutputStream();
+			if (request.isAsyncSupported() && out instanceof HttpOutput) {
+				transfer.start(request.startAsync(), out);
+				handedOver = true;
+			} else {
+				transfer.run(out);
+			}
+
+		} finally {
+			if (channel != null && !handedOver) {
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Parses "npt=start-end" of TimeSeekRange.dlna.org, where the times are seconds ("83.5") or "h:mm:ss.sss"
+	 *
+	 * @return start and end in ms, end is -1 if open, or null if malformed
+	 */
+	static long[] parseNpt(String header) {
+		final String value = header.trim();
+		if (!value.regionMatches(true, 0, "npt=", 0, 4)) {
+			return null;
+		}
+
+		final int dash = value.indexOf('-', 4);
+		if (dash < 0) {
+			return null;
+		}
+
+		final long start = parseNptTime(value.substring(4, dash).trim());
+		final String endValue = value.substring(dash + 1).trim();
+		final long end = endValue.isEmpty() ? -1 : parseNptTime(endValue);
+		if (start < 0 || (!endValue.isEmpty() && end < start)) {
+			return null;
+		}
+		return new long[] { start, end };
+	}
+
+	private static long parseNptTime(String time) {
+		try {
+			double seconds = 0;
+			for (String part : time.split(":", 3)) {
+				seconds = seconds * 60 + Double.parseDouble(part);
+			}
+			return seconds >= 0 ? Math.round(seconds * 1000) : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	static String formatNpt(long millis) {
+		final long seconds = millis / 1000;
+		return "%d:%02d:%02d.%03d".formatted(seconds / 3600, (seconds / 60) % 60, seconds % 60, millis % 1000);
+	}
+
+	/**
+	 * @return a strong validator, the same as long as size and modification time are
+	 */
+	public static String getETag(long size, long lastModified) {
+		return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+	}
+
+	/**
+	 * If-None-Match wins over If-Modified-Since, as of RFC 7232
+	 */
+	private static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+		final String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String candidate : ifNoneMatch.split(",")) {
+				candidate = candidate.trim();
+				// Weak comparison, a weak validator of ours is as good
+				if (candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		final long ifModifiedSince = getDateHeader(request, "If-Modified-Since");
+		// Dates in headers have seconds only
+		return ifModifiedSince > -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+
+	/**
+	 * @return true if the ranges may be served, that is there is no If-Range, or it matches the current file
+	 */
+	private static boolean isRangeValid(String ifRange, String etag, long lastModified) {
+		if (ifRange == null) {
+			return true;
+		}
+
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			// Strong comparison, a weak one never matches
+			return ifRange.equals(etag);
+		}
+
+		try {
+			return ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond() == lastModified / 1000;
+		} catch (DateTimeParseException e) {
+			return false;
+		}
+	}
+
+	private static long getDateHeader(HttpServletRequest request, String name) {
+		try {
+			return request.getDateHeader(name);
+		} catch (IllegalArgumentException e) {
+			// Malformed, as if it was not there
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the object id of "/&lt;id&gt;.&lt;extension&gt;", or null if the path has none
+	 */
+	private static String getObjectId(HttpServletRequest request) {
+		final String path = request.getPathInfo();
+		if (path == null || path.length() < 2) {
+			return null;
+		}
+		final int dot = path.indexOf('.');
+		return path.substring(1, dot > 1 ? dot : path.length());
+	}
+
+	/**
+	 * Sets the headers of a multipart/byteranges response
+	 *
+	 * @return the parts of its body
+	 */
+	private static List<BodyPart> prepareMultipart(HttpServletResponse response, long size, List<ByteRange> ranges, String mimeType) {
+		final String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(System.nanoTime());
+
+		final ArrayList<BodyPart> body = new ArrayList<>(ranges.size() * 2 + 1);
+		long length = 0;
+		for (ByteRange range : ranges) {
+			final byte[] header = ("\r\n--" + boundary + "\r\nContent-Type: " + mimeType + "\r\nContent-Range: " + range.toContentRange(size) + "\r\n\r\n")
+					.getBytes(StandardCharsets.ISO_8859_1);
+			body.add(new BodyPart(header));
+			body.add(new BodyPart(range));
+			length += header.length + range.getLength();
+		}
+		final byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		body.add(new BodyPart(end));
+		length += end.length;
+
+		response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		response.setContentType("multipart/byteranges; boundary=" + boundary);
+		response.setContentLengthLong(length);
+		return body;
+	}
+
+	/**
+	 * Either bytes of their own, like the headers of multipart sections, or a range of the file
+	 */
+	private static class BodyPart {
+		private final byte[] bytes;
+		private final ByteRange range;
+
+		private BodyPart(byte[] bytes) {
+			this.bytes = bytes;
+			this.range = null;
+		}
+
+		private BodyPart(ByteRange range) {
+			this.bytes = null;
+			this.range = range;
+		}
+	}
+
+	/**
+	 * Writes the body of one response, chunk by chunk.
+	 *
+	 * Async, a chunk is only written when the client has taken the one before, so a renderer reading
+	 * at the bitrate of the track costs no thread while it does. Otherwise all chunks are written in a row.
+	 */
+	private class Transfer implements WriteListener {
+		private final String name;
+		private final FileChannel channel;
+		private final HotFile hotFile;
+		private final List<BodyPart> body;
+		private final StreamingMetrics.Stream stream;
+
+		private int partIndex = 0;
+		private long partOffset = 0;
+		private ByteBuffer buffer;
+
+		private AsyncContext async;
+		private ServletOutputStream out;
+		private boolean finished = false;
+
+		private Transfer(String name, FileChannel channel, HotFile hotFile, List<BodyPart> body, StreamingMetrics.Stream stream) {
+			this.name = name;
+			this.channel = channel;
+			this.hotFile = hotFile;
+			this.body = body;
+			this.stream = stream;
+		}
+
+		/**
+		 * Writes everything, blocking the calling thread
+		 */
+		private void run(ServletOutputStream out) {
+			active.incrementAndGet();
+			boolean failed = false;
+			try {
+				ByteBuffer chunk;
+				while ((chunk = next()) != null) {
+					write(out, chunk);
+				}
+			} catch (IOException e) {
+				// Renderers drop connections all the time, when seeking or skipping
+				failed = true;
+				aborted.incrementAndGet();
+				LOGGER.debug("Streaming '%s' stopped: %s".formatted(this.name, e.toString()));
+			} finally {
+				active.decrementAndGet();
+				this.stream.finished(failed);
+				releaseBuffer();
+			}
+		}
+
+		/**
+		 * Writes whenever the client can take more, the container calls back for that
+		 */
+		private void start(AsyncContext async, ServletOutputStream out) {
+			this.async = async;
+			this.out = out;
+			// Tracks last long, a stalled client is still caught by the idle timeout of the connection
+			async.setTimeout(0);
+			active.incrementAndGet();
+			out.setWriteListener(this);
+		}
+
+		@Override
+		public void onWritePossible() throws IOException {
+			// Each write completes in the background, isReady() is false until it did
+			while (this.out.isReady()) {
+				final ByteBuffer chunk = next();
+				if (chunk == null) {
+					finish(null);
+					return;
+				}
+				write(this.out, chunk);
+			}
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			finish(t);
+		}
+
+		private synchronized void finish(Throwable failure) {
+			if (this.finished) {
+				return;
+			}
+			this.finished = true;
+
+			active.decrementAndGet();
+			this.stream.finished(failure != null);
+			if (failure != null) {
+				aborted.incrementAndGet();
+				LOGGER.debug("Streaming '%s' stopped: %s".formatted(this.name, failure.toString()));
+			}
+			try {
+				if (this.channel != null) {
+					this.channel.close();
+				}
+			} catch (IOException e) {
+				LOGGER.debug("Could not close '%s': %s".formatted(this.name, e.toString()));
+			}
+			releaseBuffer();
+			this.async.complete();
+		}
+
+		/**
+		 * @return the next chunk of the body, or null at the end
+		 */
+		private ByteBuffer next() throws IOException {
+			while (this.partIndex < this.body.size()) {
+				final BodyPart part = this.body.get(this.partIndex);
+				final long partLength = part.bytes != null ? part.bytes.length : part.range.getLength();
+				if (this.partOffset >= partLength) {
+					this.partIndex++;
+					this.partOffset = 0;
+					continue;
+				}
+
+				if (part.bytes != null) {
+					this.partOffset = partLength;
+					return ByteBuffer.wrap(part.bytes);
+				}
+
+				final long position = part.range.first + this.partOffset;
+				final ByteBuffer chunk;
+				if (this.hotFile != null) {
+					// All at once, one write of the whole slice
+					chunk = this.hotFile.slice(position, partLength);
+				} else {
+					// The chunk before was written completely, the buffer is free again
+					chunk = read(position, (int) Math.min(CHUNK_SIZE, partLength - this.partOffset));
+				}
+				this.partOffset += chunk.remaining();
+				bytesSent.addAndGet(chunk.remaining());
+				return chunk;
+			}
+			return null;
+		}
+
+		private ByteBuffer read(long position, int length) throws IOException {
+			if (this.buffer == null) {
+				this.buffer = acquireBuffer();
+			}
+			this.buffer.clear().limit(length);
+			while (this.buffer.hasRemaining()) {
+				if (this.channel.read(this.buffer, position + this.buffer.position()) < 0) {
+					throw new EOFException("'%s' got shorter while streaming".formatted(this.name));
+				}
+			}
+			return this.buffer.flip();
+		}
+
+		private void releaseBuffer() {
+			if (this.buffer != null) {
+				FileStreamer.this.releaseBuffer(this.buffer);
+				this.buffer = null;
+			}
+		}
+
+		private void write(ServletOutputStream out, ByteBuffer chunk) throws IOException {
+			final int length = chunk.remaining();
+			if (out instanceof HttpOutput httpOutput) {
+				// Direct buffers are written to the socket as they are, not aggregated
+				httpOutput.write(chunk);
+			} else {
+				// Wrapped by something, copied through the heap
+				final WritableByteChannel target = Channels.newChannel(out);
+				while (chunk.hasRemaining()) {
+					target.write(chunk);
+				}
+			}
+			this.stream.sent(length);
+		}
+	}
+
+	private ByteBuffer acquireBuffer() {
+		final ByteBuffer buffer = this.buffers.poll();
+		if (buffer != null) {
+			this.pooledBuffers.decrementAndGet();
+			return buffer;
+		}
+		return ByteBuffer.allocateDirect(CHUNK_SIZE);
+	}
+
+	private void releaseBuffer(ByteBuffer buffer) {
+		if (this.pooledBuffers.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+			this.buffers.offer(buffer);
+		} else {
+			this.pooledBuffers.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return number of responses being sent right now
+	 */
+	public int getActive() {
+		return active.get();
+	}
+
+	public long getStreams() {
+		return streams.get();
+	}
+
+	/**
+	 * @return number of responses with partial content
+	 */
+	public long getRangeRequests() {
+		return rangeRequests.get();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * @return number of streams the client closed before the end
+	 */
+	public long getAborted() {
+		return aborted.get();
+	}
+
+	public long getHeads() {
+		return heads.get();
+	}
+
+	/**
+	 * @return number of responses to TimeSeekRange.dlna.org
+	 */
+	public long getTimeSeeks() {
+		return timeSeeks.get();
+	}
+
+	public SeekTableCache getSeekTables() {
+		return seekTables;
+	}
+
+	/**
+	 * @return what was streamed to whom
+	 */
+	public StreamingMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the cache of small files, or null if it is disabled
+	 */
+	public HotFileCache getHotFiles() {
+		return hotFiles;
+	}
+
+	/**
+	 * @return number of 304 answers
+	 */
+	public long getNotModified() {
+		return notModified.get();
+	}
+
+}
@@ -0,0 +1,165 @@
+package de.einwesen.heimklangwelle.contentdirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache for the content of small files, bounded by their size.
+ *
+ * Covers, jingles and playlists are asked for by every control point over and over. They are kept
+ * in direct buffers, outside the heap, and are written to the socket from there without opening the file.
+ * An entry is only valid as long as modification time and size of the file are the same.
+ */
+public class HotFileCache {
+
+	private final long maxBytes;
+	private final long maxFileSize;
+	private final LinkedHashMap<String, HotFile> files = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxMegaBytes size of all files together, 0 disables the cache
+	 * @param maxFileKiloBytes larger files are never cached
+	 */
+	public HotFileCache(long maxMegaBytes, long maxFileKiloBytes) {
+		this.maxBytes = maxMegaBytes * 1024 * 1024;
+		// A single file may not push out too much at once
+		this.maxFileSize = Math.min(maxFileKiloBytes * 1024, this.maxBytes / 4);
+	}
+
+	public boolean isEnabled() {
+		return this.maxBytes > 0 && this.maxFileSize > 0;
+	}
+
+	/**
+	 * @return the content of the file, read now if it was not cached, or null if it is too large or could not be read
+	 */
+	public HotFile get(File file) {
+		// Cheaper than opening it, and a rewritten file is noticed at once
+		final long size = file.length();
+		final long lastModified = file.lastModified();
+		if (size <= 0 || size > this.maxFileSize) {
+			return null;
+		}
+
+		final String key = file.getAbsolutePath();
+		synchronized (this) {
+			final HotFile cached = this.files.get(key);
+			if (cached != null && cached.lastModified == lastModified && cached.getSize() == size) {
+				this.hits.incrementAndGet();
+				return cached;
+			}
+		}
+
+		// Not within the lock. Two requests for the same file may both read it, which does no harm.
+		this.misses.incrementAndGet();
+		final HotFile read = read(file, size, lastModified);
+		if (read != null) {
+			put(key, read);
+		}
+		return read;
+	}
+
+	private static HotFile read(File file, long size, long lastModified) {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() != size) {
+				return null; // being written
+			}
+
+			final ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+			while (content.hasRemaining()) {
+				if (channel.read(content, content.position()) < 0) {
+					return null;
+				}
+			}
+			content.flip();
+			return new HotFile(lastModified, content.asReadOnlyBuffer());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private synchronized void put(String key, HotFile file) {
+		final HotFile previous = this.files.put(key, file);
+		this.bytes += file.getSize() - (previous != null ? previous.getSize() : 0);
+
+		// The buffers are freed once the gc finds them unused, requests still sending them keep them alive
+		final Iterator<Map.Entry<String, HotFile>> eldest = this.files.entrySet().iterator();
+		while (this.bytes > this.maxBytes && eldest.hasNext()) {
+			this.bytes -= eldest.next().getValue().getSize();
+			eldest.remove();
+			this.evictions.incrementAndGet();
+		}
+	}
+
+	public synchronized int size() {
+		return this.files.size();
+	}
+
+	/**
+	 * @return size of all cached files together
+	 */
+	public synchronized long getBytes() {
+		return this.bytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getMaxFileSize() {
+		return maxFileSize;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Content of a file, as it was when it was read
+	 */
+	public static class HotFile {
+		private final long lastModified;
+		private final ByteBuffer content;
+
+		private HotFile(long lastModified, ByteBuffer content) {
+			this.lastModified = lastModified;
+			this.content = content;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public long getSize() {
+			return content.capacity();
+		}
+
+		/**
+		 * @return the bytes from position on, as a buffer of its own, so any number of requests can send them at the same time
+		 */
+		public ByteBuffer slice(long position, long length) {
+			return this.content.slice((int) position, (int) length);
+		}
+	}
+
+}
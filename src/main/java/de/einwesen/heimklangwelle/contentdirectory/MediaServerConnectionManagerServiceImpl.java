@@ -8,6 +8,7 @@ import de.einwesen.heimklangwelle.upnpsupport.AbstractConnectionManagerService;
 public class MediaServerConnectionManagerServiceImpl extends AbstractConnectionManagerService {
     
 	public static ProtocolInfos SUPPORTED_PROTOCOLS = new ProtocolInfos(
+    		// Time seek is added per item, only files with a seek table have it
     		newDefaultServerProtocolInfo("audio/mpeg"),
     		newDefaultServerProtocolInfo("audio/flac"),
     		newDefaultServerProtocolInfo("audio/ogg"),
@@ -0,0 +1,103 @@
+package de.einwesen.heimklangwelle.contentdirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jetty.http.MimeTypes;
+import org.jupnp.support.model.ProtocolInfo;
+import org.jupnp.support.model.ProtocolInfos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves mimetypes by file extension, so that listing a directory does not need to open any file.
+ *
+ * Known extensions are looked up in a table built once from the configured mime mappings.
+ * Only unknown extensions are probed, and the result is remembered for the extension.
+ */
+public class MimeTypeResolver {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MimeTypeResolver.class);
+
+	// Marks extensions which were probed, but did not resolve to anything
+	private static final String UNKNOWN = "";
+
+	private final Map<String, ProtocolInfo> protocolsByMimeType = new HashMap<>();
+	private final Map<String, String> mimeTypesByExtension = new HashMap<>();
+	private final Map<String, String> probedMimeTypes = new ConcurrentHashMap<>();
+
+	public MimeTypeResolver(MimeTypes extensionMimeTypes, ProtocolInfos supportedProtocols) {
+		for (ProtocolInfo info : supportedProtocols) {
+			this.protocolsByMimeType.put(info.getContentFormat().toLowerCase(), info);
+		}
+
+		for (Map.Entry<String, String> mapping : extensionMimeTypes.getMimeMap().entrySet()) {
+			this.mimeTypesByExtension.put(mapping.getKey().toLowerCase(), mapping.getValue().toLowerCase());
+		}
+	}
+
+	/**
+	 * @return the mimetype, or null if it could not be resolved
+	 */
+	public String getMimeType(File file) {
+		final String ext = getExtension(file.getName());
+
+		if (ext == null) {
+			// Without an extension we could not build a usable stream url anyway
+			return null;
+		}
+
+		final String mimeType = this.mimeTypesByExtension.get(ext);
+		if (mimeType != null) {
+			return mimeType;
+		}
+
+		final String probed = this.probedMimeTypes.computeIfAbsent(ext, e -> probeMimeType(file));
+		return !UNKNOWN.equals(probed) ? probed : null;
+	}
+
+	/**
+	 * @return the mimetype, or null if the file is not of a supported type
+	 */
+	public String getSupportedMimeType(File file) {
+		final String mimeType = getMimeType(file);
+		return mimeType != null && this.protocolsByMimeType.containsKey(mimeType) ? mimeType : null;
+	}
+
+	/**
+	 * @return the protocol info, or null if the mimetype is not supported
+	 */
+	public ProtocolInfo getProtocolInfo(String mimeType) {
+		return mimeType != null ? this.protocolsByMimeType.get(mimeType) : null;
+	}
+
+	private static String probeMimeType(File file) {
+		String mimeType = null;
+		try {
+			mimeType = Files.probeContentType(file.toPath());
+		} catch (IOException e) {
+			LOGGER.warn("\"" + file.getAbsolutePath() + "\" : " + e.toString() );
+		}
+
+		LOGGER.debug("Probed '%s' as %s".formatted(file.getName(), mimeType));
+
+		return mimeType != null ? mimeType.toLowerCase() : UNKNOWN;
+	}
+
+	/**
+	 * @return the lowercase extension, or null if there is none
+	 */
+	public static String getExtension(String fileName) {
+	    final int lastIndex = fileName.lastIndexOf('.');
+	    if (lastIndex > 0 && lastIndex < fileName.length() - 1) { // dot not at start or end
+	        return fileName.substring(lastIndex + 1).toLowerCase();
+	    } else {
+	    	return null;
+	    }
+	}
+
+}
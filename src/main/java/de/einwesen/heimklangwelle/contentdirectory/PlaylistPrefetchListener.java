@@ -0,0 +1,99 @@
+package de.einwesen.heimklangwelle.contentdirectory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jupnp.model.types.UnsignedIntegerFourBytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.einwesen.heimklangwelle.HeimklangServiceRegistry;
+import de.einwesen.heimklangwelle.contentdirectory.library.LibraryRoots;
+import de.einwesen.heimklangwelle.renderers.AbstractRendererWrapper;
+import de.einwesen.heimklangwelle.renderers.RendererChangeEventListener;
+
+/**
+ * Has the {@link FilePrefetcher} read the next tracks in the queue of the local renderer,
+ * as far as they are served by our own content server.
+ *
+ * The renderer fires an event when the track changes, or the playlist was changed, each one
+ * looks at the queue again. Most of them do not change what comes next, and cost nothing more.
+ */
+public class PlaylistPrefetchListener implements RendererChangeEventListener {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PlaylistPrefetchListener.class);
+
+	// The url is the text of a res element in the DIDL-Lite of a track
+	private static final Pattern RES_PATTERN = Pattern.compile("<res[^>]*>([^<]+)</res>");
+
+	private final AbstractRendererWrapper renderer;
+	private final FilePrefetcher prefetcher;
+	private final int tracks;
+
+	/**
+	 * @param tracks number of tracks after the current one to read
+	 */
+	public PlaylistPrefetchListener(AbstractRendererWrapper renderer, FilePrefetcher prefetcher, int tracks) {
+		this.renderer = renderer;
+		this.prefetcher = prefetcher;
+		this.tracks = tracks;
+	}
+
+	@Override
+	public void firePlayerStateChangedEvent(UnsignedIntegerFourBytes instanceId) {
+		try {
+			final List<String> queue = this.renderer.getTrackURIsMetaData();
+			// The current track counts from 1, 0 if none was started yet, so it is the index of the next
+			final int next = (int) Math.max(0, this.renderer.getCurrentTrack());
+
+			final ArrayList<File> files = new ArrayList<>(this.tracks);
+			for (int i = next; i < queue.size() && files.size() < this.tracks; i++) {
+				final File file = getFile(queue.get(i));
+				if (file != null) {
+					files.add(file);
+				}
+			}
+			this.prefetcher.prefetch(files);
+
+		} catch (Throwable t) {
+			LOGGER.debug("Could not look at the queue: " + t.toString());
+		}
+	}
+
+	/**
+	 * @return the file of the first res served by our content server, or null if there is none
+	 */
+	private static File getFile(String metaData) {
+		final String base = HeimklangServiceRegistry.getContentServerBase();
+		if (metaData == null || base == null) {
+			return null;
+		}
+
+		final Matcher matcher = RES_PATTERN.matcher(metaData);
+		while (matcher.find()) {
+			final String url = matcher.group(1).trim().replace("&amp;", "&");
+			if (!url.startsWith(base + "/")) {
+				continue;
+			}
+
+			// "<id>.<ext>", or "transcode/<id>.<ext>" where the encoder reads the source
+			String path = url.substring(base.length() + 1);
+			if (path.startsWith(TranscodeServlet.SERVLET_PATH.substring(1) + "/")) {
+				path = path.substring(TranscodeServlet.SERVLET_PATH.length());
+			}
+			final int dot = path.indexOf('.');
+			final File file = dot > 0 ? ContentDirectoryServiceImpl.decodeItemId(path.substring(0, dot)) : null;
+
+			// Only what would be served anyway
+			final LibraryRoots roots = HeimklangServiceRegistry.getLibraryRoots();
+			if (file != null && (roots == null || roots.getRoot(file) != null) && file.isFile()) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,289 @@
+package de.einwesen.heimklangwelle.contentdirectory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the content server streamed, in total, per client address and per object id.
+ *
+ * Renderers that keep fetching the start of a file and dropping the connection show up with
+ * many prefix aborts. All counters are lock free, a stream only touches them when it starts and ends.
+ * Clients and objects not seen for the longest time are dropped, to stay within a few hundred of each.
+ */
+public class StreamingMetrics {
+
+	// Less than that sent before the client went away, it only wanted the start
+	public static final long PREFIX_BYTES = 256 * 1024;
+
+	// Shorter streams are mostly buffering, their throughput says nothing
+	private static final long MIN_THROUGHPUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private static final int MAX_CLIENTS = 256;
+	private static final int MAX_OBJECTS = 1024;
+
+	private final Counters total = new Counters("");
+	private final ConcurrentHashMap<String, Counters> clients = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Counters> objects = new ConcurrentHashMap<>();
+
+	/**
+	 * @param client remote address
+	 * @param objectId of the item streamed, or null if there is none
+	 * @param name of the file, for humans reading the metrics
+	 * @param range true if only a part of the file is asked for
+	 * @param startNanos when the request came in
+	 * @return the stream to report progress to
+	 */
+	public Stream start(String client, String objectId, String name, boolean range, long startNanos) {
+		final Counters clientCounters = get(this.clients, client, client, MAX_CLIENTS);
+		final Counters objectCounters = objectId != null ? get(this.objects, objectId, name, MAX_OBJECTS) : null;
+		return new Stream(range, startNanos, this.total, clientCounters, objectCounters);
+	}
+
+	private static Counters get(ConcurrentHashMap<String, Counters> map, String key, String name, int maxEntries) {
+		Counters counters = map.get(key);
+		if (counters == null) {
+			if (map.size() >= maxEntries) {
+				evictOldest(map);
+			}
+			counters = map.computeIfAbsent(key, k -> new Counters(name));
+		}
+		return counters;
+	}
+
+	/**
+	 * Drops the eighth of the entries not seen for the longest time. Not exact while others add, which does no harm.
+	 */
+	private static void evictOldest(ConcurrentHashMap<String, Counters> map) {
+		final List<Map.Entry<String, Counters>> entries = new ArrayList<>(map.entrySet());
+		entries.sort(Comparator.comparingLong(e -> e.getValue().getLastSeen()));
+		for (int i = 0; i < Math.max(1, entries.size() / 8); i++) {
+			map.remove(entries.get(i).getKey(), entries.get(i).getValue());
+		}
+	}
+
+	public Counters getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return counters by client address
+	 */
+	public Map<String, Counters> getClients() {
+		return clients;
+	}
+
+	/**
+	 * @return counters by object id
+	 */
+	public Map<String, Counters> getObjects() {
+		return objects;
+	}
+
+	/**
+	 * A single response, reporting to the counters of all it belongs to
+	 */
+	public static class Stream {
+		private final long startNanos;
+		private final Counters[] counters;
+		private long bytes = 0;
+		private boolean firstByte = false;
+
+		private Stream(boolean range, long startNanos, Counters... counters) {
+			this.startNanos = startNanos;
+			this.counters = counters;
+			for (Counters c : counters) {
+				if (c != null) {
+					c.streams.increment();
+					if (range) {
+						c.rangeRequests.increment();
+					}
+					c.lastSeen.set(System.currentTimeMillis());
+				}
+			}
+		}
+
+		/**
+		 * @param length handed to the container for sending
+		 */
+		public void sent(long length) {
+			this.bytes += length;
+			if (!this.firstByte) {
+				this.firstByte = true;
+				final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.startNanos);
+				for (Counters c : this.counters) {
+					if (c != null) {
+						c.timeToFirstByte.record(millis);
+					}
+				}
+			}
+		}
+
+		public void finished(boolean aborted) {
+			final long nanos = System.nanoTime() - this.startNanos;
+			final long kiloBytesPerSecond = nanos >= MIN_THROUGHPUT_NANOS ? this.bytes * TimeUnit.SECONDS.toNanos(1) / nanos / 1024 : -1;
+			for (Counters c : this.counters) {
+				if (c == null) {
+					continue;
+				}
+				c.bytes.add(this.bytes);
+				if (aborted) {
+					c.aborted.increment();
+					if (this.bytes < PREFIX_BYTES) {
+						c.prefixAborts.increment();
+					}
+				}
+				if (kiloBytesPerSecond > -1) {
+					c.throughput.record(kiloBytesPerSecond);
+				}
+				c.lastSeen.set(System.currentTimeMillis());
+			}
+		}
+	}
+
+	/**
+	 * Counters of a client, an object, or all of them
+	 */
+	public static class Counters {
+		private final String name;
+		private final LongAdder streams = new LongAdder();
+		private final LongAdder rangeRequests = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final LongAdder aborted = new LongAdder();
+		private final LongAdder prefixAborts = new LongAdder();
+		private final AtomicLong lastSeen = new AtomicLong();
+		private final Histogram timeToFirstByte = new Histogram(16);
+		private final Histogram throughput = new Histogram(24);
+
+		private Counters(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return the address of a client, or the file name of an object
+		 */
+		public String getName() {
+			return name;
+		}
+
+		public long getStreams() {
+			return streams.sum();
+		}
+
+		public long getRangeRequests() {
+			return rangeRequests.sum();
+		}
+
+		/**
+		 * @return bytes handed to the container, a stream aborted may not have sent the last of them
+		 */
+		public long getBytes() {
+			return bytes.sum();
+		}
+
+		public long getAborted() {
+			return aborted.sum();
+		}
+
+		/**
+		 * @return number of streams aborted before {@link StreamingMetrics#PREFIX_BYTES} were sent
+		 */
+		public long getPrefixAborts() {
+			return prefixAborts.sum();
+		}
+
+		public long getLastSeen() {
+			return lastSeen.get();
+		}
+
+		/**
+		 * @return ms from the request coming in to the first bytes of the body
+		 */
+		public Histogram getTimeToFirstByte() {
+			return timeToFirstByte;
+		}
+
+		/**
+		 * @return KB/s of streams lasting at least a second
+		 */
+		public Histogram getThroughput() {
+			return throughput;
+		}
+	}
+
+	/**
+	 * Counts values in buckets of powers of two. Bucket 0 holds 0, bucket i holds values below 2^i,
+	 * the last one everything above.
+	 */
+	public static class Histogram {
+		private final AtomicLongArray buckets;
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+
+		public Histogram(int buckets) {
+			this.buckets = new AtomicLongArray(buckets);
+		}
+
+		public void record(long value) {
+			final int bucket = value <= 0 ? 0 : Math.min(this.buckets.length() - 1, 64 - Long.numberOfLeadingZeros(value));
+			this.buckets.incrementAndGet(bucket);
+			this.count.increment();
+			this.sum.add(Math.max(0, value));
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public long getMean() {
+			final long n = getCount();
+			return n > 0 ? sum.sum() / n : 0;
+		}
+
+		public int size() {
+			return buckets.length();
+		}
+
+		public long getBucket(int bucket) {
+			return buckets.get(bucket);
+		}
+
+		/**
+		 * @return the upper bound (exclusive) of the bucket, Long.MAX_VALUE for the last
+		 */
+		public long getUpperBound(int bucket) {
+			return bucket < this.buckets.length() - 1 ? 1L << bucket : Long.MAX_VALUE;
+		}
+
+		/**
+		 * @param percent e.g. 99
+		 * @return the upper bound of the bucket the percentile falls into, 0 if nothing was recorded
+		 */
+		public long getPercentile(double percent) {
+			long total = 0;
+			for (int i = 0; i < this.buckets.length(); i++) {
+				total += this.buckets.get(i);
+			}
+			if (total == 0) {
+				return 0;
+			}
+
+			final long rank = (long) Math.ceil(total * percent / 100);
+			long seen = 0;
+			for (int i = 0; i < this.buckets.length(); i++) {
+				seen += this.buckets.get(i);
+				if (seen >= rank) {
+					return getUpperBound(i);
+				}
+			}
+			return getUpperBound(this.buckets.length() - 1);
+		}
+	}
+
+}
@@ -0,0 +1,430 @@
+package de.einwesen.heimklangwelle.contentdirectory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts files renderers may not play into a format they can, by running an external encoder.
+ *
+ * The encoder is a command line with placeholders, {input} for the path of the source and {format}
+ * for the container of the target (mp3, adts, flac, wav). Without {input} the source is fed to stdin.
+ * Whatever the command writes to stdout is streamed, and kept in the cache once the command succeeded,
+ * so playing the track again is just sending a file.
+ *
+ * Only a few encoders run at the same time, they compete for the cpu with everything else.
+ */
+public class TranscodeService {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TranscodeService.class);
+
+	public static final String DEFAULT_COMMAND = "ffmpeg -hide_banner -loglevel error -i {input} -map 0:a:0 -f {format} -";
+
+	// How long a request waits for an encoder to become free
+	private static final long ACQUIRE_TIMEOUT_SECONDS = 10;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final long TOUCH_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	// What is kept of stderr, to tell why an encoder failed
+	private static final int MAX_ERROR_LINES = 5;
+	private static final int MAX_ERROR_LINE_LENGTH = 200;
+	private static final long ERROR_WAIT_MILLIS = 1000;
+
+	public enum Target {
+		MP3("mp3", "audio/mpeg", "mp3"),
+		AAC("aac", "audio/aac", "adts"),
+		FLAC("flac", "audio/flac", "flac"),
+		WAV("wav", "audio/wav", "wav");
+
+		private final String extension;
+		private final String mimeType;
+		private final String format;
+
+		private Target(String extension, String mimeType, String format) {
+			this.extension = extension;
+			this.mimeType = mimeType;
+			this.format = format;
+		}
+
+		public String getExtension() {
+			return extension;
+		}
+
+		public String getMimeType() {
+			return mimeType;
+		}
+
+		/**
+		 * @return the target, or null if there is none for the extension
+		 */
+		public static Target ofExtension(String extension) {
+			for (Target target : values()) {
+				if (target.extension.equalsIgnoreCase(extension)) {
+					return target;
+				}
+			}
+			return null;
+		}
+	}
+
+	private final String rules;
+	private final Map<String, List<Target>> targetsByMimeType;
+	private final List<String> command;
+	private final File cacheDirectory;
+	private final long maxCacheBytes;
+	private final int maxProcesses;
+	private final Semaphore processes;
+
+	// Keys of transcodes being written to the cache right now, a second one of the same file only streams
+	private final Set<String> writing = ConcurrentHashMap.newKeySet();
+
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong started = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+
+	/**
+	 * @param rules "mimetype:target,..." e.g. "audio/x-ape:flac,audio/flac:mp3", a mimetype may have several targets
+	 * @param command the encoder, see above
+	 * @param cacheDirectory where completed transcodes are kept, or null to keep none
+	 * @param maxCacheMegaBytes the oldest files are deleted above that
+	 * @param maxProcesses max. number of encoders running at the same time
+	 */
+	public TranscodeService(String rules, String command, File cacheDirectory, long maxCacheMegaBytes, int maxProcesses) {
+		this.rules = rules;
+		this.targetsByMimeType = parseRules(rules);
+		this.command = Arrays.asList(command.trim().split("\\s+"));
+		this.cacheDirectory = cacheDirectory;
+		this.maxCacheBytes = maxCacheMegaBytes * 1024 * 1024;
+		this.maxProcesses = Math.max(1, maxProcesses);
+		this.processes = new Semaphore(this.maxProcesses, true);
+
+		if (cacheDirectory != null && !cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+			LOGGER.warn("Could not create '" + cacheDirectory.getAbsolutePath() + "'");
+		}
+
+		LOGGER.info("Transcoding %s with '%s'".formatted(this.targetsByMimeType, command));
+	}
+
+	private static Map<String, List<Target>> parseRules(String rules) {
+		final HashMap<String, List<Target>> result = new HashMap<>();
+		for (String rule : rules.split(",")) {
+			final int colon = rule.lastIndexOf(':');
+			if (colon < 1) {
+				if (!rule.isBlank()) {
+					LOGGER.warn("Ignoring transcoding rule '" + rule + "'");
+				}
+				continue;
+			}
+
+			final Target target = Target.ofExtension(rule.substring(colon + 1).trim());
+			if (target == null) {
+				LOGGER.warn("Ignoring transcoding rule '" + rule + "', unknown target");
+				continue;
+			}
+			result.computeIfAbsent(rule.substring(0, colon).trim().toLowerCase(Locale.ROOT), m -> new ArrayList<>()).add(target);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the rules as configured, anything listing files depends on them
+	 */
+	public String getRules() {
+		return rules;
+	}
+
+	/**
+	 * @return the formats the mimetype can be transcoded to, empty if there is none
+	 */
+	public List<Target> getTargets(String mimeType) {
+		final List<Target> targets = mimeType != null ? this.targetsByMimeType.get(mimeType) : null;
+		return targets != null ? targets : Collections.emptyList();
+	}
+
+	public boolean isTranscodable(String mimeType) {
+		return !getTargets(mimeType).isEmpty();
+	}
+
+	/**
+	 * @return the completed transcode, or null if there is none (yet)
+	 */
+	public File getCached(File source, Target target) {
+		if (this.cacheDirectory == null) {
+			return null;
+		}
+
+		final File cached = getCacheFile(getKey(source, target), target);
+		if (cached.isFile()) {
+			this.cacheHits.incrementAndGet();
+			// Marks it as used, eviction goes by that. Not on every request, the modification time is part of the ETag.
+			final long now = System.currentTimeMillis();
+			if (now - cached.lastModified() > TOUCH_INTERVAL_MILLIS) {
+				cached.setLastModified(now);
+			}
+			return cached;
+		}
+		return null;
+	}
+
+	/**
+	 * Runs the encoder and writes its output to the stream, while keeping a copy for the cache.
+	 *
+	 * @return false if no encoder became free in time
+	 * @throws IOException if the encoder failed, or the client went away
+	 */
+	public boolean transcode(File source, Target target, OutputStream out) throws IOException {
+		try {
+			if (!this.processes.tryAcquire(ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				this.rejected.incrementAndGet();
+				return false;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for an encoder");
+		}
+
+		final String key = getKey(source, target);
+		final boolean caching = this.cacheDirectory != null && this.writing.add(key);
+
+		Process process = null;
+		Path tmp = null;
+		this.active.incrementAndGet();
+		this.started.incrementAndGet();
+		try {
+			process = start(source, target);
+			final ErrorTail errors = new ErrorTail(process);
+
+			tmp = caching ? Files.createTempFile(this.cacheDirectory.toPath(), key, ".tmp") : null;
+			try (InputStream in = process.getInputStream(); OutputStream copy = tmp != null ? Files.newOutputStream(tmp) : null) {
+				final byte[] buffer = new byte[BUFFER_SIZE];
+				int read;
+				while ((read = in.read(buffer)) > -1) {
+					out.write(buffer, 0, read);
+					if (copy != null) {
+						copy.write(buffer, 0, read);
+					}
+				}
+			}
+			out.flush();
+
+			final int exitCode = process.waitFor();
+			if (exitCode != 0) {
+				final String lastErrors = errors.get();
+				throw new IOException("Encoder exited with " + exitCode + (lastErrors.isEmpty() ? "" : ": " + lastErrors));
+			}
+
+			this.completed.incrementAndGet();
+			if (tmp != null) {
+				Files.move(tmp, getCacheFile(key, target).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				LOGGER.debug("Cached %s of '%s'".formatted(target, source.getName()));
+				evict();
+			}
+			return true;
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while transcoding");
+		} catch (IOException e) {
+			this.failed.incrementAndGet();
+			throw e;
+		} finally {
+			if (process != null && process.isAlive()) {
+				// The client went away, or something else broke
+				process.destroyForcibly();
+			}
+			if (tmp != null) {
+				Files.deleteIfExists(tmp);
+			}
+			if (caching) {
+				this.writing.remove(key);
+			}
+			this.active.decrementAndGet();
+			this.processes.release();
+		}
+	}
+
+	private Process start(File source, Target target) throws IOException {
+		final ArrayList<String> args = new ArrayList<>(this.command.size());
+		boolean inputGiven = false;
+		for (String arg : this.command) {
+			inputGiven |= arg.contains("{input}");
+			args.add(arg.replace("{input}", source.getAbsolutePath()).replace("{format}", target.format));
+		}
+
+		final ProcessBuilder builder = new ProcessBuilder(args);
+		if (!inputGiven) {
+			builder.redirectInput(ProcessBuilder.Redirect.from(source));
+		}
+
+		final Process process = builder.start();
+		if (inputGiven) {
+			// Nothing to read on stdin, the encoder opens the file itself
+			process.getOutputStream().close();
+		}
+		return process;
+	}
+
+	/**
+	 * Deletes the least recently used transcodes, until the cache is within its size
+	 */
+	private synchronized void evict() {
+		final File[] files = this.cacheDirectory.listFiles((dir, name) -> !name.endsWith(".tmp"));
+		if (files == null) {
+			return;
+		}
+
+		long size = 0;
+		for (File file : files) {
+			size += file.length();
+		}
+		if (size <= this.maxCacheBytes) {
+			return;
+		}
+
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for (File file : files) {
+			if (size <= this.maxCacheBytes) {
+				break;
+			}
+			final long length = file.length();
+			if (file.delete()) {
+				size -= length;
+				LOGGER.debug("Evicted '%s'".formatted(file.getName()));
+			}
+		}
+	}
+
+	/**
+	 * Drains stderr of an encoder on a thread of its own, so a chatty encoder never blocks on a full pipe,
+	 * and keeps the last lines of it.
+	 */
+	private static class ErrorTail extends Thread {
+		private final InputStream in;
+		private final ArrayDeque<String> lines = new ArrayDeque<>(MAX_ERROR_LINES);
+
+		private ErrorTail(Process process) {
+			super("TranscodeErrors");
+			this.in = process.getErrorStream();
+			setDaemon(true);
+			start();
+		}
+
+		@Override
+		public void run() {
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(this.in, StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.isBlank()) {
+						continue;
+					}
+					synchronized (this.lines) {
+						if (this.lines.size() == MAX_ERROR_LINES) {
+							this.lines.removeFirst();
+						}
+						this.lines.addLast(line.length() > MAX_ERROR_LINE_LENGTH ? line.substring(0, MAX_ERROR_LINE_LENGTH) + "..." : line.strip());
+					}
+				}
+			} catch (IOException e) {
+				// The encoder was destroyed
+			}
+		}
+
+		/**
+		 * @return the last lines, once the encoder closed stderr, separated by " | "
+		 */
+		private String get() throws InterruptedException {
+			join(ERROR_WAIT_MILLIS);
+			synchronized (this.lines) {
+				return String.join(" | ", this.lines);
+			}
+		}
+	}
+
+	private File getCacheFile(String key, Target target) {
+		return new File(this.cacheDirectory, key + "." + target.extension);
+	}
+
+	private static String getKey(File file, Target target) {
+		// The source changes, the key changes, and the old transcode falls out eventually
+		final String source = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified() + "|" + target;
+		try {
+			final StringBuilder hex = new StringBuilder(40);
+			for (byte b : MessageDigest.getInstance("SHA-1").digest(source.getBytes(StandardCharsets.UTF_8))) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is always available", e);
+		}
+	}
+
+	public int getMaxProcesses() {
+		return maxProcesses;
+	}
+
+	/**
+	 * @return number of encoders running right now
+	 */
+	public int getActive() {
+		return active.get();
+	}
+
+	public long getStarted() {
+		return started.get();
+	}
+
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	/**
+	 * @return number of transcodes that did not finish, because the encoder failed or the client went away
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return number of requests that found no free encoder
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+}
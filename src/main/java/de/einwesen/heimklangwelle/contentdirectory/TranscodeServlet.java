@@ -0,0 +1,114 @@
+package de.einwesen.heimklangwelle.contentdirectory;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.einwesen.heimklangwelle.HeimklangServiceRegistry;
+import de.einwesen.heimklangwelle.contentdirectory.library.LibraryEntry;
+import de.einwesen.heimklangwelle.contentdirectory.library.LibraryRoots;
+import de.einwesen.heimklangwelle.upnpsupport.AbstractConnectionManagerService;
+
+/**
+ * Serves the transcodes of {@link TranscodeService} as "/transcode/&lt;object id&gt;.&lt;target extension&gt;".
+ *
+ * A transcode in the cache is sent like any other file, with ranges. Otherwise the output of the encoder
+ * is sent as it comes, chunked, as its length is not known up front.
+ */
+public class TranscodeServlet extends HttpServlet {
+
+	public static final String SERVLET_PATH = "/transcode";
+
+	// Converted content, that can neither be seeked nor has a known size
+	public static final String CONTENT_FEATURES = AbstractConnectionManagerService.DNLA_OP_NO_SEEKING_SUPPORTED + ";DLNA.ORG_CI=1;" + AbstractConnectionManagerService.DNLA_FLAGS_SEEK_AND_INTERACTIVE;
+
+	private static final String CACHED_CONTENT_FEATURES = AbstractConnectionManagerService.DNLA_OP_BYTESEEKING_SUPPORTED + ";DLNA.ORG_CI=1;" + AbstractConnectionManagerService.DNLA_FLAGS_SEEK_ONLY;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TranscodeServlet.class);
+
+	private static final long serialVersionUID = -3907170861244128541L;
+
+	/**
+	 * @return the url of the transcode of an object
+	 */
+	public static String getUrl(String objectId, TranscodeService.Target target) {
+		return HeimklangServiceRegistry.getContentServerBase() + SERVLET_PATH + "/" + objectId + "." + target.getExtension();
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		serve(req, resp, false);
+	}
+
+	@Override
+	protected void doHead(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		serve(req, resp, true);
+	}
+
+	private void serve(HttpServletRequest req, HttpServletResponse resp, boolean headOnly) throws IOException {
+		final TranscodeService transcoder = HeimklangServiceRegistry.getTranscodeService();
+		final String pathInfo = req.getPathInfo();
+
+		// "/<id>.<ext>"
+		final int extensionStart = pathInfo != null ? pathInfo.lastIndexOf('.') : -1;
+		if (transcoder == null || extensionStart < 2) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		final TranscodeService.Target target = TranscodeService.Target.ofExtension(pathInfo.substring(extensionStart + 1));
+		final File source = ContentDirectoryServiceImpl.decodeItemId(pathInfo.substring(1, extensionStart));
+		final LibraryRoots roots = HeimklangServiceRegistry.getLibraryRoots();
+		if (target == null || source == null || (roots != null && roots.getRoot(source) == null) || !source.isFile()
+				|| !transcoder.getTargets(ContentDirectoryServiceImpl.getMimeTypeResolver().getMimeType(source)).contains(target)) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		final File cached = transcoder.getCached(source, target);
+		final LibraryEntry cachedEntry = cached != null ? LibraryEntry.of(cached, f -> target.getMimeType()) : null;
+		final FileStreamer streamer = HeimklangServiceRegistry.getFileStreamer();
+		if (cachedEntry != null && streamer != null) {
+			streamer.send(req, resp, cachedEntry, CACHED_CONTENT_FEATURES, headOnly);
+			return;
+		}
+
+		resp.setContentType(target.getMimeType());
+		resp.setHeader("Cache-Control", "no-cache");
+		resp.setHeader("contentFeatures.dlna.org", CONTENT_FEATURES);
+		resp.setHeader("transferMode.dlna.org", "Streaming");
+		// No ranges until it is in the cache
+		resp.setHeader("Accept-Ranges", "none");
+
+		if (headOnly) {
+			// Not worth starting the encoder for
+			resp.setStatus(HttpServletResponse.SC_OK);
+			return;
+		}
+
+		try {
+			if (!transcoder.transcode(source, target, resp.getOutputStream())) {
+				LOGGER.info("No encoder free for '%s'".formatted(source.getName()));
+				resp.setHeader("Retry-After", "10");
+				resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			}
+		} catch (IOException e) {
+			if (!resp.isCommitted()) {
+				// Nothing came out, the encoder is missing or did not like the file
+				LOGGER.warn("Could not transcode '%s' to %s: %s".formatted(source.getName(), target, e.toString()));
+				resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			} else {
+				// Usually the renderer skipping to the next track
+				LOGGER.debug("Transcoding '%s' to %s stopped: %s".formatted(source.getName(), target, e.toString()));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,92 @@
+package de.einwesen.heimklangwelle.contentdirectory.library;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.einwesen.heimklangwelle.contentdirectory.tags.MediaTags;
+
+/**
+ * Reads the tags of files on a thread of its own, for those who want them for every file listed,
+ * like the {@link SearchIndex} and the {@link VirtualLibrary}. Listing a directory never waits for it.
+ *
+ * One file after the other, in the order they were listed. Everyone reading the same tags through a
+ * {@link TagCache}, the second one to ask gets them without reading the file again.
+ */
+public class BackgroundTagReader {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(BackgroundTagReader.class);
+
+	private final Function<LibraryEntry, MediaTags> tagsOf;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		final Thread t = new Thread(r, "BackgroundTagReader");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	});
+
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/**
+	 * @param tagsOf returns the tags of an entry
+	 */
+	public BackgroundTagReader(Function<LibraryEntry, MediaTags> tagsOf) {
+		this.tagsOf = tagsOf;
+	}
+
+	/**
+	 * Reads the tags of the files in the background, and hands them over all at once when done.
+	 * Directories are left out.
+	 *
+	 * @param then called on the thread of the reader, with the tags by entry
+	 */
+	public void read(List<LibraryEntry> entries, Consumer<Map<LibraryEntry, MediaTags>> then) {
+		this.pending.addAndGet(entries.size());
+		try {
+			this.executor.execute(() -> {
+				final LinkedHashMap<LibraryEntry, MediaTags> tags = new LinkedHashMap<>();
+				for (LibraryEntry entry : entries) {
+					try {
+						if (!entry.isDirectory()) {
+							tags.put(entry, this.tagsOf.apply(entry));
+						}
+					} catch (RuntimeException e) {
+						LOGGER.debug("Could not read the tags of '%s': %s".formatted(entry.getFile().getAbsolutePath(), e.toString()));
+						tags.put(entry, MediaTags.EMPTY);
+					} finally {
+						this.pending.decrementAndGet();
+					}
+				}
+				try {
+					then.accept(tags);
+				} catch (Throwable t) {
+					LOGGER.warn("Could not hand over tags", t);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Shut down, nobody is waiting for them anymore
+			this.pending.addAndGet(-entries.size());
+		}
+	}
+
+	/**
+	 * @return number of files still waiting for their tags to be read
+	 */
+	public int getPending() {
+		return Math.max(0, this.pending.get());
+	}
+
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+
+}
@@ -0,0 +1,90 @@
+package de.einwesen.heimklangwelle.contentdirectory.library;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache for the number of visible children of a directory.
+ *
+ * Entries are keyed by path, and only valid as long as the modification time of the
+ * directory is the same as when the entry was stored.
+ */
+public class ChildCountCache {
+
+	private final int maxEntries;
+	private final LinkedHashMap<String, long[]> counts;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public ChildCountCache(final int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.counts = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+				if (size() > maxEntries) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached count, or -1 if there is none for this modification time
+	 */
+	public int get(String path, long lastModified) {
+		final long[] entry;
+		synchronized (this.counts) {
+			entry = this.counts.get(path);
+		}
+
+		if (entry != null && entry[0] == lastModified) {
+			this.hits.incrementAndGet();
+			return (int) entry[1];
+		}
+
+		this.misses.incrementAndGet();
+		return -1;
+	}
+
+	public void put(String path, long lastModified, int count) {
+		synchronized (this.counts) {
+			this.counts.put(path, new long[] { lastModified, count });
+		}
+	}
+
+	public void invalidate(String path) {
+		synchronized (this.counts) {
+			this.counts.remove(path);
+		}
+	}
+
+	public int size() {
+		synchronized (this.counts) {
+			return this.counts.size();
+		}
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+}
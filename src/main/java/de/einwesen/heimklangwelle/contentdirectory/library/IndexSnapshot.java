@@ -0,0 +1,374 @@
+package de.einwesen.heimklangwelle.contentdirectory.library;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.einwesen.heimklangwelle.contentdirectory.tags.MediaTags;
+
+/**
+ * Read only, memory mapped copy of the directory listings of a {@link MediaLibraryIndex}, as they were when it was written,
+ * with the tags of every file that were read by then.
+ *
+ * Layout (big endian):
+ * <pre>
+ * header      magic, version, directory count, entry count, string count
+ * directories path (string), lastModified, first entry, entry count         20 bytes each, sorted by path
+ * entries     parent (directory), name (string), mimetype (string or -1 for a directory), size, lastModified,
+ *             artist, album, genre (string or -1), track number, duration, flags                            56 bytes each
+ * strings     offsets (string count + 1), followed by the UTF-8 bytes
+ * </pre>
+ * String 0 is the fingerprint of whatever produced the listings, e.g. the root and its globs.
+ * A snapshot with another fingerprint is not used.
+ *
+ * Nothing is read until it is asked for, a directory is found by a binary search over the mapped records.
+ */
+public class IndexSnapshot {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(IndexSnapshot.class);
+
+	private static final int MAGIC = 0x484B4958; // HKIX
+	private static final int VERSION = 3;
+
+	private static final int HEADER_SIZE = 5 * 4;
+	private static final int DIRECTORY_SIZE = 4 + 8 + 4 + 4;
+	private static final int ENTRY_SIZE = 4 + 4 + 4 + 8 + 8 + 4 + 4 + 4 + 4 + 8 + 4;
+
+	// Flags of an entry
+	private static final int TAGS_READ = 1;
+	private static final int COVER_ART = 2;
+	private static final int TIME_SEEKABLE = 4;
+
+	private final File file;
+	private final ByteBuffer buffer;
+	private final int directoryCount;
+	private final int entryCount;
+	private final int stringCount;
+	private final int entriesStart;
+	private final int offsetsStart;
+	private final int stringsStart;
+
+	// Only a handful of different mimetypes, no need to decode them over and over
+	private final Map<Integer, String> mimeTypes = new HashMap<>();
+
+	private IndexSnapshot(File file, ByteBuffer buffer) throws IOException {
+		this.file = file;
+		this.buffer = buffer;
+
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not a snapshot, or of another version");
+		}
+
+		this.directoryCount = buffer.getInt(8);
+		this.entryCount = buffer.getInt(12);
+		this.stringCount = buffer.getInt(16);
+		this.entriesStart = HEADER_SIZE + this.directoryCount * DIRECTORY_SIZE;
+		this.offsetsStart = this.entriesStart + this.entryCount * ENTRY_SIZE;
+		this.stringsStart = this.offsetsStart + (this.stringCount + 1) * 4;
+
+		if (this.directoryCount < 0 || this.entryCount < 0 || this.stringCount < 1 || this.stringsStart > buffer.capacity()
+				|| this.stringsStart + buffer.getInt(this.stringsStart - 4) != buffer.capacity()) {
+			throw new IOException("Truncated");
+		}
+	}
+
+	/**
+	 * @return the snapshot, or null if there is none, it is broken, or it was written with another fingerprint
+	 */
+	public static IndexSnapshot open(File file, String fingerprint) {
+		if (!file.isFile()) {
+			return null;
+		}
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Too big to be mapped");
+			}
+
+			// The mapping stays valid after the channel is closed
+			final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			final IndexSnapshot snapshot = new IndexSnapshot(file, buffer);
+
+			if (!fingerprint.equals(snapshot.getString(0))) {
+				LOGGER.info("Ignoring snapshot '%s', the library root was configured differently".formatted(file.getAbsolutePath()));
+				return null;
+			}
+
+			LOGGER.info("Mapped snapshot '%s': %d directories, %d entries".formatted(file.getAbsolutePath(), snapshot.directoryCount, snapshot.entryCount));
+			return snapshot;
+
+		} catch (IOException | RuntimeException e) {
+			LOGGER.warn("Could not read snapshot '" + file.getAbsolutePath() + "': " + e.toString());
+			return null;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getDirectoryCount() {
+		return directoryCount;
+	}
+
+	/**
+	 * @return the position of the directory, or -1 if it is not in the snapshot
+	 */
+	public int find(String key) {
+		int low = 0;
+		int high = this.directoryCount - 1;
+
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			final int comparison = getKey(middle).compareTo(key);
+			if (comparison < 0) {
+				low = middle + 1;
+			} else if (comparison > 0) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the path of the directory at the position
+	 */
+	public String getKey(int directory) {
+		return getString(this.buffer.getInt(HEADER_SIZE + directory * DIRECTORY_SIZE));
+	}
+
+	public long getLastModified(int directory) {
+		return this.buffer.getLong(HEADER_SIZE + directory * DIRECTORY_SIZE + 4);
+	}
+
+	public int getEntryCount(int directory) {
+		return this.buffer.getInt(HEADER_SIZE + directory * DIRECTORY_SIZE + 16);
+	}
+
+	/**
+	 * @return the children of the directory at the position, as they were listed
+	 */
+	public List<LibraryEntry> getEntries(int directory) {
+		final int record = HEADER_SIZE + directory * DIRECTORY_SIZE;
+		final int first = this.buffer.getInt(record + 12);
+		final int count = this.buffer.getInt(record + 16);
+
+		final File parent = new File(getKey(directory));
+		final ArrayList<LibraryEntry> entries = new ArrayList<>(count);
+
+		for (int i = first; i < first + count; i++) {
+			final int position = this.entriesStart + i * ENTRY_SIZE;
+			final int mimeType = this.buffer.getInt(position + 8);
+			entries.add(new LibraryEntry(new File(parent, getString(this.buffer.getInt(position + 4))),
+					mimeType < 0,
+					mimeType < 0 ? null : getMimeType(mimeType),
+					this.buffer.getLong(position + 12),
+					this.buffer.getLong(position + 20)));
+		}
+		return entries;
+	}
+
+	/**
+	 * @return the tags of the children of the directory at the position, in the order of {@link #getEntries(int)}.
+	 *         null for directories, and files whose tags were not read when the snapshot was written
+	 */
+	public List<MediaTags> getTags(int directory) {
+		final int record = HEADER_SIZE + directory * DIRECTORY_SIZE;
+		final int first = this.buffer.getInt(record + 12);
+		final int count = this.buffer.getInt(record + 16);
+
+		final ArrayList<MediaTags> tags = new ArrayList<>(count);
+		for (int i = first; i < first + count; i++) {
+			final int position = this.entriesStart + i * ENTRY_SIZE;
+			final int flags = this.buffer.getInt(position + 52);
+			tags.add((flags & TAGS_READ) == 0 ? null : new MediaTags(
+					getOptionalString(this.buffer.getInt(position + 28)),
+					getOptionalString(this.buffer.getInt(position + 32)),
+					this.buffer.getInt(position + 40),
+					getOptionalString(this.buffer.getInt(position + 36)),
+					this.buffer.getLong(position + 44),
+					(flags & COVER_ART) != 0,
+					(flags & TIME_SEEKABLE) != 0));
+		}
+		return tags;
+	}
+
+	private String getOptionalString(int index) {
+		return index < 0 ? null : getString(index);
+	}
+
+	private String getMimeType(int index) {
+		synchronized (this.mimeTypes) {
+			return this.mimeTypes.computeIfAbsent(index, this::getString);
+		}
+	}
+
+	private String getString(int index) {
+		final int start = this.buffer.getInt(this.offsetsStart + index * 4);
+		final int end = this.buffer.getInt(this.offsetsStart + (index + 1) * 4);
+
+		// Absolute get, the buffer is shared by all threads and its position is never touched
+		final byte[] bytes = new byte[end - start];
+		this.buffer.get(this.stringsStart + start, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * A directory with its listing, as it goes into a snapshot
+	 */
+	public static class Directory {
+		private final String key;
+		private final long lastModified;
+		private final List<LibraryEntry> entries;
+		private final List<MediaTags> tags;
+
+		/**
+		 * @param tags of the entries in the same order, null for those without
+		 */
+		public Directory(String key, long lastModified, List<LibraryEntry> entries, List<MediaTags> tags) {
+			this.key = key;
+			this.lastModified = lastModified;
+			this.entries = entries;
+			this.tags = tags;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public List<LibraryEntry> getEntries() {
+			return entries;
+		}
+	}
+
+	/**
+	 * Writes the snapshot next to the file, and moves it into place once complete.
+	 * The file must not be the one of a snapshot in use, Windows refuses to replace a mapped file.
+	 *
+	 * @param directories sorted by key
+	 */
+	public static void write(File file, String fingerprint, Collection<Directory> directories) throws IOException {
+		final long start = System.currentTimeMillis();
+
+		final Map<String, Integer> stringIds = new HashMap<>();
+		final ArrayList<byte[]> strings = new ArrayList<>();
+		final StringTable table = value -> value == null ? -1 : stringIds.computeIfAbsent(value, v -> {
+			strings.add(v.getBytes(StandardCharsets.UTF_8));
+			return strings.size() - 1;
+		});
+		table.idOf(fingerprint);
+
+		int entryCount = 0;
+		for (Directory directory : directories) {
+			entryCount += directory.entries.size();
+		}
+
+		final File tmp = new File(file.getAbsolutePath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(directories.size());
+			out.writeInt(entryCount);
+
+			// The string table goes last, but its size is needed up front. Collect all strings first.
+			for (Directory directory : directories) {
+				table.idOf(directory.key);
+				for (LibraryEntry entry : directory.entries) {
+					table.idOf(entry.getName());
+					if (!entry.isDirectory()) {
+						table.idOf(entry.getMimeType());
+					}
+				}
+				for (MediaTags tags : directory.tags) {
+					if (tags != null) {
+						table.idOf(tags.getArtist());
+						table.idOf(tags.getAlbum());
+						table.idOf(tags.getGenre());
+					}
+				}
+			}
+			out.writeInt(strings.size());
+
+			int firstEntry = 0;
+			for (Directory directory : directories) {
+				out.writeInt(table.idOf(directory.key));
+				out.writeLong(directory.lastModified);
+				out.writeInt(firstEntry);
+				out.writeInt(directory.entries.size());
+				firstEntry += directory.entries.size();
+			}
+
+			int parent = 0;
+			for (Directory directory : directories) {
+				for (int i = 0; i < directory.entries.size(); i++) {
+					final LibraryEntry entry = directory.entries.get(i);
+					out.writeInt(parent);
+					out.writeInt(table.idOf(entry.getName()));
+					out.writeInt(entry.isDirectory() ? -1 : table.idOf(entry.getMimeType()));
+					out.writeLong(entry.getSize());
+					out.writeLong(entry.getLastModified());
+
+					final MediaTags tags = directory.tags.get(i);
+					out.writeInt(tags != null ? table.idOf(tags.getArtist()) : -1);
+					out.writeInt(tags != null ? table.idOf(tags.getAlbum()) : -1);
+					out.writeInt(tags != null ? table.idOf(tags.getGenre()) : -1);
+					out.writeInt(tags != null ? tags.getTrackNumber() : 0);
+					out.writeLong(tags != null ? tags.getDurationMillis() : -1);
+					out.writeInt(tags == null ? 0 : TAGS_READ | (tags.hasCoverArt() ? COVER_ART : 0) | (tags.isTimeSeekable() ? TIME_SEEKABLE : 0));
+				}
+				parent += 1;
+			}
+
+			int offset = 0;
+			out.writeInt(offset);
+			for (byte[] bytes : strings) {
+				offset += bytes.length;
+				out.writeInt(offset);
+			}
+			for (byte[] bytes : strings) {
+				out.write(bytes);
+			}
+		} catch (IOException | RuntimeException e) {
+			// Every generation has a name of its own, a leftover would never be overwritten
+			tmp.delete();
+			throw e;
+		}
+
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tmp.delete();
+		}
+
+		LOGGER.info("Wrote snapshot '%s': %d directories, %d entries, %d kB in %d ms".formatted(file.getAbsolutePath(),
+				directories.size(), entryCount, file.length() / 1024, System.currentTimeMillis() - start));
+	}
+
+	private interface StringTable {
+		int idOf(String value);
+	}
+
+}
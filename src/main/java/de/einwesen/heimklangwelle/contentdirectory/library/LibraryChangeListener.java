@@ -0,0 +1,16 @@
+package de.einwesen.heimklangwelle.contentdirectory.library;
+
+import java.io.File;
+import java.util.List;
+
+public interface LibraryChangeListener {
+
+	/**
+	 * Called whenever the listing of a directory was read or dropped by the index.
+	 * 
+	 * A modified entry is reported as removed (old state) and added (new state). 
+	 * The first listing of a directory reports all children as added.
+	 */
+	void directoryChanged(File directory, List<LibraryEntry> added, List<LibraryEntry> removed);
+
+}
@@ -0,0 +1,144 @@
+package de.einwesen.heimklangwelle.contentdirectory.library;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.util.function.Function;
+
+/**
+ * Snapshot of a single file or directory, as seen by the last listing of its parent.
+ */
+public class LibraryEntry {
+
+	// Windows keeps the hidden flag in the attributes, everywhere else it's a leading dot
+	private static final boolean DOS_ATTRIBUTES = File.separatorChar == '\\';
+
+	private final File file;
+	private final boolean directory;
+	private final String mimeType;
+	private final long size;
+	private final long lastModified;
+
+	public LibraryEntry(File file, boolean directory, String mimeType, long size, long lastModified) {
+		this.file = file;
+		this.directory = directory;
+		this.mimeType = mimeType;
+		this.size = size;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * @param file
+	 * @param mimeResolver returns the mimetype of a file, or null if the file is not supported
+	 * @return null, if the file should not be visible at all
+	 */
+	public static LibraryEntry of(File file, Function<File, String> mimeResolver) {
+		return of(file.toPath(), mimeResolver);
+	}
+
+	/**
+	 * Same as {@link #of(File, Function)}, but reads everything needed with a single call for the attributes,
+	 * instead of asking the {@link File} one by one. Only files that would be visible are checked for read access.
+	 */
+	public static LibraryEntry of(Path path, Function<File, String> mimeResolver) {
+		if (!DOS_ATTRIBUTES && isDotFile(path)) {
+			return null;
+		}
+
+		final BasicFileAttributes attributes = readAttributes(path);
+		if (attributes == null || isHidden(path, attributes)) {
+			return null;
+		}
+
+		final File file = path.toFile();
+		if (attributes.isDirectory()) {
+			return Files.isReadable(path) ? new LibraryEntry(file, true, null, 0, attributes.lastModifiedTime().toMillis()) : null;
+		}
+
+		final String mimeType = mimeResolver.apply(file);
+		if (mimeType != null && Files.isReadable(path)) {
+			return new LibraryEntry(file, false, mimeType, attributes.size(), attributes.lastModifiedTime().toMillis());
+		}
+
+		return null;
+	}
+
+	/**
+	 * Same check as {@link #of(Path, Function)}, without creating an entry
+	 */
+	public static boolean isVisible(Path path, Function<File, String> mimeResolver) {
+		if (!DOS_ATTRIBUTES && isDotFile(path)) {
+			return false;
+		}
+
+		final BasicFileAttributes attributes = readAttributes(path);
+		if (attributes == null || isHidden(path, attributes)) {
+			return false;
+		}
+		return (attributes.isDirectory() || mimeResolver.apply(path.toFile()) != null) && Files.isReadable(path);
+	}
+
+	private static boolean isDotFile(Path path) {
+		final Path name = path.getFileName();
+		return name != null && name.toString().startsWith(".");
+	}
+
+	private static boolean isHidden(Path path, BasicFileAttributes attributes) {
+		// Drives may be flagged as hidden, but their content is not
+		return attributes instanceof DosFileAttributes dos && dos.isHidden() && path.getFileName() != null;
+	}
+
+	/**
+	 * @return the attributes, following links, or null if the file does not exist (anymore) or can not be accessed
+	 */
+	private static BasicFileAttributes readAttributes(Path path) {
+		try {
+			return DOS_ATTRIBUTES ? Files.readAttributes(path, DosFileAttributes.class) : Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (IOException | UnsupportedOperationException e) {
+			return null;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public String getName() {
+		return file.getName();
+	}
+
+	public boolean isDirectory() {
+		return directory;
+	}
+
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return true, if both entries describe the same state of a file
+	 */
+	public boolean isSameState(LibraryEntry other) {
+		return this.directory == other.directory 
+				&& this.size == other.size 
+				&& this.lastModified == other.lastModified 
+				&& this.file.equals(other.file);
+	}
+
+	@Override
+	public String toString() {
+		return (directory ? "[D] " : "[" + mimeType + "] ") + file.getAbsolutePath();
+	}
+
+}
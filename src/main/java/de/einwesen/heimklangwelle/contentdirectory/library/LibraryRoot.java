@@ -0,0 +1,177 @@
+package de.einwesen.heimklangwelle.contentdirectory.library;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * A named directory, that is shared by the content server together with everything below it.
+ *
+ * Include and exclude globs are applied while listing, before a file is even stat'ed.
+ * A glob matches, if it matches either the path relative to the root (e.g. "Podcasts/**") or just the name (e.g. "*.m3u").
+ * Excludes apply to files and directories, includes only to files. Without includes every file is included.
+ * System excludes are plain names, that only hide the directories directly below the root.
+ *
+ * Every root has its own index, and if the root is scanned, its own watcher.
+ */
+public class LibraryRoot implements FileFilter {
+
+	private final String name;
+	private final File directory;
+	private final Path directoryPath;
+	private final List<PathMatcher> includes;
+	private final List<PathMatcher> excludes;
+	private final Set<String> systemExcludes = new HashSet<>();
+	private final List<String> globs = new ArrayList<>();
+
+	private final MediaLibraryIndex index;
+	private LibraryWatcher watcher = null;
+
+	/**
+	 * @param includes comma separated globs, may be empty
+	 * @param excludes comma separated globs, may be empty
+	 * @param systemExcludes comma separated names of directories directly below the root, may be empty
+	 * @param indexFactory creates the index of this root, listing with the given filter
+	 */
+	public LibraryRoot(String name, File directory, String includes, String excludes, String systemExcludes, Function<FileFilter, MediaLibraryIndex> indexFactory) {
+		this.name = name;
+		this.directory = directory.getAbsoluteFile();
+		this.directoryPath = this.directory.toPath();
+		this.includes = compileGlobs(includes, "+");
+		this.excludes = compileGlobs(excludes, "-");
+		for (String systemExclude : systemExcludes.split(",")) {
+			if (systemExclude.trim().length() > 0) {
+				this.systemExcludes.add(systemExclude.trim());
+				this.globs.add("-" + File.separator + systemExclude.trim());
+			}
+		}
+		this.index = indexFactory.apply(this);
+	}
+
+	private List<PathMatcher> compileGlobs(String globList, String prefix) {
+		if (globList == null || globList.trim().length() == 0) {
+			return Collections.emptyList();
+		}
+
+		final ArrayList<PathMatcher> matchers = new ArrayList<>();
+		for (String glob : globList.split(",")) {
+			if (glob.trim().length() > 0) {
+				// throws an IllegalArgumentException if the pattern is invalid, which is what we want
+				matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob.trim()));
+				this.globs.add(prefix + glob.trim());
+			}
+		}
+		return matchers;
+	}
+
+	@Override
+	public boolean accept(File file) {
+		final Path relative;
+		final Path name;
+		try {
+			relative = this.directoryPath.relativize(file.getAbsoluteFile().toPath());
+			name = relative.getFileName();
+		} catch (IllegalArgumentException e) {
+			return false; // not below this root, e.g. another drive
+		}
+
+		if (name == null) {
+			return true; // the root itself
+		}
+
+		if (isExcluded(relative, name)) {
+			return false;
+		}
+
+		if (this.includes.isEmpty()) {
+			return true;
+		}
+
+		for (PathMatcher include : this.includes) {
+			if (include.matches(relative) || include.matches(name)) {
+				return true;
+			}
+		}
+
+		// Directories need to be listed, so the files inside can be matched
+		return file.isDirectory();
+	}
+
+	private boolean isExcluded(Path relative, Path name) {
+		if (relative.getNameCount() == 1 && this.systemExcludes.contains(name.toString())) {
+			return true;
+		}
+		for (PathMatcher exclude : this.excludes) {
+			if (exclude.matches(relative) || exclude.matches(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the file is the root directory, or below it and neither it nor a directory in between is excluded.
+	 *         Includes are left to listing, this never touches the filesystem.
+	 */
+	public boolean contains(File file) {
+		final String path = file.getAbsolutePath();
+		final String rootPath = this.directory.getAbsolutePath();
+
+		if (path.equals(rootPath)) {
+			return true;
+		}
+
+		if (!path.startsWith(rootPath.endsWith(File.separator) ? rootPath : rootPath + File.separator)) {
+			return false;
+		}
+
+		// Every directory in between has to be visible as well, otherwise it would not be reachable by browsing
+		final Path relative = this.directoryPath.relativize(file.getAbsoluteFile().toPath());
+		for (int count = 1; count <= relative.getNameCount(); count++) {
+			final Path ancestor = relative.subpath(0, count);
+			if (isExcluded(ancestor, ancestor.getFileName())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return the includes (+) and excludes (-) as configured
+	 */
+	public List<String> getGlobs() {
+		return Collections.unmodifiableList(globs);
+	}
+
+	public MediaLibraryIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return the watcher, or null if the root is not scanned
+	 */
+	public LibraryWatcher getWatcher() {
+		return watcher;
+	}
+
+	void setWatcher(LibraryWatcher watcher) {
+		this.watcher = watcher;
+	}
+
+}
@@ -0,0 +1,354 @@
+package de.einwesen.heimklangwelle.contentdirectory.library;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.einwesen.heimklangwelle.contentdirectory.tags.MediaTags;
+
+/**
+ * The set of {@link LibraryRoot}s shared by the content server. Files outside of every root are not visible at all.
+ *
+ * Roots are configured as a list of "name=directory" separated by {@link File#pathSeparator}, e.g.
+ * "Music=/srv/music:Audiobooks=/srv/books". Without a name, the name of the directory is used.
+ */
+public class LibraryRoots {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(LibraryRoots.class);
+
+	// Pseudo filesystems directly below "/", which are slow to stat and of no use to anyone. Not excluded further down.
+	public static final String DEFAULT_SYSTEM_EXCLUDES = "proc,sys,dev,run";
+
+	private final List<LibraryRoot> roots;
+	private final TitleCollator collator;
+	private volatile LibraryScanner scanner = null;
+	private File snapshotDirectory = null;
+	private String listedTypes = "";
+
+	private LibraryRoots(List<LibraryRoot> roots, TitleCollator collator) {
+		this.roots = Collections.unmodifiableList(roots);
+		this.collator = collator;
+	}
+
+	/**
+	 * @param rootList configured roots, if empty all filesystem roots are used
+	 * @param globsOf returns the includes [0] and excludes [1] for the name of a root
+	 * @param indexFactory creates the index of a root, listing with the given filter
+	 */
+	public static LibraryRoots create(String rootList, Function<String, String[]> globsOf, Function<FileFilter, MediaLibraryIndex> indexFactory, TitleCollator collator) {
+		final ArrayList<LibraryRoot> roots = new ArrayList<>();
+
+		for (String spec : rootList.split(File.pathSeparator)) {
+			if (spec.trim().length() == 0) {
+				continue;
+			}
+
+			final int separator = spec.indexOf('=');
+			final File directory = new File(separator > 0 ? spec.substring(separator + 1).trim() : spec.trim()).getAbsoluteFile();
+			final String name = separator > 0 ? spec.substring(0, separator).trim() : directory.getName();
+
+			if (!directory.isDirectory()) {
+				LOGGER.warn("Library root '%s' is not a directory: %s".formatted(name, directory.getAbsolutePath()));
+			}
+
+			final String[] globs = globsOf.apply(name);
+			roots.add(new LibraryRoot(name, directory, globs[0], globs[1], "", indexFactory));
+		}
+
+		if (roots.isEmpty()) {
+			// Nothing configured, everything is shared as it used to be
+			for (File drive : File.listRoots()) {
+				final String[] globs = globsOf.apply(drive.getAbsolutePath());
+				final String systemExcludes = "/".equals(drive.getAbsolutePath()) ? DEFAULT_SYSTEM_EXCLUDES : "";
+				roots.add(new LibraryRoot(drive.getAbsolutePath(), drive, globs[0], globs[1], systemExcludes, indexFactory));
+			}
+		}
+
+		for (LibraryRoot root : roots) {
+			LOGGER.info("Library root '%s' at %s %s".formatted(root.getName(), root.getDirectory().getAbsolutePath(), root.getGlobs()));
+		}
+
+		return new LibraryRoots(collator.sort(roots, LibraryRoot::getName), collator);
+	}
+
+	/**
+	 * @return the key to look up the globs of a single root with, e.g. "Audio Books" -> "AUDIO_BOOKS"
+	 */
+	public static String getConfigSuffix(String rootName) {
+		return rootName.toUpperCase(Locale.ROOT).replaceAll("[^A-Z0-9]", "_");
+	}
+
+	/**
+	 * @return all roots, sorted by name
+	 */
+	public List<LibraryRoot> getRoots() {
+		return roots;
+	}
+
+	/**
+	 * @return the innermost root containing the file, or null if the file is not shared
+	 */
+	public LibraryRoot getRoot(File file) {
+		LibraryRoot match = null;
+		for (LibraryRoot root : this.roots) {
+			if (root.contains(file) && (match == null || root.getDirectory().getAbsolutePath().length() > match.getDirectory().getAbsolutePath().length())) {
+				match = root;
+			}
+		}
+		return match;
+	}
+
+	/**
+	 * @return the root with exactly this directory, or null
+	 */
+	public LibraryRoot getRootAt(File directory) {
+		final File absolute = directory.getAbsoluteFile();
+		for (LibraryRoot root : this.roots) {
+			if (root.getDirectory().equals(absolute)) {
+				return root;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the entry, or null if the file does not exist, is not visible, or not shared
+	 */
+	public LibraryEntry getEntry(File file) {
+		final LibraryRoot root = getRoot(file);
+		if (root == null) {
+			return null;
+		}
+
+		if (root.getDirectory().equals(file.getAbsoluteFile())) {
+			// There is no listing containing the root, and its parent is not shared
+			final LibraryEntry entry = LibraryEntry.of(root.getDirectory(), f -> null);
+			return entry != null && entry.isDirectory() ? entry : null;
+		}
+		return root.getIndex().getEntry(file);
+	}
+
+	/**
+	 * @return the visible children, or an empty list if the directory is not shared
+	 */
+	public List<LibraryEntry> getChildren(File directory) {
+		final LibraryRoot root = getRoot(directory);
+		return root != null ? root.getIndex().getChildren(directory) : Collections.emptyList();
+	}
+
+	/**
+	 * @return true if the listing of the directory is held by the index of its root, so getting its children costs no listing
+	 */
+	public boolean isIndexed(File directory) {
+		final LibraryRoot root = getRoot(directory);
+		return root != null && root.getIndex().contains(directory);
+	}
+
+	/**
+	 * @return the tags of a file, or {@link MediaTags#EMPTY} if it is not shared
+	 */
+	public MediaTags getTags(LibraryEntry entry) {
+		final LibraryRoot root = getRoot(entry.getFile());
+		return root != null ? root.getIndex().getTags(entry) : MediaTags.EMPTY;
+	}
+
+	public TitleCollator getCollator() {
+		return collator;
+	}
+
+	/**
+	 * Maps the snapshot of every root from the directory, if there is one. Snapshots are written 
+	 * to the same directory once the initial scan is done, and on shutdown.
+	 * 
+	 * Every snapshot is written as a new generation, the one in use stays mapped and cannot be replaced on Windows.
+	 * Older generations are deleted as soon as they are not mapped anymore, at the latest on the next start.
+	 * 
+	 * @param listedTypes anything else that decides which files are listed, a snapshot made with other types is not used
+	 */
+	public void useSnapshots(File directory, String listedTypes) {
+		this.snapshotDirectory = directory;
+		this.listedTypes = listedTypes;
+		for (LibraryRoot root : this.roots) {
+			final List<File> generations = getSnapshotFiles(root);
+			if (!generations.isEmpty()) {
+				root.getIndex().setSnapshot(IndexSnapshot.open(generations.get(generations.size() - 1), getSnapshotFingerprint(root)));
+				deleteSnapshots(generations.subList(0, generations.size() - 1));
+			}
+		}
+	}
+
+	/**
+	 * Writes the listings of every root to its snapshot, does nothing if snapshots are not used
+	 */
+	public synchronized void writeSnapshots() {
+		if (this.snapshotDirectory == null) {
+			return;
+		}
+		
+		for (LibraryRoot root : this.roots) {
+			if (root.getIndex().size() > 0 || root.getIndex().getSnapshot() != null) {
+				final List<File> previous = getSnapshotFiles(root);
+				final File file = getSnapshotFile(root, previous.isEmpty() ? 1 : getGeneration(root, previous.get(previous.size() - 1)) + 1);
+				try {
+					root.getIndex().writeSnapshot(file, getSnapshotFingerprint(root));
+				} catch (IOException | RuntimeException e) {
+					LOGGER.warn("Could not write the snapshot of '%s': %s".formatted(root.getName(), e.toString()));
+					continue;
+				}
+
+				// The new one has everything the old one had, which is unmapped once the gc finds it unused
+				final IndexSnapshot written = IndexSnapshot.open(file, getSnapshotFingerprint(root));
+				if (written != null) {
+					root.getIndex().setSnapshot(written);
+					deleteSnapshots(previous);
+				}
+			}
+		}
+	}
+
+	private String getSnapshotName(LibraryRoot root) {
+		// The name alone could be the same for "A B" and "A_B"
+		return "library-%s-%08x".formatted(getConfigSuffix(root.getName()), root.getDirectory().getAbsolutePath().hashCode());
+	}
+
+	private File getSnapshotFile(LibraryRoot root, long generation) {
+		return new File(this.snapshotDirectory, "%s.%d.idx".formatted(getSnapshotName(root), generation));
+	}
+
+	/**
+	 * @return the generation of a snapshot file, 0 for one without, as they were written before
+	 */
+	private long getGeneration(LibraryRoot root, File file) {
+		// ".<generation>", or nothing
+		final String name = file.getName();
+		final String generation = name.substring(getSnapshotName(root).length(), name.length() - ".idx".length());
+		try {
+			return generation.startsWith(".") ? Long.parseLong(generation.substring(1)) : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @return all snapshot files of the root, oldest generation first
+	 */
+	private List<File> getSnapshotFiles(LibraryRoot root) {
+		final String prefix = getSnapshotName(root) + ".";
+		final File[] files = this.snapshotDirectory.listFiles(f -> f.getName().startsWith(prefix) && f.getName().endsWith(".idx") && f.isFile());
+		if (files == null) {
+			return Collections.emptyList();
+		}
+
+		final ArrayList<File> sorted = new ArrayList<>(Arrays.asList(files));
+		sorted.sort(Comparator.comparingLong(f -> getGeneration(root, f)));
+		return sorted;
+	}
+
+	private static void deleteSnapshots(List<File> files) {
+		for (File file : files) {
+			if (!file.delete() && file.exists()) {
+				// Windows does not delete a file that is still mapped, the next write or start will
+				LOGGER.debug("Could not delete old snapshot '%s' yet".formatted(file.getAbsolutePath()));
+			}
+		}
+	}
+
+	private String getSnapshotFingerprint(LibraryRoot root) {
+		// Listings depend on the globs, a snapshot made with other ones would show the wrong files
+		return root.getDirectory().getAbsolutePath() + " " + root.getGlobs() + (this.listedTypes.isEmpty() ? "" : " " + this.listedTypes);
+	}
+
+	public void addChangeListener(LibraryChangeListener listener) {
+		for (LibraryRoot root : this.roots) {
+			root.getIndex().addChangeListener(listener);
+		}
+	}
+
+	/**
+	 * Scans the given directories in the background, and keeps them up to date afterwards.
+	 * Every root gets its own watcher, only directories within a root are scanned.
+	 *
+	 * @param directories to scan, or null to scan all roots
+	 * @param pollIntervalSeconds see {@link LibraryWatcher}
+	 * @param parallelism see {@link LibraryScanner}
+	 */
+	public void startScan(List<File> directories, long pollIntervalSeconds, int parallelism) {
+		final ArrayList<File> pending = new ArrayList<>();
+		if (directories == null) {
+			for (LibraryRoot root : this.roots) {
+				pending.add(root.getDirectory());
+			}
+		} else {
+			for (File directory : directories) {
+				if (getRoot(directory) != null) {
+					pending.add(directory.getAbsoluteFile());
+				} else {
+					LOGGER.warn("Not scanning '%s', it is not within a library root".formatted(directory.getAbsolutePath()));
+				}
+			}
+		}
+
+		if (pending.isEmpty()) {
+			return;
+		}
+
+		for (File directory : pending) {
+			final LibraryRoot root = getRoot(directory);
+			synchronized (root) {
+				if (root.getWatcher() == null) {
+					final LibraryWatcher watcher = new LibraryWatcher(root.getIndex(), pollIntervalSeconds);
+					watcher.start();
+					root.setWatcher(watcher);
+				}
+			}
+		}
+
+		final LinkedHashMap<File, MediaLibraryIndex> scans = new LinkedHashMap<>();
+		for (File directory : pending) {
+			final LibraryRoot root = getRoot(directory);
+			// Directories get registered with the watcher as they are listed by the scan
+			root.getWatcher().watch(directory);
+			scans.put(directory, root.getIndex());
+		}
+
+		this.scanner = new LibraryScanner(parallelism);
+		final Thread prescan = new Thread(() -> {
+			try {
+				this.scanner.scan(scans);
+				writeSnapshots();
+			} catch (Throwable t) {
+				LOGGER.warn("Could not scan the library", t);
+			}
+		}, "LibraryPrescan");
+		prescan.setDaemon(true);
+		prescan.start();
+	}
+
+	/**
+	 * @return the scanner of the initial scan, or null if there was none
+	 */
+	public LibraryScanner getScanner() {
+		return scanner;
+	}
+
+	public void shutdown() {
+		for (LibraryRoot root : this.roots) {
+			if (root.getWatcher() != null) {
+				root.getWatcher().shutdown();
+			}
+		}
+		writeSnapshots();
+	}
+
+}
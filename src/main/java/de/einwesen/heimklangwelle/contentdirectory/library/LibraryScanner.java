@@ -0,0 +1,172 @@
+package de.einwesen.heimklangwelle.contentdirectory.library;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Walks directory trees on a fork/join pool, to put them into their {@link MediaLibraryIndex} for the first time.
+ *
+ * Listing a directory is mostly waiting for the filesystem, on network mounts in particular.
+ * With several directories listed at once, the waiting overlaps. Threads that are idle steal
+ * the subdirectories queued by the others, so a single deep tree is spread as well.
+ * The number of threads is capped, so that a NAS is not flooded with requests.
+ */
+public class LibraryScanner {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(LibraryScanner.class);
+
+	private static final long PROGRESS_INTERVAL_MILLIS = 10000;
+
+	private final int parallelism;
+
+	private final AtomicInteger directories = new AtomicInteger();
+	private final AtomicInteger files = new AtomicInteger();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicLong lastProgress = new AtomicLong();
+	private volatile long startMillis = 0;
+	private volatile long endMillis = 0;
+
+	/**
+	 * @param parallelism max. number of directories listed at the same time
+	 */
+	public LibraryScanner(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Scans the given directories and everything below, and returns once all of them are done.
+	 *
+	 * @param directories the directories to scan, with the index they belong to
+	 */
+	public void scan(Map<File, MediaLibraryIndex> directories) {
+		final ForkJoinPool pool = new ForkJoinPool(this.parallelism, p -> {
+			final ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+			t.setName("LibraryScan-" + t.getPoolIndex());
+			return t;
+		}, null, false);
+
+		this.startMillis = System.currentTimeMillis();
+		this.lastProgress.set(this.startMillis);
+		this.endMillis = 0;
+
+		final ArrayList<DirectoryTask> tasks = new ArrayList<>();
+		for (Map.Entry<File, MediaLibraryIndex> directory : directories.entrySet()) {
+			tasks.add(new DirectoryTask(directory.getValue(), directory.getKey()));
+		}
+		this.pending.addAndGet(tasks.size());
+
+		try {
+			for (DirectoryTask task : tasks) {
+				pool.execute(task);
+			}
+			for (DirectoryTask task : tasks) {
+				task.join();
+			}
+		} finally {
+			pool.shutdown();
+			this.endMillis = System.currentTimeMillis();
+		}
+
+		LOGGER.info("Scanned %d trees with %d threads: %d directories, %d files in %d ms (%d failed)".formatted(
+				tasks.size(), this.parallelism, this.directories.get(), this.files.get(), getMillis(), this.failed.get()));
+	}
+
+	private void logProgress() {
+		final long now = System.currentTimeMillis();
+		final long last = this.lastProgress.get();
+		if (now - last >= PROGRESS_INTERVAL_MILLIS && this.lastProgress.compareAndSet(last, now)) {
+			final long seconds = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(now - this.startMillis));
+			LOGGER.info("Scanning: %d directories, %d files, %d directories pending (%d directories/s)".formatted(
+					this.directories.get(), this.files.get(), this.pending.get(), this.directories.get() / seconds));
+		}
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @return true while a scan is in progress
+	 */
+	public boolean isRunning() {
+		return this.startMillis > 0 && this.endMillis == 0;
+	}
+
+	public int getDirectories() {
+		return directories.get();
+	}
+
+	public int getFiles() {
+		return files.get();
+	}
+
+	/**
+	 * @return number of directories found, but not listed yet
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	public int getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return the duration of the current or last scan
+	 */
+	public long getMillis() {
+		if (this.startMillis == 0) {
+			return 0;
+		}
+		return (this.endMillis > 0 ? this.endMillis : System.currentTimeMillis()) - this.startMillis;
+	}
+
+	private class DirectoryTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final MediaLibraryIndex index;
+		private final File directory;
+
+		private DirectoryTask(MediaLibraryIndex index, File directory) {
+			this.index = index;
+			this.directory = directory;
+		}
+
+		@Override
+		protected void compute() {
+			final ArrayList<DirectoryTask> subdirectories = new ArrayList<>();
+			try {
+				for (LibraryEntry child : this.index.getChildren(this.directory)) {
+					if (child.isDirectory()) {
+						subdirectories.add(new DirectoryTask(this.index, child.getFile()));
+					} else {
+						files.incrementAndGet();
+					}
+				}
+				directories.incrementAndGet();
+			} catch (Throwable t) {
+				failed.incrementAndGet();
+				LOGGER.warn("Could not scan '" + this.directory.getAbsolutePath() + "'", t);
+			}
+
+			pending.addAndGet(subdirectories.size() - 1);
+			logProgress();
+
+			// The first one is run by this thread right away, the others can be stolen by idle threads
+			invokeAll(subdirectories);
+		}
+	}
+
+}
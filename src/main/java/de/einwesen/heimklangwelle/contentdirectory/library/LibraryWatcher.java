@@ -0,0 +1,257 @@
+package de.einwesen.heimklangwelle.contentdirectory.library;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the directories below a set of roots in the {@link MediaLibraryIndex} up to date.
+ *
+ * Changes are picked up by a {@link WatchService}, which only touches the directory that changed.
+ * Since not every filesystem emits events (e.g. network mounts), all indexed directories
+ * are additionally compared by their modification time in a fixed interval.
+ * Only directories with a changed modification time are listed again.
+ */
+public class LibraryWatcher implements LibraryChangeListener {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(LibraryWatcher.class);
+
+	// Events for a single directory usually come in bursts (e.g. copying an album)
+	private static final long EVENT_COALESCE_MILLIS = 500;
+
+	private final MediaLibraryIndex index;
+	private final long pollIntervalSeconds;
+
+	private final List<File> roots = new CopyOnWriteArrayList<>();
+	private final Map<WatchKey, File> watchedDirectories = new ConcurrentHashMap<>();
+	private final Map<String, WatchKey> watchKeys = new ConcurrentHashMap<>();
+
+	private final WatchService watchService;
+	private final Thread eventConsumer;
+	private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(r -> {
+		final Thread t = new Thread(r, "LibraryPoller");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private volatile boolean running = false;
+
+	/**
+	 * @param index
+	 * @param pollIntervalSeconds interval of the modification time comparison, 0 disables it
+	 */
+	public LibraryWatcher(MediaLibraryIndex index, long pollIntervalSeconds) {
+		this.index = index;
+		this.pollIntervalSeconds = pollIntervalSeconds;
+
+		WatchService ws = null;
+		try {
+			ws = FileSystems.getDefault().newWatchService();
+		} catch (IOException | UnsupportedOperationException e) {
+			LOGGER.warn("No WatchService available, falling back to polling only: " + e.toString());
+		}
+		this.watchService = ws;
+
+		this.eventConsumer = new Thread(this::consumeEvents, "LibraryWatcher");
+		this.eventConsumer.setDaemon(true);
+	}
+
+	public synchronized void start() {
+		if (!this.running) {
+			this.running = true;
+			this.index.addChangeListener(this);
+
+			if (this.watchService != null) {
+				this.eventConsumer.start();
+			}
+
+			if (this.pollIntervalSeconds > 0) {
+				this.poller.scheduleWithFixedDelay(this::pollRoots, this.pollIntervalSeconds, this.pollIntervalSeconds, TimeUnit.SECONDS);
+			}
+		}
+	}
+
+	public synchronized void shutdown() {
+		this.running = false;
+		this.index.removeChangeListener(this);
+		this.poller.shutdownNow();
+
+		if (this.watchService != null) {
+			try {
+				this.watchService.close();
+			} catch (IOException e) {
+				LOGGER.debug("Could not close WatchService", e);
+			}
+		}
+	}
+
+	/**
+	 * Adds a root to be watched. All directories below it, that are already in the index,
+	 * are registered right away. Directories indexed later on are picked up as they get listed.
+	 */
+	public void watch(File root) {
+		final File absoluteRoot = root.getAbsoluteFile();
+		this.roots.add(absoluteRoot);
+
+		final Deque<File> pending = new ArrayDeque<>();
+		pending.push(absoluteRoot);
+
+		while (!pending.isEmpty()) {
+			final File directory = pending.pop();
+			if (this.index.contains(directory)) {
+				register(directory);
+				for (LibraryEntry child : this.index.getChildren(directory)) {
+					if (child.isDirectory()) {
+						pending.push(child.getFile());
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public void directoryChanged(File directory, List<LibraryEntry> added, List<LibraryEntry> removed) {
+		if (isBelowRoot(directory)) {
+			if (this.index.contains(directory)) {
+				register(directory);
+			} else {
+				// the directory itself was dropped from the index
+				unregister(directory);
+			}
+		}
+	}
+
+	private boolean isBelowRoot(File directory) {
+		final String path = directory.getAbsolutePath();
+		for (File root : this.roots) {
+			final String rootPath = root.getAbsolutePath();
+			if (path.equals(rootPath) || path.startsWith(rootPath.endsWith(File.separator) ? rootPath : rootPath + File.separator)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void register(File directory) {
+		if (this.watchService != null && this.running) {
+			final String key = directory.getAbsolutePath();
+			if (!this.watchKeys.containsKey(key)) {
+				try {
+					final WatchKey watchKey = directory.toPath().register(this.watchService,
+							StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_DELETE,
+							StandardWatchEventKinds.ENTRY_MODIFY);
+					this.watchKeys.put(key, watchKey);
+					this.watchedDirectories.put(watchKey, directory);
+				} catch (IOException | ClosedWatchServiceException e) {
+					// e.g. the limit for inotify watches is reached, the poller still covers it
+					LOGGER.debug("Could not watch '" + key + "': " + e.toString());
+				}
+			}
+		}
+	}
+
+	private void unregister(File directory) {
+		final WatchKey watchKey = this.watchKeys.remove(directory.getAbsolutePath());
+		if (watchKey != null) {
+			watchKey.cancel();
+			this.watchedDirectories.remove(watchKey);
+		}
+	}
+
+	private void consumeEvents() {
+		try {
+			while (this.running) {
+				final LinkedHashSet<File> changedDirectories = new LinkedHashSet<>();
+
+				WatchKey watchKey = this.watchService.take();
+				while (watchKey != null) {
+					final File directory = this.watchedDirectories.get(watchKey);
+
+					for (WatchEvent<?> event : watchKey.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							LOGGER.debug("Events lost for '%s'".formatted(directory));
+						}
+					}
+
+					if (!watchKey.reset() && directory != null) {
+						unregister(directory);
+					}
+
+					if (directory != null) {
+						changedDirectories.add(directory);
+					}
+
+					watchKey = this.watchService.poll(EVENT_COALESCE_MILLIS, TimeUnit.MILLISECONDS);
+				}
+
+				for (File directory : changedDirectories) {
+					try {
+						this.index.refresh(directory);
+						
+						// Directories moved or copied into the tree arrive with content
+						for (LibraryEntry child : this.index.getChildren(directory)) {
+							if (child.isDirectory() && !this.index.contains(child.getFile())) {
+								this.index.scan(child.getFile());
+							}
+						}
+					} catch (Throwable t) {
+						LOGGER.warn("Could not update '" + directory.getAbsolutePath() + "'", t);
+					}
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			LOGGER.debug("Stopped watching: " + e.toString());
+		}
+	}
+
+	private void pollRoots() {
+		final long start = System.currentTimeMillis();
+		int directories = 0;
+
+		for (File root : this.roots) {
+			final Deque<File> pending = new ArrayDeque<>();
+			pending.push(root);
+
+			while (!pending.isEmpty() && this.running) {
+				// Lists only directories which are new, or have a different modification time
+				final List<LibraryEntry> children = this.index.getChildren(pending.pop());
+				directories += 1;
+				for (LibraryEntry child : children) {
+					if (child.isDirectory()) {
+						pending.push(child.getFile());
+					}
+				}
+			}
+		}
+
+		LOGGER.debug("Polled %d directories in %d ms".formatted(directories, System.currentTimeMillis() - start));
+	}
+
+	/**
+	 * @return the roots currently watched
+	 */
+	public List<File> getRoots() {
+		return new ArrayList<>(this.roots);
+	}
+
+}
@@ -0,0 +1,582 @@
+package de.einwesen.heimklangwelle.contentdirectory.library;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.einwesen.heimklangwelle.contentdirectory.tags.MediaTags;
+import de.einwesen.heimklangwelle.contentdirectory.tags.TagReader;
+
+/**
+ * In-memory index of directory listings.
+ *
+ * Every directory is listed once, and its listing is kept until the modification time
+ * of the directory changes. After that, browsing a known directory costs a single stat
+ * instead of listing, probing and stating every child again.
+ * 
+ * If listings are not retained, every access lists the directory again. 
+ * The number of children is cached in both cases.
+ * 
+ * The children of a listing are sorted once for every {@link SortOrder} requested, 
+ * and kept in that order as long as the listing.
+ * 
+ * Listings can be saved to an {@link IndexSnapshot}, together with the tags read so far. After a restart, 
+ * a directory that was not modified in between is taken from the snapshot, instead of being listed again,
+ * and the tags of its files are not read again either.
+ */
+public class MediaLibraryIndex {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MediaLibraryIndex.class);
+	
+	// Control points usually stick to one or two, this just prevents unbound growth
+	private static final int MAX_ORDERINGS_PER_LISTING = 8;
+
+	private final Function<File, String> mimeResolver;
+	private final FileFilter filter;
+	private final boolean retainListings;
+	private final Map<String, DirectoryListing> listings = new ConcurrentHashMap<>();
+	private final List<LibraryChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+	private final ChildCountCache childCountCache;
+	private final TitleCollator collator;
+	private final TagCache tagCache = new TagCache(TagReader::read);
+	private volatile IndexSnapshot snapshot = null;
+
+	/**
+	 * @param mimeResolver returns the mimetype of a file, or null if the file should not be indexed
+	 * @param filter applied to the names while listing, before anything else is looked at. May be null
+	 * @param retainListings false, if directories should be listed on every access 
+	 * @param childCountCacheSize max. number of directories to cache the child count for
+	 * @param collator used to sort children by title
+	 */
+	public MediaLibraryIndex(Function<File, String> mimeResolver, FileFilter filter, boolean retainListings, int childCountCacheSize, TitleCollator collator) {
+		this.mimeResolver = mimeResolver;
+		this.filter = filter;
+		this.retainListings = retainListings;
+		this.childCountCache = new ChildCountCache(childCountCacheSize);
+		this.collator = collator;
+	}
+
+	/**
+	 * @return the entry, or null if the file does not exist or is not visible
+	 */
+	public LibraryEntry getEntry(File file) {
+		final File parent = file.getAbsoluteFile().getParentFile();
+
+		if (parent == null) {
+			// A filesystem root, there is no listing containing it
+			return LibraryEntry.of(file, this.mimeResolver);
+		}
+
+		final DirectoryListing listing = getListing(parent);
+		return listing != null ? listing.get(file.getName()) : null;
+	}
+
+	/**
+	 * @return the visible children, or an empty list if the directory does not exist (anymore)
+	 */
+	public List<LibraryEntry> getChildren(File directory) {
+		final DirectoryListing listing = getListing(directory);
+		return listing != null ? listing.getChildren() : Collections.emptyList();
+	}
+
+	/**
+	 * @return the visible children sorted by name, or an empty list if the directory does not exist (anymore)
+	 */
+	public List<LibraryEntry> getSortedChildren(File directory) {
+		return getSortedChildren(directory, SortOrder.BY_TITLE);
+	}
+
+	/**
+	 * @return the visible children in the given order, or an empty list if the directory does not exist (anymore)
+	 */
+	public List<LibraryEntry> getSortedChildren(File directory, SortOrder order) {
+		final DirectoryListing listing = getListing(directory);
+		return listing != null ? listing.getSortedChildren(order, this.collator, this.tagCache::get) : Collections.emptyList();
+	}
+	
+	/**
+	 * @return the tags of the file, read once as long as it does not change
+	 */
+	public MediaTags getTags(LibraryEntry entry) {
+		return this.tagCache.get(entry);
+	}
+
+	/**
+	 * Counts the visible children of a directory. Other than {@link #getChildren(File)}, 
+	 * this does not put the directory into the index, and only needs a single stat 
+	 * as long as the directory is not modified.
+	 */
+	public int getChildCount(File directory) {
+		final String key = getKey(directory);
+		final long lastModified = directory.lastModified();
+
+		if (lastModified == 0L) {
+			return 0;
+		}
+
+		final DirectoryListing listing = this.listings.get(key);
+		if (listing != null && listing.getLastModified() == lastModified) {
+			return listing.getChildren().size();
+		}
+
+		final int cached = this.childCountCache.get(key, lastModified);
+		if (cached > -1) {
+			return cached;
+		}
+
+		final IndexSnapshot current = this.snapshot;
+		final int position = current != null ? current.find(key) : -1;
+		if (position > -1 && current.getLastModified(position) == lastModified) {
+			this.childCountCache.put(key, lastModified, current.getEntryCount(position));
+			return current.getEntryCount(position);
+		}
+
+		final int count = countChildren(directory, this.filter, this.mimeResolver);
+		this.childCountCache.put(key, lastModified, count);
+		return count;
+	}
+	
+	public ChildCountCache getChildCountCache() {
+		return childCountCache;
+	}
+	
+	public boolean isRetainingListings() {
+		return retainListings;
+	}
+	
+	public TitleCollator getCollator() {
+		return collator;
+	}
+	
+	public TagCache getTagCache() {
+		return tagCache;
+	}
+
+	public void addChangeListener(LibraryChangeListener listener) {
+		this.changeListeners.add(listener);
+	}
+	
+	public boolean removeChangeListener(LibraryChangeListener listener) {
+		return this.changeListeners.remove(listener);
+	}
+	
+	/**
+	 * Drops the listing of a directory, so that it is read again on next access
+	 */
+	public void invalidate(File directory) {
+		this.listings.remove(getKey(directory));
+		this.childCountCache.invalidate(getKey(directory));
+	}
+	
+	/**
+	 * @return true if the directory is held in the index, and was not modified since it was listed. Costs a single stat.
+	 */
+	public boolean isCurrent(File directory) {
+		final DirectoryListing listing = this.listings.get(getKey(directory));
+		return listing != null && listing.getLastModified() == directory.lastModified();
+	}
+
+	/**
+	 * @return true if the directory is currently held in the index
+	 */
+	public boolean contains(File directory) {
+		return this.listings.containsKey(getKey(directory));
+	}
+
+	/**
+	 * Reads the listing of a directory again, even if its modification time did not change. 
+	 * This is needed to notice modified files, which do not touch their parent directory.
+	 * 
+	 * Does nothing if the directory was never indexed.
+	 */
+	public void refresh(File directory) {
+		if (contains(directory)) {
+			final long lastModified = directory.lastModified();
+			if (lastModified == 0L) {
+				removeTree(directory);
+			} else {
+				updateListing(directory, lastModified);
+			}
+		}
+	}
+	
+	/**
+	 * Drops a directory, and everything below it
+	 */
+	public void removeTree(File directory) {
+		final String key = getKey(directory);
+		final String prefix = key.endsWith(File.separator) ? key : key + File.separator;
+		
+		for (String childKey : new ArrayList<>(this.listings.keySet())) {
+			if (childKey.equals(key) || childKey.startsWith(prefix)) {
+				final DirectoryListing removed = this.listings.remove(childKey);
+				this.childCountCache.invalidate(childKey);
+				if (removed != null) {
+					for (LibraryEntry child : removed.getChildren()) {
+						this.tagCache.invalidate(child.getFile());
+					}
+					fireDirectoryChanged(new File(childKey), Collections.emptyList(), removed.getChildren());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Uses the listings of a snapshot for every directory, that has the same modification time as when it was written.
+	 * Only makes sense, if listings are retained.
+	 */
+	public void setSnapshot(IndexSnapshot snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	public IndexSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Writes all listings to a new snapshot, including those of the current snapshot that were not asked for since. 
+	 * Directories that are not listed by their parent (anymore), are left out. Tags go along, as far as they were read.
+	 */
+	public void writeSnapshot(File file, String fingerprint) throws IOException {
+		final TreeMap<String, IndexSnapshot.Directory> directories = new TreeMap<>();
+
+		final IndexSnapshot current = this.snapshot;
+		if (current != null) {
+			for (int i = 0; i < current.getDirectoryCount(); i++) {
+				final String key = current.getKey(i);
+				if (!this.listings.containsKey(key)) {
+					directories.put(key, new IndexSnapshot.Directory(key, current.getLastModified(i), current.getEntries(i), current.getTags(i)));
+				}
+			}
+		}
+
+		for (Map.Entry<String, DirectoryListing> listing : this.listings.entrySet()) {
+			final List<LibraryEntry> children = listing.getValue().getChildren();
+			final ArrayList<MediaTags> tags = new ArrayList<>(children.size());
+			for (LibraryEntry child : children) {
+				tags.add(child.isDirectory() ? null : this.tagCache.peek(child));
+			}
+			directories.put(listing.getKey(), new IndexSnapshot.Directory(listing.getKey(), listing.getValue().getLastModified(), children, tags));
+		}
+
+		// Parents sort before their children
+		final ArrayList<IndexSnapshot.Directory> reachable = new ArrayList<>(directories.size());
+		final Map<String, IndexSnapshot.Directory> included = new HashMap<>();
+		for (IndexSnapshot.Directory directory : directories.values()) {
+			final String parentKey = new File(directory.getKey()).getParent();
+			if (parentKey == null || !directories.containsKey(parentKey) || isListedIn(included.get(parentKey), directory.getKey())) {
+				reachable.add(directory);
+				included.put(directory.getKey(), directory);
+			}
+		}
+
+		IndexSnapshot.write(file, fingerprint, reachable);
+	}
+
+	private static boolean isListedIn(IndexSnapshot.Directory parent, String key) {
+		if (parent != null) {
+			final String name = new File(key).getName();
+			for (LibraryEntry entry : parent.getEntries()) {
+				if (entry.isDirectory() && entry.getName().equals(name)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return number of directories currently held in the index
+	 */
+	public int size() {
+		return this.listings.size();
+	}
+
+	/**
+	 * Walks the given directory tree, and puts every directory into the index.
+	 */
+	public void scan(File root) {
+		final long start = System.currentTimeMillis();
+		int directories = 0;
+		int files = 0;
+
+		final Deque<File> pending = new ArrayDeque<>();
+		pending.push(root);
+
+		while (!pending.isEmpty()) {
+			final DirectoryListing listing = getListing(pending.pop());
+			if (listing != null) {
+				directories += 1;
+				for (LibraryEntry child : listing.getChildren()) {
+					if (child.isDirectory()) {
+						pending.push(child.getFile());
+					} else {
+						files += 1;
+					}
+				}
+			}
+		}
+
+		LOGGER.info("Scanned '%s': %d directories, %d files in %d ms".formatted(root.getAbsolutePath(), directories, files, System.currentTimeMillis() - start));
+	}
+
+	private DirectoryListing getListing(File directory) {
+		final long lastModified = directory.lastModified();
+
+		// 0 means the directory does not exist (anymore), or cannot be accessed
+		if (lastModified == 0L) {
+			if (contains(directory)) {
+				removeTree(directory);
+			}
+			return null;
+		}
+
+		if (!this.retainListings) {
+			return readListing(directory, lastModified, this.filter, this.mimeResolver);
+		}
+
+		final DirectoryListing cached = this.listings.get(getKey(directory));
+		if (cached != null && cached.getLastModified() == lastModified) {
+			return cached;
+		}
+
+		if (cached == null && this.snapshot != null) {
+			final DirectoryListing restored = restoreListing(directory, lastModified);
+			if (restored != null) {
+				return restored;
+			}
+		}
+
+		return updateListing(directory, lastModified);
+	}
+
+	/**
+	 * @return the listing from the snapshot, or null if it is not in there or was modified since
+	 */
+	private DirectoryListing restoreListing(File directory, long lastModified) {
+		final IndexSnapshot current = this.snapshot;
+		final String key = getKey(directory);
+		final int position = current.find(key);
+
+		if (position < 0 || current.getLastModified(position) != lastModified) {
+			return null;
+		}
+
+		final List<LibraryEntry> entries = current.getEntries(position);
+		final DirectoryListing restored = new DirectoryListing(lastModified, entries);
+		final DirectoryListing existing = this.listings.putIfAbsent(key, restored);
+		if (existing != null) {
+			return existing; // someone else was faster
+		}
+
+		// Before the listeners hear of the files, so they do not have to read them
+		final List<MediaTags> tags = current.getTags(position);
+		for (int i = 0; i < entries.size(); i++) {
+			if (tags.get(i) != null) {
+				this.tagCache.put(entries.get(i), tags.get(i));
+			}
+		}
+
+		this.childCountCache.put(key, lastModified, restored.getChildren().size());
+		fireDirectoryChanged(directory, restored.getChildren(), Collections.emptyList());
+		return restored;
+	}
+	
+	private DirectoryListing updateListing(File directory, long lastModified) {
+		final String key = getKey(directory);
+		final DirectoryListing fresh = readListing(directory, lastModified, this.filter, this.mimeResolver);
+		
+		if (fresh == null) {
+			removeTree(directory);
+			return null;
+		}
+		
+		final DirectoryListing previous = this.listings.put(key, fresh);
+		this.childCountCache.put(key, lastModified, fresh.getChildren().size());
+		
+		if (previous != null) {
+			final ArrayList<LibraryEntry> added = new ArrayList<>();
+			final ArrayList<LibraryEntry> removed = new ArrayList<>();
+			
+			for (LibraryEntry entry : fresh.getChildren()) {
+				final LibraryEntry old = previous.get(entry.getName());
+				if (old == null || !old.isSameState(entry)) {
+					added.add(entry);
+				}
+			}
+			
+			for (LibraryEntry entry : previous.getChildren()) {
+				final LibraryEntry current = fresh.get(entry.getName());
+				if (current == null || !current.isSameState(entry)) {
+					removed.add(entry);
+					this.tagCache.invalidate(entry.getFile());
+					if (entry.isDirectory() && (current == null || !current.isDirectory())) {
+						removeTree(entry.getFile());
+					}
+				}
+			}
+			
+			if (added.size() > 0 || removed.size() > 0) {
+				LOGGER.debug("Changed '%s': +%d -%d".formatted(key, added.size(), removed.size()));
+				updateEntryInParent(directory);
+				fireDirectoryChanged(directory, added, removed);
+			}
+			
+		} else {
+			fireDirectoryChanged(directory, fresh.getChildren(), Collections.emptyList());
+		}
+		
+		return fresh;
+	}
+	
+	/**
+	 * Keeps the state of a directory within the listing of its parent up to date, without listing the parent again
+	 */
+	private void updateEntryInParent(File directory) {
+		final File parent = directory.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			final String parentKey = getKey(parent);
+			final DirectoryListing parentListing = this.listings.get(parentKey);
+			if (parentListing != null && parentListing.get(directory.getName()) != null) {
+				final LibraryEntry updated = LibraryEntry.of(directory, this.mimeResolver);
+				if (updated != null) {
+					this.listings.replace(parentKey, parentListing, parentListing.withEntry(updated));
+				}
+			}
+		}
+	}
+	
+	private void fireDirectoryChanged(File directory, List<LibraryEntry> added, List<LibraryEntry> removed) {
+		for (LibraryChangeListener listener : this.changeListeners) {
+			try {
+				listener.directoryChanged(directory, added, removed);
+			} catch (Throwable t) {
+				LOGGER.warn("Listener failed for '" + directory.getAbsolutePath() + "'", t);
+			}
+		}
+	}
+
+	private static DirectoryListing readListing(File directory, long lastModified, FileFilter filter, Function<File, String> mimeResolver) {
+		final ArrayList<LibraryEntry> entries = new ArrayList<>();
+		int listed = 0;
+
+		// Streamed, so the names are not collected into an array first, and every child costs one call for its attributes
+		try (DirectoryStream<Path> children = Files.newDirectoryStream(directory.toPath(), toStreamFilter(filter))) {
+			for (Path child : children) {
+				listed += 1;
+				final LibraryEntry entry = LibraryEntry.of(child, mimeResolver);
+				if (entry != null) {
+					entries.add(entry);
+				}
+			}
+		} catch (IOException | DirectoryIteratorException | SecurityException e) {
+			LOGGER.debug("Could not list '%s': %s".formatted(directory.getAbsolutePath(), e.toString()));
+			return null;
+		}
+
+		LOGGER.trace("Listed '%s' (%d/%d)".formatted(directory.getAbsolutePath(), entries.size(), listed));
+		return new DirectoryListing(lastModified, entries);
+	}
+
+	private static int countChildren(File directory, FileFilter filter, Function<File, String> mimeResolver) {
+		int count = 0;
+
+		try (DirectoryStream<Path> children = Files.newDirectoryStream(directory.toPath(), toStreamFilter(filter))) {
+			for (Path child : children) {
+				if (LibraryEntry.isVisible(child, mimeResolver)) {
+					count += 1;
+				}
+			}
+		} catch (IOException | DirectoryIteratorException | SecurityException e) {
+			LOGGER.debug("Could not count '%s': %s".formatted(directory.getAbsolutePath(), e.toString()));
+		}
+
+		return count;
+	}
+
+	private static DirectoryStream.Filter<Path> toStreamFilter(FileFilter filter) {
+		return filter != null ? child -> filter.accept(child.toFile()) : child -> true;
+	}
+
+	private static String getKey(File directory) {
+		return directory.getAbsolutePath();
+	}
+
+	private static class DirectoryListing {
+		private final long lastModified;
+		private final List<LibraryEntry> children;
+		private final Map<String, LibraryEntry> childrenByName;
+		private final Map<SortOrder, List<LibraryEntry>> sortedChildren = new ConcurrentHashMap<>();
+
+		private DirectoryListing(long lastModified, List<LibraryEntry> children) {
+			this.lastModified = lastModified;
+			this.children = Collections.unmodifiableList(children);
+			this.childrenByName = new HashMap<>(children.size() * 2);
+			for (LibraryEntry child : children) {
+				this.childrenByName.put(child.getName(), child);
+			}
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public List<LibraryEntry> getChildren() {
+			return children;
+		}
+
+		public List<LibraryEntry> getSortedChildren(SortOrder order, TitleCollator collator, Function<LibraryEntry, MediaTags> tagsOf) {
+			List<LibraryEntry> sorted = this.sortedChildren.get(order);
+			if (sorted == null) {
+				// No harm if two threads do this at the same time, the result is the same
+				sorted = Collections.unmodifiableList(order.sort(this.children, collator, tagsOf));
+				if (this.sortedChildren.size() < MAX_ORDERINGS_PER_LISTING) {
+					this.sortedChildren.put(order, sorted);
+				}
+			}
+			return sorted;
+		}
+
+		public LibraryEntry get(String name) {
+			return childrenByName.get(name);
+		}
+		
+		public DirectoryListing withEntry(LibraryEntry entry) {
+			final DirectoryListing updated = new DirectoryListing(this.lastModified, replaceEntry(this.children, entry));
+			
+			// The name stays the same, so does the order by title. Others may depend on the changed state.
+			final List<LibraryEntry> byTitle = this.sortedChildren.get(SortOrder.BY_TITLE);
+			if (byTitle != null) {
+				updated.sortedChildren.put(SortOrder.BY_TITLE, Collections.unmodifiableList(replaceEntry(byTitle, entry)));
+			}
+			return updated;
+		}
+		
+		private static ArrayList<LibraryEntry> replaceEntry(List<LibraryEntry> entries, LibraryEntry entry) {
+			final ArrayList<LibraryEntry> copy = new ArrayList<>(entries.size());
+			for (LibraryEntry child : entries) {
+				copy.add(child.getName().equals(entry.getName()) ? entry : child);
+			}
+			return copy;
+		}
+	}
+
+}
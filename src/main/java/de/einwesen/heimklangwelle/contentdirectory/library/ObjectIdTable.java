@@ -0,0 +1,188 @@
+package de.einwesen.heimklangwelle.contentdirectory.library;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Assigns short numeric ids to keys, i.e. absolute paths or the keys of virtual containers.
+ *
+ * An id is never reused for another key, not even after the key vanished, so ids handed out to clients stay valid across restarts.
+ * Both directions are a single lookup. New ids are appended to a file as "id TAB key" lines, which is read again on startup.
+ * Id 0 is never assigned, that is the root container.
+ */
+public class ObjectIdTable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ObjectIdTable.class);
+
+	private final Map<String, Integer> idsByKey = new ConcurrentHashMap<>();
+	private volatile String[] keysById = new String[1024];
+	private int nextId = 1;
+
+	private final File file;
+	private Writer writer = null;
+
+	/**
+	 * @param file where ids are persisted, or null to keep them in memory only
+	 */
+	public ObjectIdTable(File file) {
+		this.file = file;
+
+		if (file != null) {
+			if (file.exists()) {
+				load();
+			}
+			try {
+				final boolean cutOff = endsWithoutNewline(file);
+				this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+				if (cutOff) {
+					// Do not continue a broken line
+					this.writer.write("\n");
+				}
+			} catch (IOException e) {
+				LOGGER.warn("Could not open '" + file.getAbsolutePath() + "', ids will change after a restart: " + e.toString());
+			}
+		}
+	}
+
+	private void load() {
+		final long start = System.currentTimeMillis();
+		int skipped = 0;
+
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final int separator = line.indexOf('\t');
+				try {
+					final int id = Integer.parseInt(line.substring(0, separator));
+					put(id, unescape(line.substring(separator + 1)));
+				} catch (RuntimeException e) {
+					skipped += 1; // e.g. a line cut off by a crash
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Could not read '" + this.file.getAbsolutePath() + "': " + e.toString());
+		}
+
+		LOGGER.info("Loaded %d object ids in %d ms (%d lines skipped)".formatted(this.idsByKey.size(), System.currentTimeMillis() - start, skipped));
+	}
+
+	private static boolean endsWithoutNewline(File file) throws IOException {
+		if (!file.exists() || file.length() == 0) {
+			return false;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			raf.seek(raf.length() - 1);
+			return raf.read() != '\n';
+		}
+	}
+
+	/**
+	 * @return the id of the key, assigned if it has none yet
+	 */
+	public int getId(String key) {
+		final Integer id = this.idsByKey.get(key);
+		return id != null ? id : assign(key);
+	}
+
+	/**
+	 * @return the id of the key, or -1 if it has none. Never assigns one.
+	 */
+	public int findId(String key) {
+		final Integer id = this.idsByKey.get(key);
+		return id != null ? id : -1;
+	}
+
+	/**
+	 * @return the key, or null if the id was never assigned
+	 */
+	public String getKey(int id) {
+		final String[] keys = this.keysById;
+		final String key = id > 0 && id < keys.length ? keys[id] : null;
+		if (key == null && id > 0) {
+			// May just have been assigned by another thread
+			synchronized (this) {
+				return id < this.keysById.length ? this.keysById[id] : null;
+			}
+		}
+		return key;
+	}
+
+	public int size() {
+		return this.idsByKey.size();
+	}
+
+	private synchronized int assign(String key) {
+		final Integer existing = this.idsByKey.get(key);
+		if (existing != null) {
+			return existing;
+		}
+
+		final int id = this.nextId;
+		put(id, key);
+
+		if (this.writer != null) {
+			try {
+				// Flushed right away, the id is about to be handed out and must not be given to another key after a crash
+				this.writer.write(id + "\t" + escape(key) + "\n");
+				this.writer.flush();
+			} catch (IOException e) {
+				LOGGER.warn("Could not persist object id: " + e.toString());
+			}
+		}
+		return id;
+	}
+
+	private synchronized void put(int id, String key) {
+		if (id >= this.keysById.length) {
+			this.keysById = Arrays.copyOf(this.keysById, Math.max(id + 1, this.keysById.length * 2));
+		}
+		this.keysById[id] = key;
+		this.idsByKey.put(key, id);
+		this.nextId = Math.max(this.nextId, id + 1);
+	}
+
+	public synchronized void close() {
+		if (this.writer != null) {
+			try {
+				this.writer.close();
+			} catch (IOException e) {
+				LOGGER.debug("Could not close '" + this.file.getAbsolutePath() + "'", e);
+			}
+			this.writer = null;
+		}
+	}
+
+	private static String escape(String key) {
+		return key.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t");
+	}
+
+	private static String unescape(String escaped) {
+		final StringBuilder sb = new StringBuilder(escaped.length());
+		for (int i = 0; i < escaped.length(); i++) {
+			final char c = escaped.charAt(i);
+			if (c == '\\' && i + 1 < escaped.length()) {
+				final char next = escaped.charAt(++i);
+				sb.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next == 't' ? '\t' : next);
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,238 @@
+package de.einwesen.heimklangwelle.contentdirectory.library;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Parsed SearchCriteria of a ContentDirectory search, e.g.
+ * <code>upnp:class derivedfrom "object.item.audioItem" and (dc:title contains "love" or upnp:artist = "Queen")</code>
+ *
+ * "and" binds stronger than "or", as defined by the ContentDirectory spec.
+ */
+public abstract class SearchCriteria {
+
+	public static final SearchCriteria ALL = new SearchCriteria() {
+		@Override
+		public String toString() {
+			return "*";
+		}
+	};
+
+	private SearchCriteria() {
+	}
+
+	public static class And extends SearchCriteria {
+		private final List<SearchCriteria> operands;
+
+		private And(List<SearchCriteria> operands) {
+			this.operands = Collections.unmodifiableList(operands);
+		}
+
+		public List<SearchCriteria> getOperands() {
+			return operands;
+		}
+
+		@Override
+		public String toString() {
+			return "(" + String.join(" and ", operands.stream().map(Object::toString).toList()) + ")";
+		}
+	}
+
+	public static class Or extends SearchCriteria {
+		private final List<SearchCriteria> operands;
+
+		private Or(List<SearchCriteria> operands) {
+			this.operands = Collections.unmodifiableList(operands);
+		}
+
+		public List<SearchCriteria> getOperands() {
+			return operands;
+		}
+
+		@Override
+		public String toString() {
+			return "(" + String.join(" or ", operands.stream().map(Object::toString).toList()) + ")";
+		}
+	}
+
+	public static class Relation extends SearchCriteria {
+		private final String property;
+		private final String operator;
+		private final String value;
+
+		private Relation(String property, String operator, String value) {
+			this.property = property;
+			this.operator = operator;
+			this.value = value;
+		}
+
+		public String getProperty() {
+			return property;
+		}
+
+		/**
+		 * @return the operator, lowercase if it is a word (e.g. "contains", "derivedfrom", "exists")
+		 */
+		public String getOperator() {
+			return operator;
+		}
+
+		public String getValue() {
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			return property + " " + operator + " \"" + value + "\"";
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the criteria can not be parsed, or use an operator the property does not support
+	 */
+	public static SearchCriteria parse(String criteria) {
+		if (criteria == null || criteria.isBlank() || criteria.trim().equals("*")) {
+			return ALL;
+		}
+
+		final Parser parser = new Parser(tokenize(criteria));
+		final SearchCriteria result = parser.parseOr();
+		if (parser.hasNext()) {
+			throw new IllegalArgumentException("Unexpected '" + parser.peek() + "' in: " + criteria);
+		}
+		return result;
+	}
+
+	private static final String OPERATOR_CHARS = "=!<>";
+
+	// What the SearchIndex can evaluate, anything else is rejected while parsing
+	private static final Set<String> CLASS_OPERATORS = Set.of("=", "!=", "derivedfrom", "exists");
+	private static final Set<String> VALUE_OPERATORS = Set.of("=", "!=", "contains", "doesnotcontain", "startswith", "exists");
+
+	private static List<String> tokenize(String criteria) {
+		final ArrayList<String> tokens = new ArrayList<>();
+		int i = 0;
+		while (i < criteria.length()) {
+			final char c = criteria.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i += 1;
+			} else if (c == '(' || c == ')') {
+				tokens.add(String.valueOf(c));
+				i += 1;
+			} else if (c == '"') {
+				// Quoted values are kept with their leading quote, to tell them apart from words
+				final StringBuilder sb = new StringBuilder("\"");
+				i += 1;
+				while (i < criteria.length() && criteria.charAt(i) != '"') {
+					if (criteria.charAt(i) == '\\' && i + 1 < criteria.length()) {
+						i += 1;
+					}
+					sb.append(criteria.charAt(i));
+					i += 1;
+				}
+				if (i >= criteria.length()) {
+					throw new IllegalArgumentException("Unterminated string in: " + criteria);
+				}
+				tokens.add(sb.toString());
+				i += 1;
+			} else if (OPERATOR_CHARS.indexOf(c) > -1) {
+				final int start = i;
+				while (i < criteria.length() && OPERATOR_CHARS.indexOf(criteria.charAt(i)) > -1) {
+					i += 1;
+				}
+				tokens.add(criteria.substring(start, i));
+			} else {
+				final int start = i;
+				while (i < criteria.length() && !Character.isWhitespace(criteria.charAt(i))
+						&& "()\"".indexOf(criteria.charAt(i)) < 0 && OPERATOR_CHARS.indexOf(criteria.charAt(i)) < 0) {
+					i += 1;
+				}
+				tokens.add(criteria.substring(start, i));
+			}
+		}
+		return tokens;
+	}
+
+	private static class Parser {
+		private final List<String> tokens;
+		private int position = 0;
+
+		private Parser(List<String> tokens) {
+			this.tokens = tokens;
+		}
+
+		private boolean hasNext() {
+			return this.position < this.tokens.size();
+		}
+
+		private String peek() {
+			return hasNext() ? this.tokens.get(this.position) : null;
+		}
+
+		private String next() {
+			if (!hasNext()) {
+				throw new IllegalArgumentException("Unexpected end of search criteria");
+			}
+			return this.tokens.get(this.position++);
+		}
+
+		private SearchCriteria parseOr() {
+			final ArrayList<SearchCriteria> operands = new ArrayList<>();
+			operands.add(parseAnd());
+			while ("or".equalsIgnoreCase(peek())) {
+				next();
+				operands.add(parseAnd());
+			}
+			return operands.size() == 1 ? operands.get(0) : new Or(operands);
+		}
+
+		private SearchCriteria parseAnd() {
+			final ArrayList<SearchCriteria> operands = new ArrayList<>();
+			operands.add(parsePrimary());
+			while ("and".equalsIgnoreCase(peek())) {
+				next();
+				operands.add(parsePrimary());
+			}
+			return operands.size() == 1 ? operands.get(0) : new And(operands);
+		}
+
+		private SearchCriteria parsePrimary() {
+			final String token = next();
+			if (token.equals("(")) {
+				final SearchCriteria inner = parseOr();
+				if (!")".equals(next())) {
+					throw new IllegalArgumentException("Missing ')'");
+				}
+				return inner;
+			}
+
+			if (token.startsWith("\"") || token.equals(")")) {
+				throw new IllegalArgumentException("Expected a property, but got '" + token + "'");
+			}
+
+			final String operator = next();
+			final String value = next();
+			final String lowerOperator = operator.toLowerCase();
+
+			final boolean isClass = SearchIndex.PROPERTY_CLASS.equalsIgnoreCase(token);
+			if (!(isClass ? CLASS_OPERATORS : VALUE_OPERATORS).contains(lowerOperator)) {
+				throw new IllegalArgumentException("Unsupported operator for " + token + ": " + operator);
+			}
+
+			if (lowerOperator.equals("exists")) {
+				if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+					throw new IllegalArgumentException("exists needs true or false, but got '" + value + "'");
+				}
+				return new Relation(token, lowerOperator, value.toLowerCase());
+			}
+
+			if (!value.startsWith("\"")) {
+				throw new IllegalArgumentException("Expected a quoted value, but got '" + value + "'");
+			}
+			return new Relation(token, lowerOperator, value.substring(1));
+		}
+	}
+
+}
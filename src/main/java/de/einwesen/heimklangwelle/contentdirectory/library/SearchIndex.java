@@ -0,0 +1,486 @@
+package de.einwesen.heimklangwelle.contentdirectory.library;
+
+import java.io.File;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.einwesen.heimklangwelle.contentdirectory.tags.MediaTags;
+
+/**
+ * Inverted index of everything in the {@link MediaLibraryIndex}, to answer searches without walking the tree.
+ *
+ * Text fields are indexed by trigrams, so that "contains" only needs to check the entries
+ * which have all trigrams of the searched value. Exact values and classes are indexed as they are.
+ *
+ * The index is kept up to date by listening to the library index, so it covers every directory listed so far.
+ * Files only show up once their tags were read by the {@link BackgroundTagReader}, listing a directory does not wait for it.
+ */
+public class SearchIndex implements LibraryChangeListener {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SearchIndex.class);
+
+	public enum Field {
+		TITLE("dc:title"),
+		ARTIST("upnp:artist", "dc:creator"),
+		ALBUM("upnp:album"),
+		GENRE("upnp:genre");
+
+		private final String[] upnpNames;
+
+		private Field(String... upnpNames) {
+			this.upnpNames = upnpNames;
+		}
+
+		public static Field of(String upnpName) {
+			for (Field f : values()) {
+				for (String name : f.upnpNames) {
+					if (name.equalsIgnoreCase(upnpName)) {
+						return f;
+					}
+				}
+			}
+			return null;
+		}
+	}
+
+	public static final String PROPERTY_CLASS = "upnp:class";
+
+	public static final List<String> SEARCH_CAPABILITIES = List.of(PROPERTY_CLASS, "dc:title", "upnp:artist", "dc:creator", "upnp:album", "upnp:genre");
+
+	private final Function<LibraryEntry, String> classOf;
+	private final BackgroundTagReader tagReader;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// The position is the id of the document, removed ones are null
+	private final ArrayList<Document> documents = new ArrayList<>();
+	private final BitSet alive = new BitSet();
+	private final Map<String, Integer> idsByPath = new HashMap<>();
+
+	// Files waiting for their tags, by path. Only added if still the same entry once the tags are there.
+	private final Map<String, LibraryEntry> pending = new HashMap<>();
+
+	private final EnumMap<Field, Map<Long, IntList>> trigrams = new EnumMap<>(Field.class);
+	private final EnumMap<Field, Map<String, IntList>> values = new EnumMap<>(Field.class);
+	private final Map<String, BitSet> classes = new HashMap<>();
+
+	/**
+	 * @param classOf returns the upnp:class of an entry, e.g. "object.item.audioItem.musicTrack"
+	 * @param tagReader reads the tags of added files
+	 */
+	public SearchIndex(Function<LibraryEntry, String> classOf, BackgroundTagReader tagReader) {
+		this.classOf = classOf;
+		this.tagReader = tagReader;
+		for (Field field : Field.values()) {
+			this.trigrams.put(field, new HashMap<>());
+			this.values.put(field, new HashMap<>());
+		}
+	}
+
+	@Override
+	public void directoryChanged(File directory, List<LibraryEntry> added, List<LibraryEntry> removed) {
+		final ArrayList<LibraryEntry> files = new ArrayList<>(added.size());
+
+		this.lock.writeLock().lock();
+		try {
+			// A modified entry is reported as removed, and added again
+			for (LibraryEntry entry : removed) {
+				this.pending.remove(entry.getFile().getAbsolutePath());
+				remove(entry.getFile().getAbsolutePath());
+			}
+
+			// Directories have no tags, only files have to wait for theirs
+			for (LibraryEntry entry : added) {
+				if (entry.isDirectory()) {
+					add(newDocument(entry, MediaTags.EMPTY));
+				} else {
+					this.pending.put(entry.getFile().getAbsolutePath(), entry);
+					files.add(entry);
+				}
+			}
+
+			compactIfNeeded();
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+
+		if (!files.isEmpty()) {
+			this.tagReader.read(files, this::tagsRead);
+		}
+	}
+
+	private void tagsRead(Map<LibraryEntry, MediaTags> tags) {
+		final ArrayList<Document> addedDocuments = new ArrayList<>(tags.size());
+		for (Map.Entry<LibraryEntry, MediaTags> entry : tags.entrySet()) {
+			addedDocuments.add(newDocument(entry.getKey(), entry.getValue()));
+		}
+
+		this.lock.writeLock().lock();
+		try {
+			for (Document doc : addedDocuments) {
+				// Removed or modified again while its tags were read
+				if (this.pending.remove(doc.path, doc.entry)) {
+					add(doc);
+				}
+			}
+
+			compactIfNeeded();
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	private void compactIfNeeded() {
+		if (this.documents.size() > 1000 && this.alive.cardinality() < this.documents.size() / 2) {
+			compact();
+		}
+	}
+
+	/**
+	 * @return number of entries in the index
+	 */
+	public int size() {
+		this.lock.readLock().lock();
+		try {
+			return this.alive.cardinality();
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of files listed, but not in the index yet, because their tags are still being read
+	 */
+	public int getPending() {
+		this.lock.readLock().lock();
+		try {
+			return this.pending.size();
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param criteria
+	 * @param scope only entries below this directory are returned, null for all
+	 * @return the matching entries, in no particular order
+	 */
+	public List<LibraryEntry> search(SearchCriteria criteria, File scope) {
+		final long start = System.nanoTime();
+
+		this.lock.readLock().lock();
+		try {
+			final BitSet matches = evaluate(criteria);
+
+			final String prefix = scope != null ? withSeparator(scope.getAbsolutePath()) : null;
+			final ArrayList<LibraryEntry> result = new ArrayList<>(matches.cardinality());
+			for (int id = matches.nextSetBit(0); id >= 0; id = matches.nextSetBit(id + 1)) {
+				final Document doc = this.documents.get(id);
+				if (prefix == null || doc.path.startsWith(prefix)) {
+					result.add(doc.entry);
+				}
+			}
+
+			LOGGER.debug("Found %d for %s in %d µs".formatted(result.size(), criteria, (System.nanoTime() - start) / 1000));
+			return result;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	private BitSet evaluate(SearchCriteria criteria) {
+		if (criteria == SearchCriteria.ALL) {
+			return (BitSet) this.alive.clone();
+		}
+
+		if (criteria instanceof SearchCriteria.And) {
+			BitSet result = null;
+			for (SearchCriteria operand : ((SearchCriteria.And) criteria).getOperands()) {
+				final BitSet bits = evaluate(operand);
+				if (result == null) {
+					result = bits;
+				} else {
+					result.and(bits);
+				}
+				if (result.isEmpty()) {
+					break;
+				}
+			}
+			return result;
+		}
+
+		if (criteria instanceof SearchCriteria.Or) {
+			final BitSet result = new BitSet();
+			for (SearchCriteria operand : ((SearchCriteria.Or) criteria).getOperands()) {
+				result.or(evaluate(operand));
+			}
+			return result;
+		}
+
+		return evaluateRelation((SearchCriteria.Relation) criteria);
+	}
+
+	private BitSet evaluateRelation(SearchCriteria.Relation relation) {
+		final String operator = relation.getOperator();
+
+		if (PROPERTY_CLASS.equalsIgnoreCase(relation.getProperty())) {
+			switch (operator) {
+				case "=":
+					return matchClass(relation.getValue(), false);
+				case "!=":
+					return negate(matchClass(relation.getValue(), false));
+				case "derivedfrom":
+					return matchClass(relation.getValue(), true);
+				case "exists":
+					return relation.getValue().equals("true") ? (BitSet) this.alive.clone() : new BitSet();
+				default:
+					throw new IllegalArgumentException("Unsupported operator for " + PROPERTY_CLASS + ": " + operator);
+			}
+		}
+
+		final Field field = Field.of(relation.getProperty());
+		if (field == null) {
+			// Nothing we know has this property
+			switch (operator) {
+				case "!=":
+				case "doesnotcontain":
+					return (BitSet) this.alive.clone();
+				case "exists":
+					return relation.getValue().equals("true") ? new BitSet() : (BitSet) this.alive.clone();
+				default:
+					return new BitSet();
+			}
+		}
+
+		final String value = normalize(relation.getValue());
+		switch (operator) {
+			case "=":
+				return matchValue(field, value);
+			case "!=":
+				return negate(matchValue(field, value));
+			case "contains":
+				return matchText(field, value, false);
+			case "doesnotcontain":
+				return negate(matchText(field, value, false));
+			case "startswith":
+				return matchText(field, value, true);
+			case "exists":
+				final BitSet existing = matchText(field, "", false);
+				return relation.getValue().equals("true") ? existing : negate(existing);
+			default:
+				throw new IllegalArgumentException("Unsupported operator for " + relation.getProperty() + ": " + operator);
+		}
+	}
+
+	private BitSet negate(BitSet bits) {
+		final BitSet result = (BitSet) this.alive.clone();
+		result.andNot(bits);
+		return result;
+	}
+
+	private BitSet matchClass(String upnpClass, boolean derived) {
+		final BitSet result = new BitSet();
+		for (Map.Entry<String, BitSet> entry : this.classes.entrySet()) {
+			final String key = entry.getKey();
+			if (key.equals(upnpClass) || (derived && key.startsWith(upnpClass + "."))) {
+				result.or(entry.getValue());
+			}
+		}
+		result.and(this.alive);
+		return result;
+	}
+
+	private BitSet matchValue(Field field, String value) {
+		final IntList ids = this.values.get(field).get(value);
+		final BitSet result = ids != null ? ids.toBitSet() : new BitSet();
+		result.and(this.alive);
+		return result;
+	}
+
+	private BitSet matchText(Field field, String value, boolean atStart) {
+		final BitSet candidates;
+
+		if (value.length() < 3) {
+			// Too short for trigrams, check everything
+			candidates = (BitSet) this.alive.clone();
+		} else {
+			// Start with the rarest trigram, so the intersection gets small quickly
+			final long[] keys = getTrigrams(value);
+			final IntList[] lists = new IntList[keys.length];
+			for (int i = 0; i < keys.length; i++) {
+				lists[i] = this.trigrams.get(field).get(keys[i]);
+				if (lists[i] == null) {
+					return new BitSet();
+				}
+			}
+			Arrays.sort(lists, (l1, l2) -> Integer.compare(l1.size, l2.size));
+
+			candidates = lists[0].toBitSet();
+			for (int i = 1; i < lists.length && !candidates.isEmpty(); i++) {
+				candidates.and(lists[i].toBitSet());
+			}
+			candidates.and(this.alive);
+		}
+
+		if (value.length() == 3 && !atStart) {
+			// The single trigram is the value itself
+			return candidates;
+		}
+
+		// Having all trigrams does not mean they are in the right order
+		for (int id = candidates.nextSetBit(0); id >= 0; id = candidates.nextSetBit(id + 1)) {
+			final String text = this.documents.get(id).fields[field.ordinal()];
+			if (text == null || !(atStart ? text.startsWith(value) : text.contains(value))) {
+				candidates.clear(id);
+			}
+		}
+		return candidates;
+	}
+
+	private void add(Document doc) {
+		final String path = doc.path;
+		remove(path);
+
+		final int id = this.documents.size();
+		this.documents.add(doc);
+		this.alive.set(id);
+		this.idsByPath.put(path, id);
+
+		for (Field field : Field.values()) {
+			final String text = doc.fields[field.ordinal()];
+			if (text != null) {
+				this.values.get(field).computeIfAbsent(text, k -> new IntList()).add(id);
+				for (long trigram : getTrigrams(text)) {
+					this.trigrams.get(field).computeIfAbsent(trigram, k -> new IntList()).add(id);
+				}
+			}
+		}
+
+		if (doc.upnpClass != null) {
+			this.classes.computeIfAbsent(doc.upnpClass, k -> new BitSet()).set(id);
+		}
+	}
+
+	private void remove(String path) {
+		// The postings are cleaned up by compact()
+		final Integer id = this.idsByPath.remove(path);
+		if (id != null) {
+			this.documents.set(id, null);
+			this.alive.clear(id);
+		}
+	}
+
+	private void compact() {
+		final long start = System.currentTimeMillis();
+		final ArrayList<Document> live = new ArrayList<>(this.alive.cardinality());
+		for (Document doc : this.documents) {
+			if (doc != null) {
+				live.add(doc);
+			}
+		}
+
+		this.documents.clear();
+		this.alive.clear();
+		this.idsByPath.clear();
+		this.classes.clear();
+		for (Field field : Field.values()) {
+			this.trigrams.get(field).clear();
+			this.values.get(field).clear();
+		}
+
+		for (Document doc : live) {
+			add(doc);
+		}
+		LOGGER.debug("Compacted search index to %d entries in %d ms".formatted(live.size(), System.currentTimeMillis() - start));
+	}
+
+	private Document newDocument(LibraryEntry entry, MediaTags tags) {
+		return new Document(entry.getFile().getAbsolutePath(), entry, this.classOf.apply(entry), describe(entry, tags));
+	}
+
+	/**
+	 * @return the normalized text of every {@link Field}, null if there is none
+	 */
+	private static String[] describe(LibraryEntry entry, MediaTags tags) {
+		final String[] fields = new String[Field.values().length];
+		fields[Field.TITLE.ordinal()] = normalize(entry.getName());
+		fields[Field.ARTIST.ordinal()] = normalize(tags.getArtist());
+		fields[Field.ALBUM.ordinal()] = normalize(tags.getAlbum());
+		fields[Field.GENRE.ordinal()] = normalize(tags.getGenre());
+		return fields;
+	}
+
+	private static String normalize(String text) {
+		return text != null ? Normalizer.normalize(text, Normalizer.Form.NFC).toLowerCase(Locale.ROOT) : null;
+	}
+
+	private static long[] getTrigrams(String text) {
+		if (text.length() < 3) {
+			return new long[0];
+		}
+
+		final long[] result = new long[text.length() - 2];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+		}
+		// The same trigram may appear more than once
+		return Arrays.stream(result).distinct().toArray();
+	}
+
+	private static String withSeparator(String path) {
+		return path.endsWith(File.separator) ? path : path + File.separator;
+	}
+
+	private static class Document {
+		private final String path;
+		private final LibraryEntry entry;
+		private final String upnpClass;
+		private final String[] fields;
+
+		private Document(String path, LibraryEntry entry, String upnpClass, String[] fields) {
+			this.path = path;
+			this.entry = entry;
+			this.upnpClass = upnpClass;
+			this.fields = fields;
+		}
+	}
+
+	/**
+	 * Growing list of ascending ids, without boxing
+	 */
+	private static class IntList {
+		private int[] ids = new int[4];
+		private int size = 0;
+
+		private void add(int id) {
+			if (this.size > 0 && this.ids[this.size - 1] == id) {
+				return;
+			}
+			if (this.size == this.ids.length) {
+				this.ids = Arrays.copyOf(this.ids, this.size * 2);
+			}
+			this.ids[this.size++] = id;
+		}
+
+		private BitSet toBitSet() {
+			final BitSet bits = new BitSet();
+			for (int i = 0; i < this.size; i++) {
+				bits.set(this.ids[i]);
+			}
+			return bits;
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+package de.einwesen.heimklangwelle.contentdirectory.library;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import de.einwesen.heimklangwelle.contentdirectory.tags.SeekTable;
+
+/**
+ * Seek tables of the files played recently, keyed by path.
+ *
+ * Like the {@link TagCache}, an entry is only valid as long as modification time and size of the file are the same.
+ * Building a table may mean reading the whole file, but only a few files are played at a time, so only a few are kept.
+ */
+public class SeekTableCache {
+
+	private final Function<File, SeekTable> tableReader;
+	private final int maxEntries;
+	private final LinkedHashMap<String, CachedTable> tables = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public SeekTableCache(Function<File, SeekTable> tableReader, int maxEntries) {
+		this.tableReader = tableReader;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @return the table of the file, or null if it has none
+	 */
+	public SeekTable get(LibraryEntry entry) {
+		final String key = entry.getFile().getAbsolutePath();
+		synchronized (this.tables) {
+			final CachedTable cached = this.tables.get(key);
+			if (cached != null && cached.lastModified == entry.getLastModified() && cached.size == entry.getSize()) {
+				this.hits.incrementAndGet();
+				return cached.table;
+			}
+		}
+
+		// Not within the lock, it may take a moment. Two requests for the same file may both read it, which does no harm.
+		this.misses.incrementAndGet();
+		final SeekTable read = this.tableReader.apply(entry.getFile());
+
+		synchronized (this.tables) {
+			this.tables.put(key, new CachedTable(entry.getLastModified(), entry.getSize(), read));
+			if (this.tables.size() > this.maxEntries) {
+				final Map.Entry<String, CachedTable> eldest = this.tables.entrySet().iterator().next();
+				this.tables.remove(eldest.getKey());
+			}
+		}
+		return read;
+	}
+
+	public int size() {
+		synchronized (this.tables) {
+			return this.tables.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	private static class CachedTable {
+		private final long lastModified;
+		private final long size;
+		private final SeekTable table;
+
+		private CachedTable(long lastModified, long size, SeekTable table) {
+			this.lastModified = lastModified;
+			this.size = size;
+			this.table = table;
+		}
+	}
+
+}
@@ -0,0 +1,224 @@
+package de.einwesen.heimklangwelle.contentdirectory.library;
+
+import java.io.File;
+import java.text.CollationKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import de.einwesen.heimklangwelle.contentdirectory.tags.MediaTags;
+
+/**
+ * Order of library entries, as requested by the SortCriteria of a browse e.g. "+upnp:album,+upnp:originalTrackNumber".
+ *
+ * Only the properties of {@link #SORT_CAPABILITIES} are supported, and entries with the same values are always ordered by title.
+ */
+public class SortOrder {
+
+	public enum Property {
+		TITLE("dc:title"),
+		DATE("dc:date"),
+		ALBUM("upnp:album"),
+		TRACK("upnp:originalTrackNumber"),
+		SIZE("res@size");
+
+		private final String upnpName;
+
+		private Property(String upnpName) {
+			this.upnpName = upnpName;
+		}
+
+		public String getUpnpName() {
+			return upnpName;
+		}
+
+		public static Property of(String upnpName) {
+			for (Property p : values()) {
+				if (p.upnpName.equalsIgnoreCase(upnpName)) {
+					return p;
+				}
+			}
+			return null;
+		}
+	}
+
+	public static final List<String> SORT_CAPABILITIES = Collections.unmodifiableList(
+			Arrays.stream(Property.values()).map(Property::getUpnpName).collect(Collectors.toList()));
+
+	public static final SortOrder BY_TITLE = new SortOrder(Collections.emptyList(), new boolean[0]);
+
+	private final List<Property> properties;
+	private final boolean[] ascending;
+	private final String key;
+
+	private SortOrder(List<Property> properties, boolean[] ascending) {
+		this.properties = properties;
+		this.ascending = ascending;
+
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < properties.size(); i++) {
+			sb.append(i > 0 ? "," : "").append(ascending[i] ? "+" : "-").append(properties.get(i).getUpnpName());
+		}
+		this.key = sb.toString();
+	}
+
+	/**
+	 * @param criteria e.g. "+dc:title,-dc:date", empty or null for the default order
+	 * @throws IllegalArgumentException if a property is not one of {@link #SORT_CAPABILITIES}
+	 */
+	public static SortOrder parse(String criteria) {
+		if (criteria == null || criteria.isBlank()) {
+			return BY_TITLE;
+		}
+
+		final ArrayList<Property> properties = new ArrayList<>();
+		final ArrayList<Boolean> ascending = new ArrayList<>();
+
+		for (String criterion : criteria.split(",")) {
+			String name = criterion.trim();
+			boolean asc = true;
+			if (name.startsWith("+") || name.startsWith("-")) {
+				asc = name.charAt(0) == '+';
+				name = name.substring(1);
+			}
+
+			final Property property = Property.of(name);
+			if (property == null) {
+				throw new IllegalArgumentException("Unsupported sort property: " + name);
+			}
+			if (!properties.contains(property)) {
+				properties.add(property);
+				ascending.add(asc);
+			}
+		}
+
+		// Title is always the last criterion anyway
+		if (properties.size() == 1 && properties.get(0) == Property.TITLE && ascending.get(0)) {
+			return BY_TITLE;
+		}
+
+		final boolean[] asc = new boolean[ascending.size()];
+		for (int i = 0; i < asc.length; i++) {
+			asc[i] = ascending.get(i);
+		}
+		return properties.isEmpty() ? BY_TITLE : new SortOrder(Collections.unmodifiableList(properties), asc);
+	}
+
+	/**
+	 * @return the normalized criteria, empty for the default order
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * @param tagsOf only used if the order depends on tags
+	 * @return a new list with the entries in this order
+	 */
+	public List<LibraryEntry> sort(Collection<LibraryEntry> entries, TitleCollator collator, Function<LibraryEntry, MediaTags> tagsOf) {
+		if (this == BY_TITLE) {
+			return collator.sort(entries, LibraryEntry::getName);
+		}
+
+		// The values to compare are collected once per entry, not on every comparison
+		final boolean needsTags = this.properties.contains(Property.ALBUM) || this.properties.contains(Property.TRACK);
+		final SortValues[] values = new SortValues[entries.size()];
+		int i = 0;
+		for (LibraryEntry entry : entries) {
+			values[i++] = new SortValues(entry, collator, needsTags ? tagsOf.apply(entry) : MediaTags.EMPTY);
+		}
+
+		Arrays.sort(values, this::compare);
+
+		final ArrayList<LibraryEntry> sorted = new ArrayList<>(values.length);
+		for (SortValues v : values) {
+			sorted.add(v.entry);
+		}
+		return sorted;
+	}
+
+	private int compare(SortValues v1, SortValues v2) {
+		for (int i = 0; i < this.properties.size(); i++) {
+			final int result = v1.compare(this.properties.get(i), v2);
+			if (result != 0) {
+				return this.ascending[i] ? result : -result;
+			}
+		}
+		return v1.compare(Property.TITLE, v2);
+	}
+
+	@Override
+	public String toString() {
+		return this.key.isEmpty() ? "+" + Property.TITLE.getUpnpName() : this.key;
+	}
+
+	@Override
+	public int hashCode() {
+		return key.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof SortOrder && ((SortOrder) obj).key.equals(this.key);
+	}
+
+	private static class SortValues {
+		private final LibraryEntry entry;
+		private final CollationKey title;
+		private final CollationKey album;
+		private final int track;
+
+		private SortValues(LibraryEntry entry, TitleCollator collator, MediaTags tags) {
+			this.entry = entry;
+			this.title = collator.getKey(entry.getName());
+			this.album = collator.getKey(tags.getAlbum() != null ? tags.getAlbum() : getAlbum(entry));
+			this.track = tags.getTrackNumber() > 0 ? tags.getTrackNumber() : getTrackNumber(entry);
+		}
+
+		private int compare(Property property, SortValues other) {
+			switch (property) {
+				case TITLE:
+					return this.title.compareTo(other.title);
+				case DATE:
+					return Long.compare(this.entry.getLastModified(), other.entry.getLastModified());
+				case ALBUM:
+					return this.album.compareTo(other.album);
+				case TRACK:
+					return Integer.compare(this.track, other.track);
+				case SIZE:
+					return Long.compare(this.entry.getSize(), other.entry.getSize());
+				default:
+					return 0;
+			}
+		}
+	}
+
+	/**
+	 * Without an album tag, the folder is the best guess for the album
+	 */
+	static String getAlbum(LibraryEntry entry) {
+		final File parent = entry.getFile().getParentFile();
+		return parent != null ? parent.getName() : "";
+	}
+
+	/**
+	 * Without a track tag, a leading number in the file name is the best guess for the track (e.g. "01 - Intro.mp3")
+	 *
+	 * @return the track, or {@link Integer#MAX_VALUE} so that entries without one go last
+	 */
+	static int getTrackNumber(LibraryEntry entry) {
+		final String name = entry.getName();
+		int track = 0;
+		int digits = 0;
+		while (digits < name.length() && digits < 4 && Character.isDigit(name.charAt(digits))) {
+			track = track * 10 + Character.digit(name.charAt(digits), 10);
+			digits += 1;
+		}
+		return digits > 0 && !entry.isDirectory() ? track : Integer.MAX_VALUE;
+	}
+
+}
@@ -0,0 +1,93 @@
+package de.einwesen.heimklangwelle.contentdirectory.library;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import de.einwesen.heimklangwelle.contentdirectory.tags.MediaTags;
+
+/**
+ * Tags of every file read so far, keyed by path.
+ *
+ * An entry is only valid as long as modification time and size of the file are the same,
+ * so every file is parsed once, unless it changes.
+ */
+public class TagCache {
+
+	private final Function<File, MediaTags> tagReader;
+	private final Map<String, CachedTags> tags = new ConcurrentHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public TagCache(Function<File, MediaTags> tagReader) {
+		this.tagReader = tagReader;
+	}
+
+	/**
+	 * @return the tags of the file, {@link MediaTags#EMPTY} for directories
+	 */
+	public MediaTags get(LibraryEntry entry) {
+		if (entry.isDirectory()) {
+			return MediaTags.EMPTY;
+		}
+
+		final String key = entry.getFile().getAbsolutePath();
+		final CachedTags cached = this.tags.get(key);
+		if (cached != null && cached.lastModified == entry.getLastModified() && cached.size == entry.getSize()) {
+			this.hits.incrementAndGet();
+			return cached.tags;
+		}
+
+		this.misses.incrementAndGet();
+		final MediaTags read = this.tagReader.apply(entry.getFile());
+		this.tags.put(key, new CachedTags(entry.getLastModified(), entry.getSize(), read));
+		return read;
+	}
+
+	/**
+	 * @return the tags of the file if they were read before and it did not change since, null otherwise. Never reads the file.
+	 */
+	public MediaTags peek(LibraryEntry entry) {
+		final CachedTags cached = this.tags.get(entry.getFile().getAbsolutePath());
+		return cached != null && cached.lastModified == entry.getLastModified() && cached.size == entry.getSize() ? cached.tags : null;
+	}
+
+	/**
+	 * Takes tags read earlier, e.g. kept in a snapshot, for the file in the state of the entry
+	 */
+	public void put(LibraryEntry entry, MediaTags tags) {
+		this.tags.put(entry.getFile().getAbsolutePath(), new CachedTags(entry.getLastModified(), entry.getSize(), tags));
+	}
+
+	public void invalidate(File file) {
+		this.tags.remove(file.getAbsolutePath());
+	}
+
+	public int size() {
+		return this.tags.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	private static class CachedTags {
+		private final long lastModified;
+		private final long size;
+		private final MediaTags tags;
+
+		private CachedTags(long lastModified, long size, MediaTags tags) {
+			this.lastModified = lastModified;
+			this.size = size;
+			this.tags = tags;
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+package de.einwesen.heimklangwelle.contentdirectory.library;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+
+/**
+ * Sorts titles according to the rules of a locale (e.g. "Ärzte" next to "Arzt" for german),
+ * ignoring case.
+ *
+ * Sorting builds a {@link CollationKey} once per item, so that comparing is cheap
+ * and does not allocate anything.
+ */
+public class TitleCollator {
+
+	private final Locale locale;
+	private final Collator collator;
+
+	public TitleCollator(Locale locale) {
+		this.locale = locale;
+		this.collator = Collator.getInstance(locale);
+		// Different case is equal, different accents are not
+		this.collator.setStrength(Collator.SECONDARY);
+	}
+
+	/**
+	 * @param languageTag e.g. "de-DE", empty for the default locale of the jvm
+	 */
+	public static TitleCollator forLanguageTag(String languageTag) {
+		if (languageTag == null || languageTag.isBlank()) {
+			return new TitleCollator(Locale.getDefault());
+		}
+		return new TitleCollator(Locale.forLanguageTag(languageTag.trim()));
+	}
+
+	public Locale getLocale() {
+		return locale;
+	}
+
+	public CollationKey getKey(String title) {
+		// Collator is not thread safe
+		synchronized (this.collator) {
+			return this.collator.getCollationKey(title != null ? title : "");
+		}
+	}
+
+	/**
+	 * @return a new list with the items, sorted by their title
+	 */
+	public <T> List<T> sort(Collection<T> items, Function<T, String> titleOf) {
+		final Keyed<?>[] keyed = new Keyed<?>[items.size()];
+		int i = 0;
+		for (T item : items) {
+			keyed[i++] = new Keyed<>(getKey(titleOf.apply(item)), item);
+		}
+
+		Arrays.sort(keyed, Comparator.comparing(k -> k.key));
+
+		final ArrayList<T> sorted = new ArrayList<>(keyed.length);
+		for (Keyed<?> k : keyed) {
+			@SuppressWarnings("unchecked")
+			final T item = (T) k.item;
+			sorted.add(item);
+		}
+		return sorted;
+	}
+
+	private static class Keyed<T> {
+		private final CollationKey key;
+		private final T item;
+
+		private Keyed(CollationKey key, T item) {
+			this.key = key;
+			this.item = item;
+		}
+	}
+
+}
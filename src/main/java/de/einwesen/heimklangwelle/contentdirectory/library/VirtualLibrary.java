@@ -0,0 +1,343 @@
+package de.einwesen.heimklangwelle.contentdirectory.library;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import de.einwesen.heimklangwelle.contentdirectory.tags.MediaTags;
+
+/**
+ * Groups the tracks of the {@link MediaLibraryIndex} by artist, album and genre, and keeps the most recently added files.
+ *
+ * Membership is updated as the library index changes, so listing a group never touches the filesystem.
+ * Files join their groups once their tags were read by the {@link BackgroundTagReader}.
+ * Sorted lists of groups and members are kept until the group changes.
+ * Tags arrive later than the change of the directory, so listeners are told about every change of the views on their own.
+ */
+public class VirtualLibrary implements LibraryChangeListener {
+
+	public enum View {
+		ARTISTS("Artists", SortOrder.parse("+upnp:album,+upnp:originalTrackNumber")),
+		ALBUMS("Albums", SortOrder.parse("+upnp:originalTrackNumber")),
+		GENRES("Genres", SortOrder.BY_TITLE),
+		RECENT("Recently Added", SortOrder.parse("-dc:date"));
+
+		private final String title;
+		private final SortOrder defaultOrder;
+
+		private View(String title, SortOrder defaultOrder) {
+			this.title = title;
+			this.defaultOrder = defaultOrder;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		/**
+		 * @return the order of the members of a group, if the client did not ask for one
+		 */
+		public SortOrder getDefaultOrder() {
+			return defaultOrder;
+		}
+	}
+
+	private final Function<LibraryEntry, MediaTags> tagsOf;
+	private final BackgroundTagReader tagReader;
+	private final TitleCollator collator;
+	private final int recentSize;
+
+	private final EnumMap<View, Map<String, Group>> groups = new EnumMap<>(View.class);
+	private final EnumMap<View, List<Group>> sortedGroups = new EnumMap<>(View.class);
+
+	// Where each path is a member, to remove it without reading its tags again
+	private final Map<String, Member> members = new HashMap<>();
+
+	// Files waiting for their tags, by path. Only added if still the same entry once the tags are there.
+	private final Map<String, LibraryEntry> pending = new HashMap<>();
+
+	private final TreeSet<LibraryEntry> recent = new TreeSet<>(
+			Comparator.comparingLong(LibraryEntry::getLastModified).reversed().thenComparing(e -> e.getFile().getAbsolutePath()));
+	private List<LibraryEntry> recentList = null;
+
+	private final List<Consumer<Set<View>>> changeListeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * @param tagsOf returns the tags of an entry, to sort members by
+	 * @param tagReader reads the tags of added files
+	 * @param collator used to sort groups by name
+	 * @param recentSize number of files in {@link View#RECENT}
+	 */
+	public VirtualLibrary(Function<LibraryEntry, MediaTags> tagsOf, BackgroundTagReader tagReader, TitleCollator collator, int recentSize) {
+		this.tagsOf = tagsOf;
+		this.tagReader = tagReader;
+		this.collator = collator;
+		this.recentSize = recentSize;
+		for (View view : View.values()) {
+			this.groups.put(view, new HashMap<>());
+		}
+	}
+
+	/**
+	 * @param listener called with the views whose groups or members changed, on the thread that changed them
+	 */
+	public void addChangeListener(Consumer<Set<View>> listener) {
+		this.changeListeners.add(listener);
+	}
+
+	@Override
+	public void directoryChanged(File directory, List<LibraryEntry> added, List<LibraryEntry> removed) {
+		final ArrayList<LibraryEntry> files = new ArrayList<>(added.size());
+		final EnumSet<View> changed = EnumSet.noneOf(View.class);
+
+		synchronized (this) {
+			for (LibraryEntry entry : removed) {
+				this.pending.remove(entry.getFile().getAbsolutePath());
+				remove(entry, changed);
+			}
+			for (LibraryEntry entry : added) {
+				if (!entry.isDirectory()) {
+					this.pending.put(entry.getFile().getAbsolutePath(), entry);
+					files.add(entry);
+				}
+			}
+		}
+
+		fireChanged(changed);
+		if (!files.isEmpty()) {
+			this.tagReader.read(files, this::tagsRead);
+		}
+	}
+
+	private void tagsRead(Map<LibraryEntry, MediaTags> tags) {
+		final EnumSet<View> changed = EnumSet.noneOf(View.class);
+		synchronized (this) {
+			for (Map.Entry<LibraryEntry, MediaTags> entry : tags.entrySet()) {
+				// Removed or modified again while its tags were read
+				if (this.pending.remove(entry.getKey().getFile().getAbsolutePath(), entry.getKey())) {
+					add(entry.getKey(), entry.getValue(), changed);
+				}
+			}
+		}
+		fireChanged(changed);
+	}
+
+	private void fireChanged(Set<View> changed) {
+		if (changed.isEmpty()) {
+			return;
+		}
+		for (Consumer<Set<View>> listener : this.changeListeners) {
+			listener.accept(Collections.unmodifiableSet(changed));
+		}
+	}
+
+	/**
+	 * @return the groups of a view sorted by name, empty for {@link View#RECENT}
+	 */
+	public synchronized List<Group> getGroups(View view) {
+		List<Group> sorted = this.sortedGroups.get(view);
+		if (sorted == null) {
+			sorted = Collections.unmodifiableList(this.collator.sort(this.groups.get(view).values(), Group::getName));
+			this.sortedGroups.put(view, sorted);
+		}
+		return sorted;
+	}
+
+	/**
+	 * @return the group, or null if there is none (anymore)
+	 */
+	public synchronized Group getGroup(View view, String key) {
+		return this.groups.get(view).get(key);
+	}
+
+	/**
+	 * @return the most recently modified files, newest first
+	 */
+	public synchronized List<LibraryEntry> getRecent() {
+		if (this.recentList == null) {
+			final ArrayList<LibraryEntry> list = new ArrayList<>(Math.min(this.recentSize, this.recent.size()));
+			for (LibraryEntry entry : this.recent) {
+				if (list.size() >= this.recentSize) {
+					break;
+				}
+				list.add(entry);
+			}
+			this.recentList = Collections.unmodifiableList(list);
+		}
+		return this.recentList;
+	}
+
+	/**
+	 * @return number of groups, or files for {@link View#RECENT}
+	 */
+	public synchronized int getSize(View view) {
+		return view == View.RECENT ? Math.min(this.recentSize, this.recent.size()) : this.groups.get(view).size();
+	}
+
+	private void add(LibraryEntry entry, MediaTags tags, Set<View> changed) {
+		final String path = entry.getFile().getAbsolutePath();
+		remove(entry, changed);
+
+		final Member member = new Member(entry);
+		final File parent = entry.getFile().getParentFile();
+		member.addTo(this, View.ARTISTS, tags.getArtist(), tags.getArtist());
+		// Albums with the same name (e.g. "Greatest Hits") are told apart by their folder
+		member.addTo(this, View.ALBUMS, tags.getAlbum(), tags.getAlbum() != null && parent != null ? tags.getAlbum() + "\n" + parent.getAbsolutePath() : tags.getAlbum());
+		member.addTo(this, View.GENRES, tags.getGenre(), tags.getGenre());
+		this.members.put(path, member);
+		member.addViewsTo(changed);
+
+		this.recent.add(entry);
+		this.recentList = null;
+		changed.add(View.RECENT);
+	}
+
+	private void remove(LibraryEntry entry, Set<View> changed) {
+		final Member member = this.members.remove(entry.getFile().getAbsolutePath());
+		if (member != null) {
+			member.removeFromAll(this);
+			member.addViewsTo(changed);
+			if (this.recent.remove(member.entry)) {
+				this.recentList = null;
+				changed.add(View.RECENT);
+			}
+		}
+	}
+
+	private Group getOrCreateGroup(View view, String name, String key) {
+		return this.groups.get(view).computeIfAbsent(key, k -> {
+			this.sortedGroups.remove(view);
+			return new Group(view, key, name);
+		});
+	}
+
+	private void removeIfEmpty(Group group) {
+		if (group.members.isEmpty()) {
+			this.groups.get(group.view).remove(group.key);
+			this.sortedGroups.remove(group.view);
+		}
+	}
+
+	/**
+	 * The groups a single file is a member of
+	 */
+	private static class Member {
+		private final LibraryEntry entry;
+		private final ArrayList<Group> groups = new ArrayList<>(3);
+
+		private Member(LibraryEntry entry) {
+			this.entry = entry;
+		}
+
+		private void addTo(VirtualLibrary library, View view, String name, String key) {
+			if (name != null) {
+				final Group group = library.getOrCreateGroup(view, name, key.toLowerCase(Locale.ROOT));
+				group.add(this.entry);
+				this.groups.add(group);
+			}
+		}
+
+		private void addViewsTo(Set<View> views) {
+			for (Group group : this.groups) {
+				views.add(group.view);
+			}
+		}
+
+		private void removeFromAll(VirtualLibrary library) {
+			for (Group group : this.groups) {
+				group.remove(this.entry);
+				library.removeIfEmpty(group);
+			}
+		}
+	}
+
+	/**
+	 * A single artist, album or genre
+	 */
+	public class Group {
+		private final View view;
+		private final String key;
+		private final String name;
+		private final Map<String, LibraryEntry> members = new HashMap<>();
+		private final Map<SortOrder, List<LibraryEntry>> sortedMembers = new ConcurrentHashMap<>();
+		private int version = 0;
+
+		private Group(View view, String key, String name) {
+			this.view = view;
+			this.key = key;
+			this.name = name;
+		}
+
+		public View getView() {
+			return view;
+		}
+
+		/**
+		 * @return the key to get this group by with {@link VirtualLibrary#getGroup(View, String)}
+		 */
+		public String getKey() {
+			return key;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getSize() {
+			synchronized (VirtualLibrary.this) {
+				return this.members.size();
+			}
+		}
+
+		/**
+		 * @return the members in the given order, sorted once until the group changes
+		 */
+		public List<LibraryEntry> getMembers(SortOrder order) {
+			List<LibraryEntry> sorted = this.sortedMembers.get(order);
+			if (sorted == null) {
+				final ArrayList<LibraryEntry> copy;
+				final int copiedVersion;
+				synchronized (VirtualLibrary.this) {
+					copy = new ArrayList<>(this.members.values());
+					copiedVersion = this.version;
+				}
+
+				// Sorting may read tags, so it is done without holding the lock
+				sorted = Collections.unmodifiableList(order.sort(copy, VirtualLibrary.this.collator, VirtualLibrary.this.tagsOf));
+
+				synchronized (VirtualLibrary.this) {
+					if (copiedVersion == this.version) {
+						this.sortedMembers.put(order, sorted);
+					}
+				}
+			}
+			return sorted;
+		}
+
+		private void add(LibraryEntry entry) {
+			this.members.put(entry.getFile().getAbsolutePath(), entry);
+			this.sortedMembers.clear();
+			this.version += 1;
+		}
+
+		private void remove(LibraryEntry entry) {
+			this.members.remove(entry.getFile().getAbsolutePath());
+			this.sortedMembers.clear();
+			this.version += 1;
+		}
+	}
+
+}
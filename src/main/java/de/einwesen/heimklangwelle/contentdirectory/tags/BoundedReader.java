@@ -0,0 +1,76 @@
+package de.einwesen.heimklangwelle.contentdirectory.tags;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads small regions of a file at arbitrary positions, so that parsers never need to read more than the headers.
+ */
+public class BoundedReader implements Closeable {
+
+	// Nothing we parse needs more than this at once, anything bigger is skipped
+	public static final int MAX_READ = 1024 * 1024;
+
+	private final FileChannel channel;
+	private final long size;
+
+	public BoundedReader(File file) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.size = this.channel.size();
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @return a buffer with up to length bytes from position, less if the file ends before
+	 * @throws IOException if more than {@link #MAX_READ} bytes are requested
+	 */
+	public ByteBuffer read(long position, int length) throws IOException {
+		if (length < 0 || length > MAX_READ) {
+			throw new IOException("Refusing to read %d bytes at %d".formatted(length, position));
+		}
+
+		final int available = (int) Math.max(0, Math.min(length, this.size - position));
+		final ByteBuffer buffer = ByteBuffer.allocate(available).order(ByteOrder.BIG_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (this.channel.read(buffer, position + buffer.position()) < 0) {
+				break;
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.channel.close();
+	}
+
+	static boolean startsWith(ByteBuffer buffer, int offset, String ascii) {
+		if (buffer.limit() < offset + ascii.length()) {
+			return false;
+		}
+		for (int i = 0; i < ascii.length(); i++) {
+			if (buffer.get(offset + i) != (byte) ascii.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static String ascii(ByteBuffer buffer, int offset, int length) {
+		final char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) (buffer.get(offset + i) & 0xFF);
+		}
+		return new String(chars);
+	}
+
+}
@@ -0,0 +1,49 @@
+package de.einwesen.heimklangwelle.contentdirectory.tags;
+
+import java.io.File;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the embedded cover of mp3 (APIC), flac (PICTURE) and mp4/m4a (covr) files.
+ *
+ * Ogg files carry their pictures base64 encoded within the comments, which are not read that far.
+ * {@link MediaTags#hasCoverArt()} is never true for them.
+ */
+public class CoverArtReader {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CoverArtReader.class);
+
+	private CoverArtReader() {
+	}
+
+	/**
+	 * @return the encoded image as it is stored (usually JPEG or PNG), or null if there is none
+	 */
+	public static byte[] read(File file) {
+		final String name = file.getName().toLowerCase();
+		final String ext = name.substring(name.lastIndexOf('.') + 1);
+
+		try (BoundedReader reader = new BoundedReader(file)) {
+			switch (ext) {
+				case "mp3":
+					return Id3v2Reader.readPicture(reader, 0);
+				case "flac":
+					final byte[] picture = FlacReader.readPicture(reader);
+					// Some taggers put an ID3v2 tag in front, which may have the picture instead
+					return picture != null ? picture : Id3v2Reader.readPicture(reader, 0);
+				case "m4a":
+				case "m4b":
+				case "mp4":
+					return Mp4Reader.readPicture(reader);
+				default:
+					return null;
+			}
+		} catch (Exception e) {
+			LOGGER.debug("Could not read cover of '" + file.getAbsolutePath() + "': " + e.toString());
+			return null;
+		}
+	}
+
+}
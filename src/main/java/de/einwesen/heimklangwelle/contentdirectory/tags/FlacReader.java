@@ -0,0 +1,273 @@
+package de.einwesen.heimklangwelle.contentdirectory.tags;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads STREAMINFO and VORBIS_COMMENT from the metadata blocks of a FLAC file. PICTURE blocks are only noted, and read on their own,
+ * so is the SEEKTABLE.
+ */
+class FlacReader {
+
+	static final int BLOCK_STREAMINFO = 0;
+	static final int BLOCK_SEEKTABLE = 3;
+	static final int BLOCK_VORBIS_COMMENT = 4;
+	static final int BLOCK_PICTURE = 6;
+
+	private static final int PICTURE_FRONT_COVER = 3;
+
+	private static final int SEEK_POINT_SIZE = 18;
+
+	// Bytes searched for a frame header, frames are a few kB
+	private static final int SYNC_SEARCH_LENGTH = 32 * 1024;
+
+	private FlacReader() {
+	}
+
+	static void read(BoundedReader reader, MediaTags.Builder tags) throws IOException {
+		// Some taggers put an ID3v2 tag in front, which is not allowed, but happens
+		long position = Id3v2Reader.read(reader, 0, tags);
+
+		final ByteBuffer magic = reader.read(position, 4);
+		if (!BoundedReader.startsWith(magic, 0, "fLaC")) {
+			return;
+		}
+		position += 4;
+
+		walkBlocks(reader, position, (type, blockPosition, length) -> {
+			if (type == BLOCK_STREAMINFO && length >= 18) {
+				final ByteBuffer info = reader.read(blockPosition, 18);
+				if (info.limit() == 18) {
+					// 20 bits sample rate, 3 bits channels, 5 bits bits per sample, 36 bits total samples
+					final long bits = info.getLong(10);
+					final long sampleRate = bits >>> 44;
+					final long totalSamples = bits & 0xFFFFFFFFFL;
+					if (sampleRate > 0 && totalSamples > 0) {
+						tags.durationMillis(totalSamples * 1000 / sampleRate);
+						// Same as for readSeekTable(), there is always one from the SEEKTABLE or the frames
+						tags.timeSeekable(true);
+					}
+				}
+			} else if (type == BLOCK_VORBIS_COMMENT) {
+				VorbisComments.read(reader.read(blockPosition, Math.min(length, BoundedReader.MAX_READ)), tags);
+			} else if (type == BLOCK_PICTURE) {
+				tags.coverArt();
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * @return the front cover, or the first picture if there is no front cover, or null
+	 */
+	static byte[] readPicture(BoundedReader reader) throws IOException {
+		final long position = Id3v2Reader.getTagLength(reader, 0);
+		if (!BoundedReader.startsWith(reader.read(position, 4), 0, "fLaC")) {
+			return null;
+		}
+
+		final byte[][] found = new byte[2][];
+		walkBlocks(reader, position + 4, (type, blockPosition, length) -> {
+			if (type == BLOCK_PICTURE && length <= BoundedReader.MAX_READ) {
+				final byte[] data = getPictureData(reader.read(blockPosition, length));
+				if (data != null && reader.read(blockPosition, 4).getInt(0) == PICTURE_FRONT_COVER) {
+					found[0] = data;
+					return false;
+				} else if (data != null && found[1] == null) {
+					found[1] = data;
+				}
+			}
+			return true;
+		});
+
+		return found[0] != null ? found[0] : found[1];
+	}
+
+	/**
+	 * From the SEEKTABLE block, or else by finding frames at evenly spaced positions of the file.
+	 * Every frame header has the number of its first sample, so a frame found is as good as a seek point.
+	 *
+	 * @return the seek table, or null if the file has no STREAMINFO with the total samples
+	 */
+	static SeekTable readSeekTable(BoundedReader reader) throws IOException {
+		final long start = Id3v2Reader.getTagLength(reader, 0);
+		if (!BoundedReader.startsWith(reader.read(start, 4), 0, "fLaC")) {
+			return null;
+		}
+
+		// sample rate, total samples, max. block size, SEEKTABLE position, SEEKTABLE length, first frame
+		final long[] info = new long[] { 0, 0, 0, -1, 0, start + 4 };
+		walkBlocks(reader, start + 4, (type, blockPosition, length) -> {
+			if (type == BLOCK_STREAMINFO && length >= 18) {
+				final ByteBuffer streamInfo = reader.read(blockPosition, 18);
+				if (streamInfo.limit() == 18) {
+					final long bits = streamInfo.getLong(10);
+					info[0] = bits >>> 44;
+					info[1] = bits & 0xFFFFFFFFFL;
+					info[2] = streamInfo.getShort(2) & 0xFFFF;
+				}
+			} else if (type == BLOCK_SEEKTABLE) {
+				info[3] = blockPosition;
+				info[4] = length;
+			}
+			info[5] = blockPosition + length;
+			return true;
+		});
+
+		final long sampleRate = info[0];
+		final long totalSamples = info[1];
+		final long firstFrame = info[5];
+		if (sampleRate == 0 || totalSamples == 0) {
+			return null;
+		}
+		final long durationMillis = totalSamples * 1000 / sampleRate;
+
+		final SeekTable.Builder points = new SeekTable.Builder();
+		points.add(0, firstFrame);
+
+		if (info[3] > -1) {
+			final ByteBuffer table = reader.read(info[3], (int) Math.min(info[4], BoundedReader.MAX_READ));
+			for (int p = 0; p + SEEK_POINT_SIZE <= table.limit(); p += SEEK_POINT_SIZE) {
+				final long sample = table.getLong(p);
+				if (sample != -1L) { // placeholder
+					points.add(sample * 1000 / sampleRate, firstFrame + table.getLong(p + 8));
+				}
+			}
+		}
+
+		if (points.size() < 2) {
+			// About one point per second, within reason
+			final long count = Math.max(16, Math.min(1024, durationMillis / 1000));
+			for (long k = 1; k < count; k++) {
+				final long position = firstFrame + (reader.size() - firstFrame) * k / count;
+				final ByteBuffer buffer = reader.read(position, SYNC_SEARCH_LENGTH);
+				for (int i = 0; i + 16 <= buffer.limit(); i++) {
+					final long sample = getFrameSample(buffer, i, info[2]);
+					if (sample > -1) {
+						points.add(sample * 1000 / sampleRate, position + i);
+						break;
+					}
+				}
+			}
+		}
+
+		return points.build(durationMillis, false);
+	}
+
+	/**
+	 * @return the first sample of the frame with a header at the index, or -1 if there is no valid header (with its CRC)
+	 */
+	private static long getFrameSample(ByteBuffer buffer, int i, long fixedBlockSize) {
+		if ((buffer.get(i) & 0xFF) != 0xFF || (buffer.get(i + 1) & 0xFE) != 0xF8) {
+			return -1;
+		}
+		final boolean variableBlockSize = (buffer.get(i + 1) & 0x01) != 0;
+		final int blockSizeCode = (buffer.get(i + 2) >> 4) & 0x0F;
+		final int sampleRateCode = buffer.get(i + 2) & 0x0F;
+		final int channels = (buffer.get(i + 3) >> 4) & 0x0F;
+		final int sampleSizeCode = (buffer.get(i + 3) >> 1) & 0x07;
+		if (blockSizeCode == 0 || sampleRateCode == 15 || channels > 10 || sampleSizeCode == 3 || (buffer.get(i + 3) & 0x01) != 0) {
+			return -1;
+		}
+
+		// Frame or sample number, coded like UTF-8 with up to 7 bytes
+		int position = i + 4;
+		final int first = buffer.get(position++) & 0xFF;
+		int extraBytes;
+		long number;
+		if (first < 0x80) {
+			extraBytes = 0;
+			number = first;
+		} else {
+			extraBytes = Integer.numberOfLeadingZeros(~first << 24) - 1;
+			if (extraBytes < 1 || extraBytes > 6) {
+				return -1;
+			}
+			number = first & (0x3F >> extraBytes);
+		}
+		for (int b = 0; b < extraBytes; b++) {
+			final int next = buffer.get(position++) & 0xFF;
+			if ((next & 0xC0) != 0x80) {
+				return -1;
+			}
+			number = (number << 6) | (next & 0x3F);
+		}
+
+		position += blockSizeCode == 6 ? 1 : blockSizeCode == 7 ? 2 : 0;
+		position += sampleRateCode == 12 ? 1 : (sampleRateCode == 13 || sampleRateCode == 14) ? 2 : 0;
+
+		int crc = 0;
+		for (int b = i; b < position; b++) {
+			crc ^= buffer.get(b) & 0xFF;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+			}
+		}
+		if (crc != (buffer.get(position) & 0xFF)) {
+			return -1;
+		}
+
+		if (variableBlockSize) {
+			return number;
+		}
+		return fixedBlockSize > 0 ? number * fixedBlockSize : -1;
+	}
+
+	/**
+	 * @return the image of a PICTURE block: type, mime type, description, width, height, depth, colors, data
+	 */
+	private static byte[] getPictureData(ByteBuffer block) {
+		if (block.limit() < 8) {
+			return null;
+		}
+		final long mimeLength = block.getInt(4) & 0xFFFFFFFFL;
+		final long descriptionPosition = 8 + mimeLength;
+		if (descriptionPosition + 4 > block.limit()) {
+			return null;
+		}
+		final long dataLengthPosition = descriptionPosition + 4 + (block.getInt((int) descriptionPosition) & 0xFFFFFFFFL) + 16;
+		if (dataLengthPosition + 4 > block.limit()) {
+			return null;
+		}
+		final long dataLength = block.getInt((int) dataLengthPosition) & 0xFFFFFFFFL;
+		final int start = (int) dataLengthPosition + 4;
+		if (dataLength == 0 || start + dataLength > block.limit()) {
+			return null;
+		}
+		return Arrays.copyOfRange(block.array(), start, start + (int) dataLength);
+	}
+
+	private interface BlockVisitor {
+		/**
+		 * @return false to stop
+		 */
+		boolean visit(int type, long position, int length) throws IOException;
+	}
+
+	/**
+	 * Calls the visitor for every metadata block, starting at the position right behind "fLaC"
+	 */
+	private static void walkBlocks(BoundedReader reader, long start, BlockVisitor visitor) throws IOException {
+		long position = start;
+
+		boolean last = false;
+		while (!last) {
+			final ByteBuffer header = reader.read(position, 4);
+			if (header.limit() < 4) {
+				return;
+			}
+
+			last = (header.get(0) & 0x80) != 0;
+			final int type = header.get(0) & 0x7F;
+			final int length = ((header.get(1) & 0xFF) << 16) | ((header.get(2) & 0xFF) << 8) | (header.get(3) & 0xFF);
+
+			if (!visitor.visit(type, position + 4, length)) {
+				return;
+			}
+
+			position += 4 + length;
+		}
+	}
+
+}
@@ -0,0 +1,318 @@
+package de.einwesen.heimklangwelle.contentdirectory.tags;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the text frames of an ID3v2.2 - v2.4 tag at the start of a file. Other frames are skipped, not read.
+ * Pictures are only noted while reading the tags, and read on their own when asked for.
+ */
+class Id3v2Reader {
+
+	static final int HEADER_LENGTH = 10;
+
+	// Text frames are small, anything bigger is not what we are looking for
+	private static final int MAX_TEXT_FRAME = 64 * 1024;
+
+	static final String[] GENRES = {
+		"Blues", "Classic Rock", "Country", "Dance", "Disco", "Funk", "Grunge", "Hip-Hop", "Jazz", "Metal",
+		"New Age", "Oldies", "Other", "Pop", "R&B", "Rap", "Reggae", "Rock", "Techno", "Industrial",
+		"Alternative", "Ska", "Death Metal", "Pranks", "Soundtrack", "Euro-Techno", "Ambient", "Trip-Hop", "Vocal", "Jazz+Funk",
+		"Fusion", "Trance", "Classical", "Instrumental", "Acid", "House", "Game", "Sound Clip", "Gospel", "Noise",
+		"Alternative Rock", "Bass", "Soul", "Punk", "Space", "Meditative", "Instrumental Pop", "Instrumental Rock", "Ethnic", "Gothic",
+		"Darkwave", "Techno-Industrial", "Electronic", "Pop-Folk", "Eurodance", "Dream", "Southern Rock", "Comedy", "Cult", "Gangsta",
+		"Top 40", "Christian Rap", "Pop/Funk", "Jungle", "Native American", "Cabaret", "New Wave", "Psychedelic", "Rave", "Showtunes",
+		"Trailer", "Lo-Fi", "Tribal", "Acid Punk", "Acid Jazz", "Polka", "Retro", "Musical", "Rock & Roll", "Hard Rock",
+		"Folk", "Folk-Rock", "National Folk", "Swing", "Fast Fusion", "Bebop", "Latin", "Revival", "Celtic", "Bluegrass",
+		"Avantgarde", "Gothic Rock", "Progressive Rock", "Psychedelic Rock", "Symphonic Rock", "Slow Rock", "Big Band", "Chorus", "Easy Listening", "Acoustic",
+		"Humour", "Speech", "Chanson", "Opera", "Chamber Music", "Sonata", "Symphony", "Booty Bass", "Primus", "Porn Groove",
+		"Satire", "Slow Jam", "Club", "Tango", "Samba", "Folklore", "Ballad", "Power Ballad", "Rhythmic Soul", "Freestyle",
+		"Duet", "Punk Rock", "Drum Solo", "A Cappella", "Euro-House", "Dance Hall", "Goa", "Drum & Bass", "Club-House", "Hardcore",
+		"Terror", "Indie", "BritPop", "Negerpunk", "Polsk Punk", "Beat", "Christian Gangsta Rap", "Heavy Metal", "Black Metal", "Crossover",
+		"Contemporary Christian", "Christian Rock", "Merengue", "Salsa", "Thrash Metal", "Anime", "JPop", "Synthpop"
+	};
+
+	// Picture types of APIC / PIC
+	private static final int PICTURE_OTHER = 0;
+	private static final int PICTURE_FRONT_COVER = 3;
+
+	private Id3v2Reader() {
+	}
+
+	private interface FrameVisitor {
+		/**
+		 * @param flags format flags of the frame, always 0 for v2.2
+		 * @return false to stop
+		 */
+		boolean visit(String id, long contentPosition, long contentLength, int flags) throws IOException;
+	}
+
+	/**
+	 * @return the length of the tag including its header, or 0 if there is no tag at the position
+	 */
+	static long getTagLength(BoundedReader reader, long position) throws IOException {
+		final ByteBuffer header = reader.read(position, HEADER_LENGTH);
+		if (header.limit() < HEADER_LENGTH || !BoundedReader.startsWith(header, 0, "ID3")) {
+			return 0;
+		}
+		final boolean footer = (header.get(5) & 0x10) != 0;
+		return HEADER_LENGTH + syncsafe(header, 6) + (footer ? HEADER_LENGTH : 0);
+	}
+
+	/**
+	 * @return the length of the tag, or 0 if there is none
+	 */
+	static long read(BoundedReader reader, long position, MediaTags.Builder tags) throws IOException {
+		return walkFrames(reader, position, (id, contentPosition, contentLength, flags) -> {
+			if (id.startsWith("T") && contentLength <= MAX_TEXT_FRAME) {
+				final ByteBuffer content = reader.read(contentPosition, (int) contentLength);
+				handleTextFrame(id, decodeText(content), tags);
+			} else if (id.equals("APIC") || id.equals("PIC")) {
+				tags.coverArt();
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * @return the front cover, or the first picture if there is no front cover, or null if there is none that can be read
+	 */
+	static byte[] readPicture(BoundedReader reader, long position) throws IOException {
+		final ByteBuffer header = reader.read(position, HEADER_LENGTH);
+		if (header.limit() < HEADER_LENGTH || (header.get(5) & 0x80) != 0) {
+			// The whole tag is unsynchronised, which would have to be undone for binary data 
+			return null;
+		}
+		final int version = header.get(3);
+
+		final byte[][] found = new byte[2][];
+		walkFrames(reader, position, (id, contentPosition, contentLength, flags) -> {
+			if ((id.equals("APIC") || id.equals("PIC")) && contentLength <= BoundedReader.MAX_READ) {
+				// Compressed, encrypted or unsynchronised frames are left alone 
+				final boolean readable = version == 4 ? (flags & 0x0E) == 0 : (flags & 0xC0) == 0;
+				final int skip = version == 4 && (flags & 0x01) != 0 ? 4 : 0; // data length indicator
+				if (readable) {
+					final ByteBuffer content = reader.read(contentPosition + skip, (int) contentLength - skip);
+					final int type = getPictureType(content, id.equals("PIC"));
+					final byte[] data = getPictureData(content, id.equals("PIC"));
+					if (data != null && type == PICTURE_FRONT_COVER) {
+						found[0] = data;
+						return false;
+					} else if (data != null && found[1] == null) {
+						found[1] = data;
+					}
+				}
+			}
+			return true;
+		});
+
+		return found[0] != null ? found[0] : found[1];
+	}
+
+	private static int getPictureType(ByteBuffer content, boolean v22) {
+		final int position = v22 ? 4 : indexOfTerminator(content, 1, 1) + 1;
+		return position > 0 && position < content.limit() ? content.get(position) & 0xFF : PICTURE_OTHER;
+	}
+
+	/**
+	 * @return the image within an APIC / PIC frame: encoding, mime type (or format), picture type, description, data
+	 */
+	private static byte[] getPictureData(ByteBuffer content, boolean v22) {
+		if (content.limit() < 5) {
+			return null;
+		}
+
+		final int encoding = content.get(0);
+		final int typePosition = v22 ? 4 : indexOfTerminator(content, 1, 1) + 1;
+		if (typePosition <= 0) {
+			return null;
+		}
+
+		final int terminatorLength = encoding == 1 || encoding == 2 ? 2 : 1;
+		final int descriptionEnd = indexOfTerminator(content, typePosition + 1, terminatorLength);
+		if (descriptionEnd < 0) {
+			return null;
+		}
+
+		final int start = descriptionEnd + terminatorLength;
+		return start < content.limit() ? Arrays.copyOfRange(content.array(), start, content.limit()) : null;
+	}
+
+	/**
+	 * @return the position of the first terminator at or after start, aligned to its length, or -1
+	 */
+	private static int indexOfTerminator(ByteBuffer content, int start, int terminatorLength) {
+		for (int i = start; i + terminatorLength <= content.limit(); i += terminatorLength) {
+			if (content.get(i) == 0 && (terminatorLength == 1 || content.get(i + 1) == 0)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Calls the visitor for every frame of the tag at the position
+	 * 
+	 * @return the length of the tag, or 0 if there is none
+	 */
+	private static long walkFrames(BoundedReader reader, long position, FrameVisitor visitor) throws IOException {
+		final ByteBuffer header = reader.read(position, HEADER_LENGTH);
+		if (header.limit() < HEADER_LENGTH || !BoundedReader.startsWith(header, 0, "ID3")) {
+			return 0;
+		}
+
+		final int version = header.get(3);
+		final int flags = header.get(5);
+		final long tagLength = getTagLength(reader, position);
+		final long end = position + HEADER_LENGTH + syncsafe(header, 6);
+
+		long framePosition = position + HEADER_LENGTH;
+		if ((flags & 0x40) != 0 && version >= 3) {
+			final ByteBuffer extended = reader.read(framePosition, 4);
+			if (extended.limit() < 4) {
+				return tagLength;
+			}
+			// v2.3 does not count the size itself, v2.4 does
+			framePosition += version == 3 ? 4 + extended.getInt(0) : syncsafe(extended, 0);
+		}
+
+		final int frameHeaderLength = version == 2 ? 6 : 10;
+		while (framePosition + frameHeaderLength <= end) {
+			final ByteBuffer frameHeader = reader.read(framePosition, frameHeaderLength);
+			if (frameHeader.limit() < frameHeaderLength || frameHeader.get(0) == 0) {
+				break; // padding
+			}
+
+			final String id;
+			final long frameLength;
+			if (version == 2) {
+				id = BoundedReader.ascii(frameHeader, 0, 3);
+				frameLength = ((frameHeader.get(3) & 0xFF) << 16) | ((frameHeader.get(4) & 0xFF) << 8) | (frameHeader.get(5) & 0xFF);
+			} else {
+				id = BoundedReader.ascii(frameHeader, 0, 4);
+				frameLength = version == 4 ? syncsafe(frameHeader, 4) : frameHeader.getInt(4) & 0xFFFFFFFFL;
+			}
+
+			if (frameLength <= 0 || framePosition + frameHeaderLength + frameLength > end) {
+				break;
+			}
+
+			if (!visitor.visit(id, framePosition + frameHeaderLength, frameLength, version == 2 ? 0 : frameHeader.get(9) & 0xFF)) {
+				break;
+			}
+
+			framePosition += frameHeaderLength + frameLength;
+		}
+
+		return tagLength;
+	}
+
+	private static void handleTextFrame(String id, String text, MediaTags.Builder tags) {
+		switch (id) {
+			case "TPE1":
+			case "TP1":
+				tags.artist(text);
+				break;
+			case "TPE2":
+			case "TP2":
+				tags.albumArtist(text);
+				break;
+			case "TALB":
+			case "TAL":
+				tags.album(text);
+				break;
+			case "TRCK":
+			case "TRK":
+				tags.trackNumber(text);
+				break;
+			case "TCON":
+			case "TCO":
+				tags.genre(resolveGenre(text));
+				break;
+			case "TLEN":
+			case "TLE":
+				try {
+					tags.durationMillis(Long.parseLong(text.trim()));
+				} catch (NumberFormatException | NullPointerException e) {
+					// just ignore it
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * @param genre e.g. "Rock", "17" or "(17)" or "(17)Rock"
+	 */
+	static String resolveGenre(String genre) {
+		if (genre == null) {
+			return null;
+		}
+
+		final String trimmed = genre.trim();
+		if (trimmed.startsWith("(")) {
+			final int close = trimmed.indexOf(')');
+			if (close > 0) {
+				// v2.3 allows a refinement after the reference, which is more specific
+				if (close < trimmed.length() - 1) {
+					return trimmed.substring(close + 1);
+				}
+				return resolveGenre(trimmed.substring(1, close));
+			}
+		}
+
+		try {
+			final int index = Integer.parseInt(trimmed);
+			return index >= 0 && index < GENRES.length ? GENRES[index] : null;
+		} catch (NumberFormatException e) {
+			return trimmed;
+		}
+	}
+
+	/**
+	 * @return the first value of a text frame
+	 */
+	private static String decodeText(ByteBuffer content) {
+		if (content.limit() < 2) {
+			return null;
+		}
+
+		final int encoding = content.get(0);
+		final Charset charset;
+		final int terminatorLength;
+		switch (encoding) {
+			case 1:
+				charset = StandardCharsets.UTF_16; // with BOM
+				terminatorLength = 2;
+				break;
+			case 2:
+				charset = StandardCharsets.UTF_16BE;
+				terminatorLength = 2;
+				break;
+			case 3:
+				charset = StandardCharsets.UTF_8;
+				terminatorLength = 1;
+				break;
+			default:
+				charset = StandardCharsets.ISO_8859_1;
+				terminatorLength = 1;
+				break;
+		}
+
+		// v2.4 separates multiple values by a terminator, we only want the first
+		final int terminator = indexOfTerminator(content, 1, terminatorLength);
+		final int end = terminator > -1 ? terminator : content.limit();
+
+		return new String(content.array(), 1, end - 1, charset);
+	}
+
+	private static long syncsafe(ByteBuffer buffer, int offset) {
+		return ((buffer.get(offset) & 0x7F) << 21) | ((buffer.get(offset + 1) & 0x7F) << 14)
+				| ((buffer.get(offset + 2) & 0x7F) << 7) | (buffer.get(offset + 3) & 0x7F);
+	}
+
+}
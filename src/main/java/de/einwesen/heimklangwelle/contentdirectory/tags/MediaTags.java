@@ -0,0 +1,169 @@
+package de.einwesen.heimklangwelle.contentdirectory.tags;
+
+/**
+ * Metadata read from the header of a media file. Everything is optional.
+ */
+public class MediaTags {
+
+	public static final MediaTags EMPTY = new MediaTags(null, null, 0, null, -1, false, false);
+
+	private final String artist;
+	private final String album;
+	private final int trackNumber;
+	private final String genre;
+	private final long durationMillis;
+	private final boolean coverArt;
+	private final boolean timeSeekable;
+
+	public MediaTags(String artist, String album, int trackNumber, String genre, long durationMillis, boolean coverArt, boolean timeSeekable) {
+		this.artist = artist;
+		this.album = album;
+		this.trackNumber = trackNumber;
+		this.genre = genre;
+		this.durationMillis = durationMillis;
+		this.coverArt = coverArt;
+		this.timeSeekable = timeSeekable;
+	}
+
+	public String getArtist() {
+		return artist;
+	}
+
+	public String getAlbum() {
+		return album;
+	}
+
+	/**
+	 * @return the track number, or 0 if unknown
+	 */
+	public int getTrackNumber() {
+		return trackNumber;
+	}
+
+	public String getGenre() {
+		return genre;
+	}
+
+	/**
+	 * @return the duration, or -1 if unknown
+	 */
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	/**
+	 * @return true if the file has an embedded picture, that {@link CoverArtReader} can read
+	 */
+	public boolean hasCoverArt() {
+		return coverArt;
+	}
+
+	/**
+	 * @return true if {@link SeekTableReader} builds a table for the file, so it can be played from any point in time
+	 */
+	public boolean isTimeSeekable() {
+		return timeSeekable;
+	}
+
+	/**
+	 * @return the duration as needed for res@duration e.g. "0:03:25.120", or null if unknown
+	 */
+	public String getDurationString() {
+		if (durationMillis < 0) {
+			return null;
+		}
+		final long seconds = durationMillis / 1000;
+		return "%d:%02d:%02d.%03d".formatted(seconds / 3600, (seconds / 60) % 60, seconds % 60, durationMillis % 1000);
+	}
+
+	@Override
+	public String toString() {
+		return "artist=%s, album=%s, track=%d, genre=%s, duration=%s, coverArt=%s, timeSeekable=%s".formatted(artist, album, trackNumber, genre, getDurationString(), coverArt, timeSeekable);
+	}
+
+	/**
+	 * Collects the values while reading, the first value found wins.
+	 */
+	static class Builder {
+		private String artist;
+		private String albumArtist;
+		private String album;
+		private int trackNumber;
+		private String genre;
+		private long durationMillis = -1;
+		private boolean coverArt = false;
+		private boolean timeSeekable = false;
+
+		Builder artist(String value) {
+			if (this.artist == null) this.artist = clean(value);
+			return this;
+		}
+
+		Builder albumArtist(String value) {
+			if (this.albumArtist == null) this.albumArtist = clean(value);
+			return this;
+		}
+
+		Builder album(String value) {
+			if (this.album == null) this.album = clean(value);
+			return this;
+		}
+
+		/**
+		 * @param value e.g. "3" or "3/12"
+		 */
+		Builder trackNumber(String value) {
+			if (this.trackNumber == 0 && value != null) {
+				final String number = value.trim().split("/")[0].trim();
+				try {
+					this.trackNumber = Math.max(0, Integer.parseInt(number));
+				} catch (NumberFormatException e) {
+					// just ignore it
+				}
+			}
+			return this;
+		}
+
+		Builder trackNumber(int value) {
+			if (this.trackNumber == 0 && value > 0) this.trackNumber = value;
+			return this;
+		}
+
+		Builder genre(String value) {
+			if (this.genre == null) this.genre = clean(value);
+			return this;
+		}
+
+		Builder durationMillis(long value) {
+			if (this.durationMillis < 0 && value >= 0) this.durationMillis = value;
+			return this;
+		}
+
+		Builder coverArt() {
+			this.coverArt = true;
+			return this;
+		}
+
+		Builder timeSeekable(boolean value) {
+			this.timeSeekable = value;
+			return this;
+		}
+
+		boolean hasDuration() {
+			return this.durationMillis >= 0;
+		}
+
+		MediaTags build() {
+			return new MediaTags(this.artist != null ? this.artist : this.albumArtist, this.album, this.trackNumber, this.genre, this.durationMillis, this.coverArt, this.timeSeekable);
+		}
+
+		private static String clean(String value) {
+			if (value == null) {
+				return null;
+			}
+			final String trimmed = value.replace("\0", "").trim();
+			return trimmed.length() > 0 ? trimmed : null;
+		}
+	}
+
+}
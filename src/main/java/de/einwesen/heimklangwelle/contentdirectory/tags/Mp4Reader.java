@@ -0,0 +1,211 @@
+package de.einwesen.heimklangwelle.contentdirectory.tags;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the duration from moov/mvhd and the iTunes style tags from moov/udta/meta/ilst of MP4 / M4A files.
+ *
+ * Only atom headers are read while walking, so a moov atom at the end of the file costs a few reads, not the whole mdat.
+ */
+class Mp4Reader {
+
+	// Cover art and other binary data are bigger than this
+	private static final int MAX_DATA = 64 * 1024;
+
+	private Mp4Reader() {
+	}
+
+	static void read(BoundedReader reader, MediaTags.Builder tags) throws IOException {
+		final ByteBuffer ftyp = reader.read(0, 8);
+		if (!BoundedReader.startsWith(ftyp, 4, "ftyp")) {
+			return;
+		}
+
+		final Atom moov = Atom.find(reader, 0, reader.size(), "moov");
+		if (moov == null) {
+			return;
+		}
+
+		final Atom mvhd = Atom.find(reader, moov.contentStart, moov.end, "mvhd");
+		if (mvhd != null) {
+			final ByteBuffer content = reader.read(mvhd.contentStart, 32);
+			final long timescale;
+			final long duration;
+			if (content.limit() >= 20 && content.get(0) == 0) {
+				timescale = content.getInt(12) & 0xFFFFFFFFL;
+				duration = content.getInt(16) & 0xFFFFFFFFL;
+			} else if (content.limit() >= 32 && content.get(0) == 1) {
+				timescale = content.getInt(20) & 0xFFFFFFFFL;
+				duration = content.getLong(24);
+			} else {
+				timescale = 0;
+				duration = 0;
+			}
+			if (timescale > 0 && duration > 0) {
+				tags.durationMillis(duration * 1000 / timescale);
+			}
+		}
+
+		final Atom ilst = findIlst(reader, moov);
+		if (ilst == null) {
+			return;
+		}
+
+		long position = ilst.contentStart;
+		while (position < ilst.end) {
+			final Atom item = Atom.read(reader, position, ilst.end);
+			if (item == null) {
+				break;
+			}
+
+			if (item.type.equals("covr")) {
+				tags.coverArt();
+			}
+
+			final Atom data = Atom.find(reader, item.contentStart, item.end, "data");
+			if (data != null && data.end - data.contentStart <= MAX_DATA) {
+				// 4 bytes type, 4 bytes locale, then the value
+				final ByteBuffer value = reader.read(data.contentStart, (int) (data.end - data.contentStart));
+				if (value.limit() > 8) {
+					handleItem(item.type, value, tags);
+				}
+			}
+			position = item.end;
+		}
+	}
+
+	/**
+	 * @return the first image of the covr item, or null if there is none
+	 */
+	static byte[] readPicture(BoundedReader reader) throws IOException {
+		if (!BoundedReader.startsWith(reader.read(0, 8), 4, "ftyp")) {
+			return null;
+		}
+
+		final Atom moov = Atom.find(reader, 0, reader.size(), "moov");
+		final Atom ilst = moov != null ? findIlst(reader, moov) : null;
+		final Atom covr = ilst != null ? Atom.find(reader, ilst.contentStart, ilst.end, "covr") : null;
+		final Atom data = covr != null ? Atom.find(reader, covr.contentStart, covr.end, "data") : null;
+
+		// 4 bytes type, 4 bytes locale, then the image
+		if (data == null || data.end - data.contentStart <= 8 || data.end - data.contentStart - 8 > BoundedReader.MAX_READ) {
+			return null;
+		}
+		final ByteBuffer image = reader.read(data.contentStart + 8, (int) (data.end - data.contentStart - 8));
+		return Arrays.copyOf(image.array(), image.limit());
+	}
+
+	/**
+	 * @return moov/udta/meta/ilst, or null
+	 */
+	private static Atom findIlst(BoundedReader reader, Atom moov) throws IOException {
+		final Atom udta = Atom.find(reader, moov.contentStart, moov.end, "udta");
+		final Atom meta = udta != null ? Atom.find(reader, udta.contentStart, udta.end, "meta") : null;
+		if (meta == null) {
+			return null;
+		}
+
+		// meta is a full box (with version and flags) in MP4, but not in QuickTime files
+		final ByteBuffer metaStart = reader.read(meta.contentStart, 8);
+		final long metaContent = BoundedReader.startsWith(metaStart, 4, "hdlr") ? meta.contentStart : meta.contentStart + 4;
+
+		return Atom.find(reader, metaContent, meta.end, "ilst");
+	}
+
+	private static void handleItem(String type, ByteBuffer value, MediaTags.Builder tags) {
+		switch (type) {
+			case "\u00A9ART":
+				tags.artist(text(value));
+				break;
+			case "aART":
+				tags.albumArtist(text(value));
+				break;
+			case "\u00A9alb":
+				tags.album(text(value));
+				break;
+			case "\u00A9gen":
+				tags.genre(text(value));
+				break;
+			case "gnre":
+				if (value.limit() >= 10) {
+					// ID3v1 index + 1
+					tags.genre(Id3v2Reader.resolveGenre(String.valueOf(value.getShort(8) - 1)));
+				}
+				break;
+			case "trkn":
+				if (value.limit() >= 12) {
+					tags.trackNumber(value.getShort(10));
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+	private static String text(ByteBuffer value) {
+		return new String(value.array(), 8, value.limit() - 8, StandardCharsets.UTF_8);
+	}
+
+	private static class Atom {
+		private final String type;
+		private final long contentStart;
+		private final long end;
+
+		private Atom(String type, long contentStart, long end) {
+			this.type = type;
+			this.contentStart = contentStart;
+			this.end = end;
+		}
+
+		/**
+		 * @return the atom at the position, or null if there is no valid one
+		 */
+		private static Atom read(BoundedReader reader, long position, long parentEnd) throws IOException {
+			final ByteBuffer header = reader.read(position, 16);
+			if (header.limit() < 8) {
+				return null;
+			}
+
+			long size = header.getInt(0) & 0xFFFFFFFFL;
+			final String type = BoundedReader.ascii(header, 4, 4);
+			long headerLength = 8;
+
+			if (size == 1) {
+				if (header.limit() < 16) {
+					return null;
+				}
+				size = header.getLong(8);
+				headerLength = 16;
+			} else if (size == 0) {
+				size = parentEnd - position;
+			}
+
+			if (size < headerLength || position + size > parentEnd) {
+				return null;
+			}
+			return new Atom(type, position + headerLength, position + size);
+		}
+
+		/**
+		 * @return the first child of the given type between start and end, or null
+		 */
+		private static Atom find(BoundedReader reader, long start, long end, String type) throws IOException {
+			long position = start;
+			while (position < end) {
+				final Atom atom = read(reader, position, end);
+				if (atom == null) {
+					return null;
+				}
+				if (atom.type.equals(type)) {
+					return atom;
+				}
+				position = atom.end;
+			}
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,260 @@
+package de.einwesen.heimklangwelle.contentdirectory.tags;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Header of the first MPEG audio frame of a file, including the Xing/Info or VBRI header of vbr files.
+ */
+public class MpegAudioHeader {
+
+	// [version MPEG1 / MPEG2+2.5][layer I, II, III][index]
+	private static final int[][][] BITRATES = {
+		{
+			{ 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 },
+			{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 },
+			{ 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 }
+		},
+		{
+			{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 },
+			{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 },
+			{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 }
+		}
+	};
+
+	// [MPEG1, MPEG2, MPEG2.5][index]
+	private static final int[][] SAMPLE_RATES = {
+		{ 44100, 48000, 32000 },
+		{ 22050, 24000, 16000 },
+		{ 11025, 12000, 8000 }
+	};
+
+	// How far to look for the first frame after the ID3 tag
+	private static final int SYNC_SEARCH_LENGTH = 64 * 1024;
+
+	private final long position;
+	private final int sampleRate;
+	private final int bitrate;
+	private final int samplesPerFrame;
+	private final long frames;
+	private final long bytes;
+	private final byte[] toc;
+	private final long[] vbriToc;
+	private final int vbriFramesPerEntry;
+
+	private MpegAudioHeader(long position, int sampleRate, int bitrate, int samplesPerFrame, long frames, long bytes, byte[] toc, long[] vbriToc, int vbriFramesPerEntry) {
+		this.position = position;
+		this.sampleRate = sampleRate;
+		this.bitrate = bitrate;
+		this.samplesPerFrame = samplesPerFrame;
+		this.frames = frames;
+		this.bytes = bytes;
+		this.toc = toc;
+		this.vbriToc = vbriToc;
+		this.vbriFramesPerEntry = vbriFramesPerEntry;
+	}
+
+	/**
+	 * @param audioStart position after the ID3v2 tag, if any
+	 * @return the header, or null if no frame was found
+	 */
+	public static MpegAudioHeader read(BoundedReader reader, long audioStart) throws IOException {
+		final ByteBuffer buffer = reader.read(audioStart, SYNC_SEARCH_LENGTH);
+
+		for (int i = 0; i + 4 <= buffer.limit(); i++) {
+			if ((buffer.get(i) & 0xFF) != 0xFF || (buffer.get(i + 1) & 0xE0) != 0xE0) {
+				continue;
+			}
+
+			final int versionBits = (buffer.get(i + 1) >> 3) & 0x03;
+			final int layerBits = (buffer.get(i + 1) >> 1) & 0x03;
+			final int bitrateIndex = (buffer.get(i + 2) >> 4) & 0x0F;
+			final int sampleRateIndex = (buffer.get(i + 2) >> 2) & 0x03;
+			final int channelMode = (buffer.get(i + 3) >> 6) & 0x03;
+
+			if (versionBits == 1 || layerBits == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+				continue; // reserved values, not a frame
+			}
+
+			final boolean mpeg1 = versionBits == 3;
+			final int layer = 4 - layerBits; // 1, 2 or 3
+			final int sampleRate = SAMPLE_RATES[versionBits == 3 ? 0 : versionBits == 2 ? 1 : 2][sampleRateIndex];
+			final int bitrate = BITRATES[mpeg1 ? 0 : 1][layer - 1][bitrateIndex] * 1000;
+			final int samplesPerFrame = layer == 1 ? 384 : (layer == 3 && !mpeg1) ? 576 : 1152;
+			final long position = audioStart + i;
+
+			// Xing / Info header follows the side information of the first frame
+			final int sideInfo = mpeg1 ? (channelMode == 3 ? 17 : 32) : (channelMode == 3 ? 9 : 17);
+			final int xing = i + 4 + sideInfo;
+			if (BoundedReader.startsWith(buffer, xing, "Xing") || BoundedReader.startsWith(buffer, xing, "Info")) {
+				final int flags = buffer.limit() >= xing + 8 ? buffer.getInt(xing + 4) : 0;
+				int offset = xing + 8;
+				long frames = -1;
+				long bytes = -1;
+				byte[] toc = null;
+				if ((flags & 0x01) != 0 && buffer.limit() >= offset + 4) {
+					frames = buffer.getInt(offset) & 0xFFFFFFFFL;
+					offset += 4;
+				}
+				if ((flags & 0x02) != 0 && buffer.limit() >= offset + 4) {
+					bytes = buffer.getInt(offset) & 0xFFFFFFFFL;
+					offset += 4;
+				}
+				if ((flags & 0x04) != 0 && buffer.limit() >= offset + 100) {
+					toc = new byte[100];
+					buffer.get(offset, toc);
+				}
+				return new MpegAudioHeader(position, sampleRate, bitrate, samplesPerFrame, frames, bytes, toc, null, 0);
+			}
+
+			// VBRI is always at a fixed offset
+			final int vbri = i + 4 + 32;
+			if (BoundedReader.startsWith(buffer, vbri, "VBRI") && buffer.limit() >= vbri + 18) {
+				final long bytes = buffer.getInt(vbri + 10) & 0xFFFFFFFFL;
+				final long frames = buffer.getInt(vbri + 14) & 0xFFFFFFFFL;
+				return new MpegAudioHeader(position, sampleRate, bitrate, samplesPerFrame, frames, bytes, null, null, 0).withVbriToc(buffer, vbri);
+			}
+
+			return new MpegAudioHeader(position, sampleRate, bitrate, samplesPerFrame, -1, -1, null, null, 0);
+		}
+
+		return null;
+	}
+
+	/**
+	 * The TOC of a VBRI header lists the bytes of every n frames, scaled
+	 */
+	private MpegAudioHeader withVbriToc(ByteBuffer buffer, int vbri) {
+		if (buffer.limit() < vbri + 26) {
+			return this;
+		}
+		final int entries = buffer.getShort(vbri + 18) & 0xFFFF;
+		final int scale = buffer.getShort(vbri + 20) & 0xFFFF;
+		final int entrySize = buffer.getShort(vbri + 22) & 0xFFFF;
+		final int framesPerEntry = buffer.getShort(vbri + 24) & 0xFFFF;
+		if (entries == 0 || entrySize < 1 || entrySize > 4 || framesPerEntry == 0 || buffer.limit() < vbri + 26 + entries * entrySize) {
+			return this;
+		}
+
+		final long[] offsets = new long[entries + 1];
+		for (int e = 0; e < entries; e++) {
+			long value = 0;
+			for (int b = 0; b < entrySize; b++) {
+				value = (value << 8) | (buffer.get(vbri + 26 + e * entrySize + b) & 0xFF);
+			}
+			offsets[e + 1] = offsets[e] + value * scale;
+		}
+		return new MpegAudioHeader(this.position, this.sampleRate, this.bitrate, this.samplesPerFrame, this.frames, this.bytes, null, offsets, framesPerEntry);
+	}
+
+	/**
+	 * @return the bitrate in bit/s of the frame starting at the index, or -1 if there is no valid frame header
+	 */
+	static int getFrameBitrate(ByteBuffer buffer, int i) {
+		if (getFrameLength(buffer, i) < 0) {
+			return -1;
+		}
+		final int versionBits = (buffer.get(i + 1) >> 3) & 0x03;
+		final int layerBits = (buffer.get(i + 1) >> 1) & 0x03;
+		final int bitrateIndex = (buffer.get(i + 2) >> 4) & 0x0F;
+		return BITRATES[versionBits == 3 ? 0 : 1][4 - layerBits - 1][bitrateIndex] * 1000;
+	}
+
+	/**
+	 * @return the length of the frame starting at the index including padding, or -1 if there is no valid frame header
+	 */
+	static int getFrameLength(ByteBuffer buffer, int i) {
+		if (i + 4 > buffer.limit() || (buffer.get(i) & 0xFF) != 0xFF || (buffer.get(i + 1) & 0xE0) != 0xE0) {
+			return -1;
+		}
+
+		final int versionBits = (buffer.get(i + 1) >> 3) & 0x03;
+		final int layerBits = (buffer.get(i + 1) >> 1) & 0x03;
+		final int bitrateIndex = (buffer.get(i + 2) >> 4) & 0x0F;
+		final int sampleRateIndex = (buffer.get(i + 2) >> 2) & 0x03;
+		final int padding = (buffer.get(i + 2) >> 1) & 0x01;
+		if (versionBits == 1 || layerBits == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+			return -1;
+		}
+
+		final boolean mpeg1 = versionBits == 3;
+		final int layer = 4 - layerBits;
+		final int sampleRate = SAMPLE_RATES[versionBits == 3 ? 0 : versionBits == 2 ? 1 : 2][sampleRateIndex];
+		final int bitrate = BITRATES[mpeg1 ? 0 : 1][layer - 1][bitrateIndex] * 1000;
+
+		if (layer == 1) {
+			return (12 * bitrate / sampleRate + padding) * 4;
+		}
+		return (layer == 3 && !mpeg1 ? 72 : 144) * bitrate / sampleRate + padding;
+	}
+
+	/**
+	 * @return position of the first frame in the file
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * @return bitrate of the first frame in bit/s, which is only the real one for cbr files
+	 */
+	public int getBitrate() {
+		return bitrate;
+	}
+
+	public int getSamplesPerFrame() {
+		return samplesPerFrame;
+	}
+
+	/**
+	 * @return number of frames from the Xing/VBRI header, or -1 if there is none
+	 */
+	public long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * @return number of audio bytes from the Xing/VBRI header, or -1 if there is none
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return the 100 entry seek table of the Xing header, or null if there is none
+	 */
+	public byte[] getToc() {
+		return toc;
+	}
+
+	/**
+	 * @return the byte offsets (from the first frame) of every {@link #getVbriFramesPerEntry()} frames, or null if there is no VBRI TOC
+	 */
+	long[] getVbriToc() {
+		return vbriToc;
+	}
+
+	int getVbriFramesPerEntry() {
+		return vbriFramesPerEntry;
+	}
+
+	/**
+	 * @param audioEnd end of the audio data, i.e. without a trailing ID3v1 tag
+	 * @return the duration, or -1 if it can not be determined
+	 */
+	public long getDurationMillis(long audioEnd) {
+		if (this.frames > 0) {
+			return this.frames * this.samplesPerFrame * 1000L / this.sampleRate;
+		}
+		if (this.bitrate > 0 && audioEnd > this.position) {
+			// Assume cbr
+			return (audioEnd - this.position) * 8000L / this.bitrate;
+		}
+		return -1;
+	}
+
+}
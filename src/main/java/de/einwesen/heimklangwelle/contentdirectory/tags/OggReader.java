@@ -0,0 +1,101 @@
+package de.einwesen.heimklangwelle.contentdirectory.tags;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads the comment header of Ogg Vorbis and Opus files, and the duration from the last page
+ */
+class OggReader {
+
+	private static final int PAGE_HEADER_LENGTH = 27;
+
+	// The comment packet may carry a picture, we only want the text in front of it
+	private static final int MAX_PACKET = 256 * 1024;
+
+	// The last page is never bigger than this
+	private static final int TAIL_LENGTH = 64 * 1024;
+
+	private OggReader() {
+	}
+
+	static void read(BoundedReader reader, MediaTags.Builder tags) throws IOException {
+		final ByteArrayOutputStream packet = new ByteArrayOutputStream();
+		long position = 0;
+		int packets = 0;
+		int serial = 0;
+		long sampleRate = 0;
+		long preSkip = 0;
+
+		// Only the first two packets are needed: identification and comments
+		while (packets < 2) {
+			final ByteBuffer header = reader.read(position, PAGE_HEADER_LENGTH);
+			if (header.limit() < PAGE_HEADER_LENGTH || !BoundedReader.startsWith(header, 0, "OggS")) {
+				return;
+			}
+			serial = header.order(ByteOrder.LITTLE_ENDIAN).getInt(14);
+
+			final int segments = header.get(26) & 0xFF;
+			final ByteBuffer lacing = reader.read(position + PAGE_HEADER_LENGTH, segments);
+			long segmentPosition = position + PAGE_HEADER_LENGTH + segments;
+
+			for (int i = 0; i < lacing.limit() && packets < 2; i++) {
+				final int length = lacing.get(i) & 0xFF;
+				if (packet.size() + length <= MAX_PACKET) {
+					final ByteBuffer segment = reader.read(segmentPosition, length);
+					packet.write(segment.array(), 0, segment.limit());
+				}
+				segmentPosition += length;
+
+				// A segment shorter than 255 ends the packet
+				if (length < 255) {
+					final ByteBuffer data = ByteBuffer.wrap(packet.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+					if (packets == 0) {
+						if (BoundedReader.startsWith(data, 0, "\u0001vorbis") && data.limit() >= 16) {
+							sampleRate = data.getInt(12) & 0xFFFFFFFFL;
+						} else if (BoundedReader.startsWith(data, 0, "OpusHead") && data.limit() >= 12) {
+							sampleRate = 48000; // granules are always 48kHz
+							preSkip = data.getShort(10) & 0xFFFF;
+						} else {
+							return; // Nothing we know
+						}
+					} else {
+						if (BoundedReader.startsWith(data, 0, "\u0003vorbis")) {
+							VorbisComments.read(data.position(7), tags);
+						} else if (BoundedReader.startsWith(data, 0, "OpusTags")) {
+							VorbisComments.read(data.position(8), tags);
+						}
+					}
+					packet.reset();
+					packets += 1;
+				}
+			}
+			position = segmentPosition;
+		}
+
+		if (sampleRate > 0) {
+			final long granule = readLastGranule(reader, serial);
+			if (granule > preSkip) {
+				tags.durationMillis((granule - preSkip) * 1000 / sampleRate);
+			}
+		}
+	}
+
+	/**
+	 * @return the granule position of the last page of the stream, or -1
+	 */
+	private static long readLastGranule(BoundedReader reader, int serial) throws IOException {
+		final long start = Math.max(0, reader.size() - TAIL_LENGTH);
+		final ByteBuffer tail = reader.read(start, TAIL_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+
+		for (int i = tail.limit() - PAGE_HEADER_LENGTH; i >= 0; i--) {
+			if (BoundedReader.startsWith(tail, i, "OggS") && tail.getInt(i + 14) == serial) {
+				return tail.getLong(i + 6);
+			}
+		}
+		return -1;
+	}
+
+}
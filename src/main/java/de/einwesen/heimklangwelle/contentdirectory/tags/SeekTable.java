@@ -0,0 +1,111 @@
+package de.einwesen.heimklangwelle.contentdirectory.tags;
+
+import java.util.Arrays;
+
+/**
+ * Points in time of a file, with the byte position where playback can start from there.
+ *
+ * Tables built from the frames of a file point at the start of a frame, a seek goes to the frame before.
+ * Tables from a Xing TOC only have 100 points in percent of the file, a seek interpolates in between.
+ */
+public class SeekTable {
+
+	private final long durationMillis;
+	private final long[] times;
+	private final long[] offsets;
+	private final boolean interpolate;
+
+	/**
+	 * @param times in ms, ascending, starting with 0
+	 * @param offsets where playback starts at the time with the same index
+	 */
+	SeekTable(long durationMillis, long[] times, long[] offsets, boolean interpolate) {
+		this.durationMillis = durationMillis;
+		this.times = times;
+		this.offsets = offsets;
+		this.interpolate = interpolate;
+	}
+
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	public int size() {
+		return times.length;
+	}
+
+	/**
+	 * @return the time playback actually starts at, when seeking to the given time
+	 */
+	public long getSeekTime(long millis) {
+		if (this.interpolate) {
+			return Math.max(0, Math.min(millis, this.durationMillis));
+		}
+		return this.times[indexOf(millis)];
+	}
+
+	/**
+	 * @return the position to start reading at, to play from the given time
+	 */
+	public long getOffset(long millis) {
+		final int index = indexOf(millis);
+		if (!this.interpolate || index + 1 >= this.times.length) {
+			return this.offsets[index];
+		}
+
+		final long timeSpan = this.times[index + 1] - this.times[index];
+		final long offsetSpan = this.offsets[index + 1] - this.offsets[index];
+		final long into = Math.max(0, millis - this.times[index]);
+		return timeSpan > 0 ? this.offsets[index] + offsetSpan * into / timeSpan : this.offsets[index];
+	}
+
+	/**
+	 * @return index of the last point at or before the time
+	 */
+	private int indexOf(long millis) {
+		final int found = Arrays.binarySearch(this.times, millis);
+		return found >= 0 ? found : Math.max(0, -found - 2);
+	}
+
+	@Override
+	public String toString() {
+		return "%d points, %d ms%s".formatted(times.length, durationMillis, interpolate ? ", interpolated" : "");
+	}
+
+	/**
+	 * Collects points in order, dropping those that do not move forward
+	 */
+	static class Builder {
+		private long[] times = new long[64];
+		private long[] offsets = new long[64];
+		private int size = 0;
+
+		void add(long millis, long offset) {
+			if (this.size > 0 && (millis <= this.times[this.size - 1] || offset <= this.offsets[this.size - 1])) {
+				return;
+			}
+			if (this.size == this.times.length) {
+				this.times = Arrays.copyOf(this.times, this.size * 2);
+				this.offsets = Arrays.copyOf(this.offsets, this.size * 2);
+			}
+			this.times[this.size] = millis;
+			this.offsets[this.size] = offset;
+			this.size++;
+		}
+
+		int size() {
+			return size;
+		}
+
+		/**
+		 * @return the table, or null if there are not at least two points
+		 */
+		SeekTable build(long durationMillis, boolean interpolate) {
+			if (this.size < 2 || this.times[0] != 0) {
+				return null;
+			}
+			return new SeekTable(durationMillis, Arrays.copyOf(this.times, this.size), Arrays.copyOf(this.offsets, this.size), interpolate);
+		}
+	}
+
+}
@@ -0,0 +1,196 @@
+package de.einwesen.heimklangwelle.contentdirectory.tags;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the {@link SeekTable} of mp3 and flac files, for seeking by time.
+ *
+ * An mp3 uses the TOC of its Xing or VBRI header. Without one, a cbr file gets its offsets from the bitrate,
+ * and only a small vbr file has all its frames walked, which reads the whole file once.
+ * A flac uses its SEEKTABLE, or else frames found at evenly spaced positions.
+ *
+ * MP4 is not supported on purpose. The samples can be found through stco/stts, but bytes from the middle of mdat
+ * are not playable without the moov, so a renderer could do nothing with them.
+ */
+public class SeekTableReader {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SeekTableReader.class);
+
+	private static final int ID3V1_LENGTH = 128;
+
+	// Read at once while walking the frames of an mp3
+	private static final int SCAN_BUFFER_SIZE = 256 * 1024;
+
+	// A point per that much audio, when walking frames
+	private static final long SCAN_INTERVAL_MILLIS = 1000;
+
+	// Larger vbr files without a TOC get no table, walking them would keep the request waiting too long
+	private static final long MAX_SCAN_BYTES = 32 * 1024 * 1024;
+
+	// Positions looked at to tell cbr from vbr, and how much is read at each
+	private static final int CBR_PROBES = 8;
+	private static final int CBR_PROBE_LENGTH = 8 * 1024;
+
+	private SeekTableReader() {
+	}
+
+	/**
+	 * @param mimeType of the file
+	 * @return true if files of the type get a seek table
+	 */
+	public static boolean isSupported(String mimeType) {
+		return "audio/mpeg".equals(mimeType) || "audio/flac".equals(mimeType);
+	}
+
+	/**
+	 * @return the table, or null if the file is not supported, or nothing could be found in it
+	 */
+	public static SeekTable read(File file) {
+		final String name = file.getName().toLowerCase();
+		final String ext = name.substring(name.lastIndexOf('.') + 1);
+
+		final long start = System.currentTimeMillis();
+		SeekTable table = null;
+		try (BoundedReader reader = new BoundedReader(file)) {
+			switch (ext) {
+				case "mp3":
+					table = readMp3(reader);
+					break;
+				case "flac":
+					table = FlacReader.readSeekTable(reader);
+					break;
+				default:
+					break;
+			}
+		} catch (Exception e) {
+			LOGGER.debug("Could not read seek table of '" + file.getAbsolutePath() + "': " + e.toString());
+		}
+
+		LOGGER.debug("%s: %s in %d ms".formatted(file.getName(), table, System.currentTimeMillis() - start));
+		return table;
+	}
+
+	/**
+	 * @return true if {@link #read(File)} builds a table for the mp3 with this first frame
+	 */
+	static boolean isSeekable(BoundedReader reader, MpegAudioHeader header, long audioEnd) throws IOException {
+		return hasXingToc(header) || header.getVbriToc() != null || audioEnd - header.getPosition() <= MAX_SCAN_BYTES || isCbr(reader, header, audioEnd);
+	}
+
+	private static boolean hasXingToc(MpegAudioHeader header) {
+		return header.getToc() != null && header.getFrames() > 0 && header.getBytes() > 0;
+	}
+
+	/**
+	 * @return true if frames from all over the file have the bitrate of the first one
+	 */
+	private static boolean isCbr(BoundedReader reader, MpegAudioHeader header, long audioEnd) throws IOException {
+		if (header.getBitrate() <= 0) {
+			return false;
+		}
+
+		for (int probe = 1; probe < CBR_PROBES; probe++) {
+			final long position = header.getPosition() + (audioEnd - header.getPosition()) * probe / CBR_PROBES;
+			final ByteBuffer buffer = reader.read(position, CBR_PROBE_LENGTH);
+
+			// Two frames in a row, a single sync word may as well be audio data
+			int bitrate = -1;
+			for (int i = 0; i + 4 <= buffer.limit() && bitrate < 0; i++) {
+				final int length = MpegAudioHeader.getFrameLength(buffer, i);
+				if (length > 0 && MpegAudioHeader.getFrameLength(buffer, i + length) > 0) {
+					bitrate = MpegAudioHeader.getFrameBitrate(buffer, i);
+				}
+			}
+			if (bitrate != header.getBitrate()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static SeekTable readMp3(BoundedReader reader) throws Exception {
+		final long audioStart = Id3v2Reader.getTagLength(reader, 0);
+		final MpegAudioHeader header = MpegAudioHeader.read(reader, audioStart);
+		if (header == null) {
+			return null;
+		}
+
+		long audioEnd = reader.size();
+		if (BoundedReader.startsWith(reader.read(Math.max(0, audioEnd - ID3V1_LENGTH), 3), 0, "TAG")) {
+			audioEnd -= ID3V1_LENGTH;
+		}
+
+		final SeekTable.Builder points = new SeekTable.Builder();
+		final long frameMillis1000 = header.getSamplesPerFrame() * 1000L * 1000L / header.getSampleRate();
+
+		if (hasXingToc(header)) {
+			// Percent of the duration -> 1/256 of the bytes
+			final long durationMillis = header.getDurationMillis(audioEnd);
+			final byte[] toc = header.getToc();
+			for (int percent = 0; percent < toc.length; percent++) {
+				points.add(durationMillis * percent / 100, header.getPosition() + (toc[percent] & 0xFF) * header.getBytes() / 256);
+			}
+			return points.build(durationMillis, true);
+		}
+
+		final long[] vbriToc = header.getVbriToc();
+		if (vbriToc != null) {
+			for (int entry = 0; entry < vbriToc.length; entry++) {
+				points.add(entry * header.getVbriFramesPerEntry() * frameMillis1000 / 1000, header.getPosition() + vbriToc[entry]);
+			}
+			return points.build(header.getDurationMillis(audioEnd), true);
+		}
+
+		if (isCbr(reader, header, audioEnd)) {
+			// Every second of audio takes the same bytes, offset = position + ms * bitrate / 8000 in between
+			final long durationMillis = header.getDurationMillis(audioEnd);
+			points.add(0, header.getPosition());
+			points.add(durationMillis, header.getPosition() + durationMillis * header.getBitrate() / 8000);
+			return points.build(durationMillis, true);
+		}
+
+		if (audioEnd - header.getPosition() > MAX_SCAN_BYTES) {
+			return null;
+		}
+
+		// Walk the frames of a vbr file, remembering one about every second
+		long frames = 0;
+		long nextPointMillis = 0;
+		long position = header.getPosition();
+		long bufferStart = -1;
+		ByteBuffer buffer = null;
+
+		while (position + 4 <= audioEnd) {
+			if (buffer == null || position + 4 > bufferStart + buffer.limit()) {
+				bufferStart = position;
+				buffer = reader.read(position, SCAN_BUFFER_SIZE);
+				if (buffer.limit() < 4) {
+					break;
+				}
+			}
+
+			final int length = MpegAudioHeader.getFrameLength(buffer, (int) (position - bufferStart));
+			if (length <= 0) {
+				// Garbage between frames, or the end
+				position++;
+				continue;
+			}
+
+			final long millis = frames * frameMillis1000 / 1000;
+			if (millis >= nextPointMillis) {
+				points.add(millis, position);
+				nextPointMillis = millis + SCAN_INTERVAL_MILLIS;
+			}
+			frames++;
+			position += length;
+		}
+
+		return points.build(frames * frameMillis1000 / 1000, false);
+	}
+
+}
@@ -0,0 +1,116 @@
+package de.einwesen.heimklangwelle.contentdirectory.tags;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads artist, album, track number, genre and duration from the headers of mp3, flac, ogg/opus and mp4/m4a files.
+ *
+ * Nothing but the header blocks is read, the size of the file does not matter.
+ */
+public class TagReader {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TagReader.class);
+
+	private static final int ID3V1_LENGTH = 128;
+
+	private TagReader() {
+	}
+
+	/**
+	 * @return the tags, {@link MediaTags#EMPTY} if the file has none or is not supported
+	 */
+	public static MediaTags read(File file) {
+		final String name = file.getName().toLowerCase();
+		final String ext = name.substring(name.lastIndexOf('.') + 1);
+
+		if (!isSupported(ext)) {
+			return MediaTags.EMPTY;
+		}
+
+		final MediaTags.Builder tags = new MediaTags.Builder();
+		try (BoundedReader reader = new BoundedReader(file)) {
+			switch (ext) {
+				case "mp3":
+					readMp3(reader, tags);
+					break;
+				case "flac":
+					FlacReader.read(reader, tags);
+					break;
+				case "ogg":
+				case "oga":
+				case "opus":
+					OggReader.read(reader, tags);
+					break;
+				default:
+					Mp4Reader.read(reader, tags);
+					break;
+			}
+		} catch (Exception e) {
+			// A broken file should still be listed, just without tags
+			LOGGER.debug("Could not read tags of '" + file.getAbsolutePath() + "': " + e.toString());
+		}
+
+		final MediaTags result = tags.build();
+		LOGGER.trace("%s: %s".formatted(file.getName(), result));
+		return result;
+	}
+
+	/**
+	 * @param ext lowercase file extension
+	 */
+	public static boolean isSupported(String ext) {
+		switch (ext) {
+			case "mp3":
+			case "flac":
+			case "ogg":
+			case "oga":
+			case "opus":
+			case "m4a":
+			case "m4b":
+			case "mp4":
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private static void readMp3(BoundedReader reader, MediaTags.Builder tags) throws Exception {
+		final long audioStart = Id3v2Reader.read(reader, 0, tags);
+
+		long audioEnd = reader.size();
+		final ByteBuffer id3v1 = reader.read(Math.max(0, reader.size() - ID3V1_LENGTH), ID3V1_LENGTH);
+		if (id3v1.limit() == ID3V1_LENGTH && BoundedReader.startsWith(id3v1, 0, "TAG")) {
+			audioEnd -= ID3V1_LENGTH;
+			readId3v1(id3v1, tags);
+		}
+
+		// Read even with a TLEN, it decides whether the file can be seeked by time
+		final MpegAudioHeader header = MpegAudioHeader.read(reader, audioStart);
+		if (header != null) {
+			tags.durationMillis(header.getDurationMillis(audioEnd));
+			tags.timeSeekable(SeekTableReader.isSeekable(reader, header, audioEnd));
+		}
+	}
+
+	/**
+	 * Only used for values the ID3v2 tag does not have
+	 */
+	private static void readId3v1(ByteBuffer tag, MediaTags.Builder tags) {
+		tags.artist(new String(tag.array(), 33, 30, StandardCharsets.ISO_8859_1));
+		tags.album(new String(tag.array(), 63, 30, StandardCharsets.ISO_8859_1));
+		// ID3v1.1 has the track in the last byte of the comment
+		if (tag.get(125) == 0 && tag.get(126) != 0) {
+			tags.trackNumber(tag.get(126) & 0xFF);
+		}
+		final int genre = tag.get(127) & 0xFF;
+		if (genre < Id3v2Reader.GENRES.length) {
+			tags.genre(Id3v2Reader.GENRES[genre]);
+		}
+	}
+
+}
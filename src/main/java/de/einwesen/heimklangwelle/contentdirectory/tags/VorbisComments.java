@@ -0,0 +1,79 @@
+package de.einwesen.heimklangwelle.contentdirectory.tags;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Vorbis comments, as used by FLAC, Ogg Vorbis and Opus
+ */
+class VorbisComments {
+
+	private VorbisComments() {
+	}
+
+	/**
+	 * Reads as many comments as the buffer holds, a truncated buffer is not an error.
+	 *
+	 * @param buffer positioned at the vendor length
+	 */
+	static void read(ByteBuffer buffer, MediaTags.Builder tags) {
+		final ByteBuffer le = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+		if (le.remaining() < 4) {
+			return;
+		}
+
+		final long vendorLength = le.getInt() & 0xFFFFFFFFL;
+		if (vendorLength > le.remaining() - 4) {
+			return;
+		}
+		le.position(le.position() + (int) vendorLength);
+
+		final long count = le.getInt() & 0xFFFFFFFFL;
+		for (long i = 0; i < count && le.remaining() >= 4; i++) {
+			final long length = le.getInt() & 0xFFFFFFFFL;
+			if (length > le.remaining()) {
+				return;
+			}
+
+			final int start = le.position();
+			// Only decode the small ones, a picture is nothing we need here
+			if (length < 4096) {
+				final byte[] bytes = new byte[(int) length];
+				le.get(bytes);
+				handleComment(new String(bytes, StandardCharsets.UTF_8), tags);
+			}
+			le.position(start + (int) length);
+		}
+	}
+
+	private static void handleComment(String comment, MediaTags.Builder tags) {
+		final int separator = comment.indexOf('=');
+		if (separator < 1) {
+			return;
+		}
+
+		final String value = comment.substring(separator + 1);
+		switch (comment.substring(0, separator).toUpperCase()) {
+			case "ARTIST":
+				tags.artist(value);
+				break;
+			case "ALBUMARTIST":
+			case "ALBUM ARTIST":
+				tags.albumArtist(value);
+				break;
+			case "ALBUM":
+				tags.album(value);
+				break;
+			case "TRACKNUMBER":
+				tags.trackNumber(value);
+				break;
+			case "GENRE":
+				tags.genre(value);
+				break;
+			default:
+				break;
+		}
+	}
+
+}
@@ -58,7 +58,13 @@ public class ContentDirectoryEndpointServlet extends HttpServlet {
             return;
         }      		
 
-        final SortCriterion sort = new SortCriterion(true, "dc:title");  //TODO: Support sort, this can be multiple values
+        final SortCriterion[] sort;
+        try {
+        	sort = SortCriterion.valueOf(req.getParameter("SortCriteria") != null ? req.getParameter("SortCriteria") : "+dc:title");
+        } catch (IllegalArgumentException e) {
+        	resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "SortCriteria; " + e.toString());
+        	return;
+        }
 
         final String filter = req.getParameter("Filter") != null ? req.getParameter("Filter") : Browse.CAPS_WILDCARD;        
     	        
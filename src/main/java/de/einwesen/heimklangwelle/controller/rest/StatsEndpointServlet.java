@@ -0,0 +1,201 @@
+package de.einwesen.heimklangwelle.controller.rest;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import de.einwesen.heimklangwelle.HeimklangServiceRegistry;
+import de.einwesen.heimklangwelle.contentdirectory.AlbumArtService;
+import de.einwesen.heimklangwelle.contentdirectory.BrowseResultCache;
+import de.einwesen.heimklangwelle.contentdirectory.FilePrefetcher;
+import de.einwesen.heimklangwelle.contentdirectory.FileStreamer;
+import de.einwesen.heimklangwelle.contentdirectory.HotFileCache;
+import de.einwesen.heimklangwelle.contentdirectory.TranscodeService;
+import de.einwesen.heimklangwelle.contentdirectory.library.BackgroundTagReader;
+import de.einwesen.heimklangwelle.contentdirectory.library.ChildCountCache;
+import de.einwesen.heimklangwelle.contentdirectory.library.LibraryRoot;
+import de.einwesen.heimklangwelle.contentdirectory.library.LibraryRoots;
+import de.einwesen.heimklangwelle.contentdirectory.library.LibraryScanner;
+import de.einwesen.heimklangwelle.contentdirectory.library.MediaLibraryIndex;
+import de.einwesen.heimklangwelle.contentdirectory.library.ObjectIdTable;
+import de.einwesen.heimklangwelle.contentdirectory.library.SearchIndex;
+import de.einwesen.heimklangwelle.contentdirectory.library.SeekTableCache;
+import de.einwesen.heimklangwelle.contentdirectory.library.TagCache;
+
+/**
+ * Internal counters of the content server as json. 
+ * Roots are listed by name only, where they are on disk is none of the business of the network.
+ */
+public class StatsEndpointServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 4076312815519623027L;
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		final JSONObject jsonResult = new JSONObject();
+		
+		final LibraryRoots roots = HeimklangServiceRegistry.getLibraryRoots();
+		if (roots != null) {
+			final JSONArray jsonRoots = new JSONArray();
+			for (LibraryRoot root : roots.getRoots()) {
+				jsonRoots.put(getRootStats(root));
+			}
+			jsonResult.put("libraryRoots", jsonRoots);
+			
+			final LibraryScanner scanner = roots.getScanner();
+			if (scanner != null) {
+				final JSONObject jsonScan = new JSONObject();
+				jsonScan.put("running", scanner.isRunning());
+				jsonScan.put("threads", scanner.getParallelism());
+				jsonScan.put("directories", scanner.getDirectories());
+				jsonScan.put("files", scanner.getFiles());
+				jsonScan.put("pending", scanner.getPending());
+				jsonScan.put("failed", scanner.getFailed());
+				jsonScan.put("millis", scanner.getMillis());
+				jsonResult.put("libraryScan", jsonScan);
+			}
+		}
+		
+		final ObjectIdTable objectIds = HeimklangServiceRegistry.getObjectIdTable();
+		if (objectIds != null) {
+			jsonResult.put("objectIds", objectIds.size());
+		}
+		
+		final BrowseResultCache browseCache = HeimklangServiceRegistry.getBrowseResultCache();
+		if (browseCache != null) {
+			final JSONObject jsonBrowseCache = new JSONObject();
+			jsonBrowseCache.put("entries", browseCache.size());
+			jsonBrowseCache.put("chars", browseCache.getChars());
+			jsonBrowseCache.put("hits", browseCache.getHits());
+			jsonBrowseCache.put("misses", browseCache.getMisses());
+			jsonBrowseCache.put("evictions", browseCache.getEvictions());
+			jsonResult.put("browseCache", jsonBrowseCache);
+		}
+		
+		final SearchIndex searchIndex = HeimklangServiceRegistry.getSearchIndex();
+		if (searchIndex != null) {
+			final JSONObject jsonSearchIndex = new JSONObject();
+			jsonSearchIndex.put("entries", searchIndex.size());
+			jsonSearchIndex.put("pending", searchIndex.getPending());
+			jsonResult.put("searchIndex", jsonSearchIndex);
+		}
+		
+		final BackgroundTagReader tagReader = HeimklangServiceRegistry.getTagReader();
+		if (tagReader != null) {
+			final JSONObject jsonTagReader = new JSONObject();
+			jsonTagReader.put("pending", tagReader.getPending());
+			jsonResult.put("tagReader", jsonTagReader);
+		}
+		
+		final AlbumArtService albumArt = HeimklangServiceRegistry.getAlbumArtService();
+		if (albumArt != null) {
+			final JSONObject jsonAlbumArt = new JSONObject();
+			jsonAlbumArt.put("sources", albumArt.getSources());
+			jsonAlbumArt.put("generated", albumArt.getGenerated());
+			jsonAlbumArt.put("served", albumArt.getServed());
+			jsonAlbumArt.put("missing", albumArt.getMissing());
+			jsonResult.put("albumArt", jsonAlbumArt);
+		}
+		
+		final FileStreamer streamer = HeimklangServiceRegistry.getFileStreamer();
+		if (streamer != null) {
+			final JSONObject jsonStreaming = new JSONObject();
+			jsonStreaming.put("active", streamer.getActive());
+			jsonStreaming.put("streams", streamer.getStreams());
+			jsonStreaming.put("rangeRequests", streamer.getRangeRequests());
+			jsonStreaming.put("bytesSent", streamer.getBytesSent());
+			jsonStreaming.put("aborted", streamer.getAborted());
+			jsonStreaming.put("heads", streamer.getHeads());
+			jsonStreaming.put("notModified", streamer.getNotModified());
+			jsonStreaming.put("timeSeeks", streamer.getTimeSeeks());
+			final SeekTableCache seekTables = streamer.getSeekTables();
+			if (seekTables != null) {
+				final JSONObject jsonSeekTables = new JSONObject();
+				jsonSeekTables.put("entries", seekTables.size());
+				jsonSeekTables.put("hits", seekTables.getHits());
+				jsonSeekTables.put("misses", seekTables.getMisses());
+				jsonStreaming.put("seekTables", jsonSeekTables);
+			}
+			final HotFileCache hotFiles = streamer.getHotFiles();
+			if (hotFiles != null) {
+				final JSONObject jsonHotFiles = new JSONObject();
+				final long hits = hotFiles.getHits();
+				final long lookups = hits + hotFiles.getMisses();
+				jsonHotFiles.put("entries", hotFiles.size());
+				jsonHotFiles.put("bytes", hotFiles.getBytes());
+				jsonHotFiles.put("maxBytes", hotFiles.getMaxBytes());
+				jsonHotFiles.put("maxFileSize", hotFiles.getMaxFileSize());
+				jsonHotFiles.put("hits", hits);
+				jsonHotFiles.put("misses", hotFiles.getMisses());
+				jsonHotFiles.put("hitRate", lookups > 0 ? (double) hits / lookups : 0);
+				jsonHotFiles.put("evictions", hotFiles.getEvictions());
+				jsonStreaming.put("hotFiles", jsonHotFiles);
+			}
+			jsonResult.put("streaming", jsonStreaming);
+		}
+
+		final FilePrefetcher prefetcher = HeimklangServiceRegistry.getFilePrefetcher();
+		if (prefetcher != null) {
+			final JSONObject jsonPrefetch = new JSONObject();
+			jsonPrefetch.put("bytesPerSecond", prefetcher.getBytesPerSecond());
+			jsonPrefetch.put("warmedFiles", prefetcher.getWarmedFiles());
+			jsonPrefetch.put("skippedFiles", prefetcher.getSkippedFiles());
+			jsonPrefetch.put("bytesRead", prefetcher.getBytesRead());
+			jsonPrefetch.put("cancelled", prefetcher.getCancelled());
+			jsonResult.put("prefetch", jsonPrefetch);
+		}
+		
+		final TranscodeService transcoder = HeimklangServiceRegistry.getTranscodeService();
+		if (transcoder != null) {
+			final JSONObject jsonTranscoding = new JSONObject();
+			jsonTranscoding.put("rules", transcoder.getRules());
+			jsonTranscoding.put("maxProcesses", transcoder.getMaxProcesses());
+			jsonTranscoding.put("active", transcoder.getActive());
+			jsonTranscoding.put("started", transcoder.getStarted());
+			jsonTranscoding.put("completed", transcoder.getCompleted());
+			jsonTranscoding.put("failed", transcoder.getFailed());
+			jsonTranscoding.put("rejected", transcoder.getRejected());
+			jsonTranscoding.put("cacheHits", transcoder.getCacheHits());
+			jsonResult.put("transcoding", jsonTranscoding);
+		}
+		
+		Utils.sendJSON(jsonResult, resp);
+	}
+	
+	private static JSONObject getRootStats(LibraryRoot root) {
+		final JSONObject jsonResult = new JSONObject();
+		jsonResult.put("name", root.getName());
+		jsonResult.put("watched", root.getWatcher() != null);
+		
+		final MediaLibraryIndex index = root.getIndex();
+		final JSONObject jsonIndex = new JSONObject();
+		jsonIndex.put("retainListings", index.isRetainingListings());
+		jsonIndex.put("directories", index.size());
+		jsonResult.put("libraryIndex", jsonIndex);
+		
+		final ChildCountCache childCountCache = index.getChildCountCache();
+		final JSONObject jsonChildCounts = new JSONObject();
+		jsonChildCounts.put("entries", childCountCache.size());
+		jsonChildCounts.put("maxEntries", childCountCache.getMaxEntries());
+		jsonChildCounts.put("hits", childCountCache.getHits());
+		jsonChildCounts.put("misses", childCountCache.getMisses());
+		jsonChildCounts.put("evictions", childCountCache.getEvictions());
+		jsonResult.put("childCountCache", jsonChildCounts);
+		
+		final TagCache tagCache = index.getTagCache();
+		final JSONObject jsonTags = new JSONObject();
+		jsonTags.put("entries", tagCache.size());
+		jsonTags.put("hits", tagCache.getHits());
+		jsonTags.put("misses", tagCache.getMisses());
+		jsonResult.put("tagCache", jsonTags);
+		
+		return jsonResult;
+	}
+	
+}
@@ -0,0 +1,122 @@
+package de.einwesen.heimklangwelle.controller.rest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import de.einwesen.heimklangwelle.HeimklangServiceRegistry;
+import de.einwesen.heimklangwelle.contentdirectory.FileStreamer;
+import de.einwesen.heimklangwelle.contentdirectory.StreamingMetrics;
+
+/**
+ * What the content server streamed to whom.
+ *
+ * "/" has the totals, "/clients" and "/objects" the counters by client address and by object id,
+ * most bytes first. "?limit=n" cuts the lists, default is 50.
+ */
+public class StreamingEndpointServlet extends HttpServlet {
+
+	private static final long serialVersionUID = -2519356640418532977L;
+
+	private static final int DEFAULT_LIMIT = 50;
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		final FileStreamer streamer = HeimklangServiceRegistry.getFileStreamer();
+		if (streamer == null) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "no content server");
+			return;
+		}
+
+		int limit = DEFAULT_LIMIT;
+		if (req.getParameter("limit") != null) {
+			try {
+				limit = Integer.parseInt(req.getParameter("limit"));
+			} catch (NumberFormatException e) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "limit is not a number");
+				return;
+			}
+		}
+
+		final StreamingMetrics metrics = streamer.getMetrics();
+		final String path = req.getPathInfo();
+		final JSONObject jsonResponse = new JSONObject();
+
+		if (path == null || "/".equals(path)) {
+			jsonResponse.put("total", getCountersJSON(metrics.getTotal()));
+			jsonResponse.put("active", streamer.getActive());
+			jsonResponse.put("clients", metrics.getClients().size());
+			jsonResponse.put("objects", metrics.getObjects().size());
+			jsonResponse.put("prefixBytes", StreamingMetrics.PREFIX_BYTES);
+		} else if ("/clients".equalsIgnoreCase(path)) {
+			jsonResponse.put("clients", getCountersArray(metrics.getClients(), "address", limit));
+		} else if ("/objects".equalsIgnoreCase(path)) {
+			jsonResponse.put("objects", getCountersArray(metrics.getObjects(), "objectId", limit));
+		} else {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "wrong path");
+			return;
+		}
+
+		Utils.sendJSON(jsonResponse, resp);
+	}
+
+	private static JSONArray getCountersArray(Map<String, StreamingMetrics.Counters> countersByKey, String keyName, int limit) {
+		final List<Map.Entry<String, StreamingMetrics.Counters>> entries = new ArrayList<>(countersByKey.entrySet());
+		entries.sort(Comparator.comparingLong((Map.Entry<String, StreamingMetrics.Counters> e) -> e.getValue().getBytes()).reversed());
+
+		final JSONArray jsonArray = new JSONArray();
+		for (Map.Entry<String, StreamingMetrics.Counters> entry : entries.subList(0, Math.max(0, Math.min(limit, entries.size())))) {
+			final JSONObject jsonCounters = getCountersJSON(entry.getValue());
+			jsonCounters.put(keyName, entry.getKey());
+			jsonArray.put(jsonCounters);
+		}
+		return jsonArray;
+	}
+
+	private static JSONObject getCountersJSON(StreamingMetrics.Counters counters) {
+		final JSONObject jsonCounters = new JSONObject();
+		if (!counters.getName().isEmpty()) {
+			jsonCounters.put("name", counters.getName());
+		}
+		jsonCounters.put("streams", counters.getStreams());
+		jsonCounters.put("rangeRequests", counters.getRangeRequests());
+		jsonCounters.put("bytes", counters.getBytes());
+		jsonCounters.put("aborted", counters.getAborted());
+		jsonCounters.put("prefixAborts", counters.getPrefixAborts());
+		jsonCounters.put("lastSeen", counters.getLastSeen());
+		jsonCounters.put("timeToFirstByteMillis", getHistogramJSON(counters.getTimeToFirstByte()));
+		jsonCounters.put("throughputKBps", getHistogramJSON(counters.getThroughput()));
+		return jsonCounters;
+	}
+
+	private static JSONObject getHistogramJSON(StreamingMetrics.Histogram histogram) {
+		final JSONObject jsonHistogram = new JSONObject();
+		jsonHistogram.put("count", histogram.getCount());
+		jsonHistogram.put("mean", histogram.getMean());
+		jsonHistogram.put("p50", histogram.getPercentile(50));
+		jsonHistogram.put("p90", histogram.getPercentile(90));
+		jsonHistogram.put("p99", histogram.getPercentile(99));
+
+		// Upper bound -> count, empty buckets left out
+		final JSONObject jsonBuckets = new JSONObject();
+		for (int i = 0; i < histogram.size(); i++) {
+			final long count = histogram.getBucket(i);
+			if (count > 0) {
+				jsonBuckets.put(i < histogram.size() - 1 ? "<" + histogram.getUpperBound(i) : "more", count);
+			}
+		}
+		jsonHistogram.put("buckets", jsonBuckets);
+		return jsonHistogram;
+	}
+
+}
@@ -24,6 +24,7 @@ import org.jupnp.support.model.container.PlaylistContainer;
 import org.jupnp.support.model.item.Item;
 
 import de.einwesen.heimklangwelle.HeimklangServiceRegistry;
+import de.einwesen.heimklangwelle.contentdirectory.DIDLWriter;
 
 
 @UpnpService(serviceId = @UpnpServiceId("HeimklangPlaylistManagement"), serviceType = @UpnpServiceType(value = "HeimklangPlaylistManagement", version = 1) /*, stringConvertibleTypes = LastChange.class*/)
@@ -115,27 +116,28 @@ public class SingleInstancePlaylistServiceImpl {
     	plContainer.setChildCount(trackMetaData.size());
     	
     	try {
-			final DIDLParser parser = new DIDLParser();
+			DIDLParser parser = null;
+			
+			// Generating a container including items is most likely not spec comliant
+			// But the whole action is not, so its fine ;)
+			// I do this mostly , to be able to transport the information wheather the list is writeble or not
+			final DIDLWriter writer = new DIDLWriter().openContainer(plContainer);
 			
 			// Each entry has a header and footer, so we need to extract the item form each 
 			// and add them to a new combined onject (similir to te result of "browse" on a server)
 			for (String metaData : trackMetaData) {
-				final DIDLContent content = parser.parse(metaData);
-				// There is only oen Item to expected in any entry, 
-				// but we dont loose to much by doing a loop 
-				for (Item item : content.getItems()) {
-					plContainer.addItem(item);
+				// Usually the entries come from our own server, and can just be copied
+				if (!writer.appendContentOf(metaData)) {
+					parser = parser != null ? parser : new DIDLParser();
+					// There is only oen Item to expected in any entry, 
+					// but we dont loose to much by doing a loop 
+					for (Item item : parser.parse(metaData).getItems()) {
+						writer.writeNestedItem(item);
+					}
 				}
 			}
 			
-			
-			final DIDLContent containerContent = new DIDLContent();
-			containerContent.addContainer(plContainer);
-			
-			// Generating a container including items is most likely not spec comliant
-			// But the whole action is not, so its fine ;)
-			// I do this mostly , to be able to transport the information wheather the list is writeble or not
-			return parser.generate(containerContent, true);
+			return writer.closeContainer().end();
 		} catch (Exception e) {
 			throw new ActionException(ErrorCode.HUMAN_INTERVENTION_REQUIRED, e.toString());		
 		}
@@ -78,6 +78,19 @@ public abstract class AbstractConnectionManagerService extends ConnectionManager
 		return newDefaultServerProtocolInfo(contentType, null);
 	}
 	
+	/**
+	 * For a single file we have a seek table for, see {@link de.einwesen.heimklangwelle.contentdirectory.tags.SeekTableReader}.
+	 * Not for a whole type, a file without a table can not be seeked by time.
+	 */
+	public static ProtocolInfo newTimeSeekServerProtocolInfo(String contentType) {
+        return new ProtocolInfo(
+                Protocol.HTTP_GET,
+                "*",
+                contentType,
+                DNLA_OP_ALL_SEEKING_SUPPORTED + ";" + DNLA_FLAGS_SEEK_ONLY
+            );
+	}
+	
 	public static ProtocolInfo newDefaultServerProtocolInfo(String contentType, String dnlaProfile) {
         return new ProtocolInfo(
                 Protocol.HTTP_GET,